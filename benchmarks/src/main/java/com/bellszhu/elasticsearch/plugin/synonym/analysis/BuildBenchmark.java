@@ -0,0 +1,92 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse rules and build the {@link SynonymMap}, as a full reload of
+ * a text file does. With more than one thread the rules are parsed by
+ * {@link SynonymParallelParser}. With {@code equivalenceClasses} the map is
+ * a {@link SynonymClassMap}.
+ *
+ * @author bellszhu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BuildBenchmark {
+
+    @Param({"solr", "wordnet"})
+    public String format;
+
+    @Param({"1000", "100000"})
+    public int rules;
+
+    @Param({"1", "3"})
+    public int ruleWords;
+
+    @Param({"true", "false"})
+    public boolean expand;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean equivalenceClasses;
+
+    private Analyzer analyzer;
+
+    private ExecutorService executor;
+
+    private SynonymParallelParser parallelParser;
+
+    private String text;
+
+    @Setup
+    public void setup() {
+        SynonymData data = new SynonymData(42, rules, ruleWords);
+        analyzer = SynonymData.analyzer();
+        text = "wordnet".equals(format) ? data.wordnet() : data.solr();
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+            parallelParser = new SynonymParallelParser(executor, threads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public SynonymMap build() throws Exception {
+        if (parallelParser != null) {
+            return parallelParser.parse(new StringReader(text), format, expand, analyzer,
+                    new SynonymRuleErrors(0, "generated"), equivalenceClasses).build();
+        }
+        return AbstractSynonymFile.getSynonymParser(new StringReader(text), format, expand, analyzer,
+                equivalenceClasses).build();
+    }
+}
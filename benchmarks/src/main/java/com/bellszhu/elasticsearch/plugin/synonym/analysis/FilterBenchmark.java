@@ -0,0 +1,77 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token throughput of {@link DynamicSynonymFilter}: one operation analyzes a
+ * document of {@value #TOKENS} tokens. Run with {@code -prof gc} for the
+ * allocation rate.
+ *
+ * @author bellszhu
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    static final int TOKENS = 10000;
+
+    @Param({"1000", "100000"})
+    public int rules;
+
+    /**
+     * Words per rule input, 1 for single word rules
+     */
+    @Param({"1", "3"})
+    public int ruleWords;
+
+    /**
+     * Fraction of the tokens that belong to a rule
+     */
+    @Param({"0.01", "0.1", "0.5"})
+    public double density;
+
+    @Param({"true", "false"})
+    public boolean expand;
+
+    @Param({"fst", "word_id", "aho_corasick", "hash"})
+    public String matcher;
+
+    private Tokenizer tokenizer;
+
+    private DynamicSynonymFilter filter;
+
+    private String document;
+
+    @Setup
+    public void setup() {
+        SynonymData data = new SynonymData(42, rules, ruleWords);
+        SynonymSource source = SynonymData.source(SynonymData.file(data.solr(), "", expand), "", expand,
+                SynonymMatcher.fromString(matcher));
+        tokenizer = SynonymData.tokenizer();
+        filter = new DynamicSynonymFilter(tokenizer, source, false);
+        document = data.document(7, TOKENS, density);
+    }
+
+    @Benchmark
+    public int analyze() throws IOException {
+        return SynonymData.analyze(tokenizer, filter, document);
+    }
+}
@@ -0,0 +1,50 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Synonym file over rules held in memory, going through the same parsing and
+ * building as the real files. Never changes by itself, see
+ * {@link #setRules(String)}.
+ *
+ * @author bellszhu
+ */
+final class GeneratedSynonymFile extends AbstractSynonymFile {
+
+    private volatile byte[] rules;
+
+    private volatile boolean changed;
+
+    GeneratedSynonymFile(String rules, Analyzer analyzer, boolean expand, String format) {
+        // the environment is only used to move maps off heap
+        super(null, analyzer, expand, format, "generated", false, false, 0, null, false, "generated");
+        this.rules = rules.getBytes(StandardCharsets.UTF_8);
+    }
+
+    void setRules(String rules) {
+        this.rules = rules.getBytes(StandardCharsets.UTF_8);
+        this.changed = true;
+    }
+
+    @Override
+    protected String type() {
+        return "generated";
+    }
+
+    @Override
+    public Reader getReader() {
+        return new InputStreamReader(countBytes(new ByteArrayInputStream(rules)), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean isNeedReloadSynonymMap() {
+        boolean result = changed;
+        changed = false;
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of documents analyzed while the source they use keeps reloading,
+ * and of the reloads themselves. Three threads analyze, one reloads a
+ * dictionary that alternates between two versions.
+ *
+ * @author bellszhu
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReloadBenchmark {
+
+    @State(Scope.Group)
+    public static class Reloading {
+
+        @Param({"10000", "100000"})
+        public int rules;
+
+        @Param({"fst", "word_id", "aho_corasick", "hash"})
+        public String matcher;
+
+        String[] versions;
+
+        GeneratedSynonymFile file;
+
+        SynonymSource source;
+
+        String document;
+
+        private int reloads;
+
+        @Setup
+        public void setup() {
+            SynonymData data = new SynonymData(42, rules, 2);
+            versions = new String[]{data.solr(), new SynonymData(43, rules, 2).solr()};
+            file = SynonymData.file(versions[0], "", true);
+            source = SynonymData.source(file, "", true, SynonymMatcher.fromString(matcher));
+            document = data.document(7, FilterBenchmark.TOKENS, 0.1);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Analyzing {
+
+        Tokenizer tokenizer;
+
+        DynamicSynonymFilter filter;
+
+        @Setup
+        public void setup(Reloading reloading) {
+            tokenizer = SynonymData.tokenizer();
+            filter = new DynamicSynonymFilter(tokenizer, reloading.source, false);
+        }
+    }
+
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(3)
+    public int analyze(Reloading reloading, Analyzing analyzing) throws IOException {
+        return SynonymData.analyze(analyzing.tokenizer, analyzing.filter, reloading.document);
+    }
+
+    @Benchmark
+    @Group("reload")
+    @GroupThreads(1)
+    public SynonymSnapshot reload(Reloading reloading) {
+        reloading.file.setRules(reloading.versions[++reloading.reloads % 2]);
+        return reloading.source.reload();
+    }
+}
@@ -0,0 +1,147 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+/**
+ * Generates dictionaries and documents for the benchmarks, so they run
+ * without any file or network access. Everything is derived from a seed.
+ *
+ * <p>
+ * Rule words are {@code t} followed by a base 36 number. Words of documents
+ * that should not match carry a {@code _} suffix, they start like rule words
+ * so the first character check does not reject them by itself.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class SynonymData {
+
+    private final int rules;
+
+    private final int ruleWords;
+
+    /**
+     * Input words of every rule
+     */
+    private final String[][] inputs;
+
+    SynonymData(long seed, int rules, int ruleWords) {
+        this.rules = rules;
+        this.ruleWords = ruleWords;
+        this.inputs = new String[rules][ruleWords];
+        Random random = new Random(seed);
+        // twice as many words as rules, so multi word rules share words
+        int vocabulary = Math.max(2, rules * 2);
+        for (int rule = 0; rule < rules; rule++) {
+            for (int word = 0; word < ruleWords; word++) {
+                inputs[rule][word] = ruleWord(word == 0 ? rule : random.nextInt(vocabulary));
+            }
+        }
+    }
+
+    private static String ruleWord(int id) {
+        return "t" + Integer.toString(id, Character.MAX_RADIX);
+    }
+
+    private static String synonym(int rule) {
+        return "s" + Integer.toString(rule, Character.MAX_RADIX);
+    }
+
+    private String input(int rule) {
+        return String.join(" ", inputs[rule]);
+    }
+
+    /**
+     * Rules in Solr format, every other rule is an equivalence so that
+     * {@code expand} makes a difference
+     */
+    String solr() {
+        StringBuilder text = new StringBuilder();
+        for (int rule = 0; rule < rules; rule++) {
+            text.append(input(rule)).append(rule % 2 == 0 ? ", " : " => ").append(synonym(rule)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * The same rules as {@link #solr()}, as equivalences in WordNet format
+     */
+    String wordnet() {
+        StringBuilder text = new StringBuilder();
+        for (int rule = 0; rule < rules; rule++) {
+            long synset = 100000000L + rule;
+            text.append("s(").append(synset).append(",1,'").append(input(rule)).append("',n,1,0).\n");
+            text.append("s(").append(synset).append(",2,'").append(synonym(rule)).append("',n,1,0).\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param tokens  approximate number of tokens of the document
+     * @param density fraction of the tokens that belong to a rule
+     */
+    String document(long seed, int tokens, double density) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        int written = 0;
+        while (written < tokens) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            // a match consumes ruleWords tokens at once
+            if (random.nextDouble() < density / ruleWords) {
+                text.append(input(random.nextInt(rules)));
+                written += ruleWords;
+            } else {
+                text.append(ruleWord(random.nextInt(rules * 2))).append('_');
+                written++;
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Source over the rules, parsed with a whitespace tokenizer
+     */
+    static SynonymSource source(GeneratedSynonymFile file, String format, boolean expand, SynonymMatcher matcher) {
+        return new SynonymSource(new SynonymSourceKey("generated", format, expand, false, "whitespace",
+                Settings.EMPTY, false, false, matcher, 0, false), file);
+    }
+
+    static GeneratedSynonymFile file(String rules, String format, boolean expand) {
+        return new GeneratedSynonymFile(rules, analyzer(), expand, format);
+    }
+
+    static Analyzer analyzer() {
+        return new WhitespaceAnalyzer();
+    }
+
+    /**
+     * Consumes the document like the indexer does
+     *
+     * @return number of tokens produced
+     */
+    static int analyze(Tokenizer tokenizer, DynamicSynonymFilter filter, String document) throws IOException {
+        tokenizer.setReader(new StringReader(document));
+        filter.reset();
+        int tokens = 0;
+        while (filter.incrementToken()) {
+            tokens++;
+        }
+        filter.end();
+        filter.close();
+        return tokens;
+    }
+
+    static Tokenizer tokenizer() {
+        return new WhitespaceTokenizer();
+    }
+}
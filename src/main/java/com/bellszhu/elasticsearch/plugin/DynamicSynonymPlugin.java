@@ -3,38 +3,67 @@
  */
 package com.bellszhu.elasticsearch.plugin;
 
+import com.bellszhu.elasticsearch.plugin.synonym.action.ReloadSynonymAction;
+import com.bellszhu.elasticsearch.plugin.synonym.action.RestReloadSynonymAction;
+import com.bellszhu.elasticsearch.plugin.synonym.action.RestSynonymStatsAction;
+import com.bellszhu.elasticsearch.plugin.synonym.action.SynonymStatsAction;
+import com.bellszhu.elasticsearch.plugin.synonym.action.TransportReloadSynonymAction;
+import com.bellszhu.elasticsearch.plugin.synonym.action.TransportSynonymStatsAction;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymGraphTokenFilterFactory;
 import com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymTokenFilterFactory;
 import com.bellszhu.elasticsearch.plugin.synonym.service.DynamicSynonymAnalysisService;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AnalysisRegistry;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import static java.util.Collections.singletonList;
 
 /**
  * @author bellszhu
  */
-public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
+public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin, ActionPlugin {
     private PluginComponent pluginComponent = new PluginComponent();
 
     @Override
@@ -47,6 +76,9 @@ public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
                                                Environment environment,
                                                NodeEnvironment nodeEnvironment,
                                                NamedWriteableRegistry namedWriteableRegistry) {
+        if (nodeEnvironment.hasNodeFile()) {
+            pluginComponent.setDataPath(nodeEnvironment.nodeDataPaths()[0]);
+        }
         Collection<Object> components = new ArrayList<>();
         components.add(pluginComponent);
         return components;
@@ -57,6 +89,58 @@ public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
         return singletonList(DynamicSynonymAnalysisService.class);
     }
 
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(DynamicSynonymAnalysisService.RELOAD_JITTER_SETTING,
+                DynamicSynonymAnalysisService.TOKEN_STATS_SAMPLING_SETTING,
+                DynamicSynonymAnalysisService.WATCH_FILES_SETTING,
+                DynamicSynonymAnalysisService.WATCH_DEBOUNCE_SETTING,
+                DynamicSynonymAnalysisService.REMOTE_CACHE_SETTING);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // reloads are mostly waiting on the synonym server or building FSTs,
+        // a few threads keep one slow source from delaying the others
+        int size = Math.max(1, Math.min(4, EsExecutors.numberOfProcessors(settings) / 2));
+        String name = DynamicSynonymAnalysisService.THREAD_POOL_NAME;
+        // parallel parsing is opt in, a single thread keeps reloads from
+        // competing with searches for the cores
+        String parseName = DynamicSynonymAnalysisService.PARSE_THREAD_POOL_NAME;
+        return Arrays.asList(new FixedExecutorBuilder(settings, name, size, 1000, "thread_pool." + name),
+                new FixedExecutorBuilder(settings, parseName, 1, 1000, "thread_pool." + parseName));
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(
+                new ActionHandler<>(ReloadSynonymAction.INSTANCE, TransportReloadSynonymAction.class),
+                new ActionHandler<>(SynonymStatsAction.INSTANCE, TransportSynonymStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+                                             ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
+                                             SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(new RestReloadSynonymAction(settings, restController),
+                new RestSynonymStatsAction(settings, restController));
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // index services closed without being removed, like those verifying
+        // metadata, fire no event: the service releases them once collected
+        indexModule.addIndexEventListener(new IndexEventListener() {
+
+            @Override
+            public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+                pluginComponent.getSynonymService().release(indexSettings);
+            }
+        });
+    }
+
     @Override
     public Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         Map<String, AnalysisModule.AnalysisProvider<org.elasticsearch.index.analysis.TokenFilterFactory>> extra = new HashMap<>();
@@ -66,7 +150,23 @@ public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
             @Override
             public TokenFilterFactory get(IndexSettings indexSettings, Environment environment, String name, Settings settings)
                     throws IOException {
-                return new DynamicSynonymTokenFilterFactory(indexSettings, environment, name, settings, pluginComponent.getAnalysisRegistry());
+                return new DynamicSynonymTokenFilterFactory(indexSettings, environment, name, settings,
+                        pluginComponent.getAnalysisRegistry(), pluginComponent.getSynonymService());
+            }
+
+            @Override
+            public boolean requiresAnalysisSettings() {
+                return true;
+            }
+        });
+
+        extra.put("dynamic_synonym_graph", new AnalysisModule.AnalysisProvider<TokenFilterFactory>() {
+
+            @Override
+            public TokenFilterFactory get(IndexSettings indexSettings, Environment environment, String name, Settings settings)
+                    throws IOException {
+                return new DynamicSynonymGraphTokenFilterFactory(indexSettings, environment, name, settings,
+                        pluginComponent.getAnalysisRegistry(), pluginComponent.getSynonymService());
             }
 
             @Override
@@ -82,6 +182,10 @@ public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
 
         private AnalysisRegistry analysisRegistry;
 
+        private DynamicSynonymAnalysisService synonymService;
+
+        private Path dataPath;
+
         AnalysisRegistry getAnalysisRegistry() {
             return analysisRegistry;
         }
@@ -90,5 +194,24 @@ public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
             this.analysisRegistry = analysisRegistry;
         }
 
+        public DynamicSynonymAnalysisService getSynonymService() {
+            return synonymService;
+        }
+
+        public void setSynonymService(DynamicSynonymAnalysisService synonymService) {
+            this.synonymService = synonymService;
+        }
+
+        /**
+         * @return data path of the node, null if it has none
+         */
+        public Path getDataPath() {
+            return dataPath;
+        }
+
+        public void setDataPath(Path dataPath) {
+            this.dataPath = dataPath;
+        }
+
     }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Outcome of a reload on one node, one entry per reloaded source.
+ *
+ * @author bellszhu
+ */
+public class NodeReloadSynonymResponse extends BaseNodeResponse implements ToXContentFragment {
+
+    private List<SourceReload> sources;
+
+    NodeReloadSynonymResponse() {
+    }
+
+    NodeReloadSynonymResponse(DiscoveryNode node, List<SourceReload> sources) {
+        super(node);
+        this.sources = sources;
+    }
+
+    public List<SourceReload> getSources() {
+        return sources;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        sources = in.readList(SourceReload::new);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeList(sources);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().getName());
+        builder.startArray("sources");
+        for (SourceReload source : sources) {
+            source.toXContent(builder, params);
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    /**
+     * Reload of a single source, either the generation it reached or the
+     * error it failed with.
+     */
+    public static class SourceReload implements Writeable, ToXContentObject {
+
+        private final String source;
+
+        private final long generation;
+
+        private final long tookMillis;
+
+        private final String error;
+
+        SourceReload(String source, long generation, long tookMillis, String error) {
+            this.source = source;
+            this.generation = generation;
+            this.tookMillis = tookMillis;
+            this.error = error;
+        }
+
+        SourceReload(StreamInput in) throws IOException {
+            source = in.readString();
+            generation = in.readVLong();
+            tookMillis = in.readVLong();
+            error = in.readOptionalString();
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public long getTookMillis() {
+            return tookMillis;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(source);
+            out.writeVLong(generation);
+            out.writeVLong(tookMillis);
+            out.writeOptionalString(error);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("source", source);
+            builder.field("reloaded", error == null);
+            builder.field("generation", generation);
+            builder.field("took_in_millis", tookMillis);
+            if (error != null) {
+                builder.field("error", error);
+            }
+            return builder.endObject();
+        }
+    }
+}
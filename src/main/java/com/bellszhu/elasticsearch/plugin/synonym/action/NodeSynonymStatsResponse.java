@@ -0,0 +1,57 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSourceStats;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Stats of the sources loaded on one node.
+ *
+ * @author bellszhu
+ */
+public class NodeSynonymStatsResponse extends BaseNodeResponse implements ToXContentFragment {
+
+    private List<SynonymSourceStats> sources;
+
+    NodeSynonymStatsResponse() {
+    }
+
+    NodeSynonymStatsResponse(DiscoveryNode node, List<SynonymSourceStats> sources) {
+        super(node);
+        this.sources = sources;
+    }
+
+    public List<SynonymSourceStats> getSources() {
+        return sources;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        sources = in.readList(SynonymSourceStats::new);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeList(sources);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().getName());
+        builder.startArray("sources");
+        for (SynonymSourceStats source : sources) {
+            source.toXContent(builder, params);
+        }
+        builder.endArray();
+        return builder;
+    }
+}
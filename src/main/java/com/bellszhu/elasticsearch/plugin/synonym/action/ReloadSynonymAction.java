@@ -0,0 +1,24 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.Action;
+
+/**
+ * Reloads synonym sources on all nodes immediately instead of waiting for
+ * their next update check.
+ *
+ * @author bellszhu
+ */
+public class ReloadSynonymAction extends Action<ReloadSynonymResponse> {
+
+    public static final ReloadSynonymAction INSTANCE = new ReloadSynonymAction();
+    public static final String NAME = "cluster:admin/dynamic_synonym/reload";
+
+    private ReloadSynonymAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ReloadSynonymResponse newResponse() {
+        return new ReloadSynonymResponse();
+    }
+}
@@ -0,0 +1,62 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * Selects the sources to reload by index and by synonyms path, both
+ * optional.
+ *
+ * @author bellszhu
+ */
+public class ReloadSynonymRequest extends BaseNodesRequest<ReloadSynonymRequest> {
+
+    /**
+     * Index name or wildcard pattern, null for all indices
+     */
+    private String index;
+
+    /**
+     * Synonyms path as configured in the filter, null for all sources
+     */
+    private String synonymsPath;
+
+    public ReloadSynonymRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public String index() {
+        return index;
+    }
+
+    public ReloadSynonymRequest index(String index) {
+        this.index = index;
+        return this;
+    }
+
+    public String synonymsPath() {
+        return synonymsPath;
+    }
+
+    public ReloadSynonymRequest synonymsPath(String synonymsPath) {
+        this.synonymsPath = synonymsPath;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readOptionalString();
+        synonymsPath = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(index);
+        out.writeOptionalString(synonymsPath);
+    }
+}
@@ -0,0 +1,49 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reload outcome of every node, keyed by node id.
+ *
+ * @author bellszhu
+ */
+public class ReloadSynonymResponse extends BaseNodesResponse<NodeReloadSynonymResponse> implements ToXContentFragment {
+
+    ReloadSynonymResponse() {
+    }
+
+    ReloadSynonymResponse(ClusterName clusterName, List<NodeReloadSynonymResponse> nodes,
+                          List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeReloadSynonymResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readStreamableList(NodeReloadSynonymResponse::new);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeReloadSynonymResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeReloadSynonymResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+}
@@ -0,0 +1,41 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * {@code POST /_dynamic_synonym/reload} and
+ * {@code POST /{index}/_dynamic_synonym/reload}, optionally limited to one
+ * source with the {@code synonyms_path} parameter.
+ *
+ * @author bellszhu
+ */
+public class RestReloadSynonymAction extends BaseRestHandler {
+
+    public RestReloadSynonymAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(POST, "/_dynamic_synonym/reload", this);
+        controller.registerHandler(POST, "/{index}/_dynamic_synonym/reload", this);
+    }
+
+    @Override
+    public String getName() {
+        return "dynamic_synonym_reload_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        ReloadSynonymRequest reloadRequest = new ReloadSynonymRequest()
+                .index(request.param("index"))
+                .synonymsPath(request.param("synonyms_path"));
+        reloadRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(ReloadSynonymAction.INSTANCE, reloadRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,40 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * {@code GET /_nodes/dynamic_synonym/stats} and
+ * {@code GET /_nodes/{nodeId}/dynamic_synonym/stats}.
+ *
+ * @author bellszhu
+ */
+public class RestSynonymStatsAction extends BaseRestHandler {
+
+    public RestSynonymStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_nodes/dynamic_synonym/stats", this);
+        controller.registerHandler(GET, "/_nodes/{nodeId}/dynamic_synonym/stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "dynamic_synonym_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        SynonymStatsRequest statsRequest = new SynonymStatsRequest(
+                Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(SynonymStatsAction.INSTANCE, statsRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,23 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.Action;
+
+/**
+ * Reports the synonym sources loaded on each node.
+ *
+ * @author bellszhu
+ */
+public class SynonymStatsAction extends Action<SynonymStatsResponse> {
+
+    public static final SynonymStatsAction INSTANCE = new SynonymStatsAction();
+    public static final String NAME = "cluster:monitor/dynamic_synonym/stats";
+
+    private SynonymStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public SynonymStatsResponse newResponse() {
+        return new SynonymStatsResponse();
+    }
+}
@@ -0,0 +1,15 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+/**
+ * Selects the nodes to report on, all by default.
+ *
+ * @author bellszhu
+ */
+public class SynonymStatsRequest extends BaseNodesRequest<SynonymStatsRequest> {
+
+    public SynonymStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
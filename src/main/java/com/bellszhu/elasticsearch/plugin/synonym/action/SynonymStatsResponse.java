@@ -0,0 +1,49 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Synonym stats of every node, keyed by node id.
+ *
+ * @author bellszhu
+ */
+public class SynonymStatsResponse extends BaseNodesResponse<NodeSynonymStatsResponse> implements ToXContentFragment {
+
+    SynonymStatsResponse() {
+    }
+
+    SynonymStatsResponse(ClusterName clusterName, List<NodeSynonymStatsResponse> nodes,
+                         List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeSynonymStatsResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readStreamableList(NodeSynonymStatsResponse::new);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeSynonymStatsResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeSynonymStatsResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+}
@@ -0,0 +1,112 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import com.bellszhu.elasticsearch.plugin.DynamicSynonymPlugin;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSnapshot;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSource;
+import com.bellszhu.elasticsearch.plugin.synonym.service.DynamicSynonymAnalysisService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the matching sources of each node one after the other on the
+ * synonym thread pool, a failing source does not stop the others.
+ *
+ * @author bellszhu
+ */
+public class TransportReloadSynonymAction extends TransportNodesAction<ReloadSynonymRequest, ReloadSynonymResponse,
+        TransportReloadSynonymAction.NodeRequest, NodeReloadSynonymResponse> {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    private final DynamicSynonymPlugin.PluginComponent pluginComponent;
+
+    @Inject
+    public TransportReloadSynonymAction(ThreadPool threadPool, ClusterService clusterService,
+                                        TransportService transportService, ActionFilters actionFilters,
+                                        DynamicSynonymPlugin.PluginComponent pluginComponent) {
+        super(ReloadSynonymAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                ReloadSynonymRequest::new, NodeRequest::new, DynamicSynonymAnalysisService.THREAD_POOL_NAME,
+                NodeReloadSynonymResponse.class);
+        this.pluginComponent = pluginComponent;
+    }
+
+    @Override
+    protected ReloadSynonymResponse newResponse(ReloadSynonymRequest request, List<NodeReloadSynonymResponse> responses,
+                                                List<FailedNodeException> failures) {
+        return new ReloadSynonymResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, ReloadSynonymRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected NodeReloadSynonymResponse newNodeResponse() {
+        return new NodeReloadSynonymResponse();
+    }
+
+    @Override
+    protected NodeReloadSynonymResponse nodeOperation(NodeRequest request) {
+        List<SynonymSource> sources = pluginComponent.getSynonymService()
+                .getSources(request.request.index(), request.request.synonymsPath());
+        List<NodeReloadSynonymResponse.SourceReload> reloads = new ArrayList<>(sources.size());
+        for (SynonymSource source : sources) {
+            long start = System.nanoTime();
+            String error = null;
+            try {
+                source.reload();
+            } catch (Exception e) {
+                logger.error(new ParameterizedMessage("reload synonym {} on request error!", source.getKey()), e);
+                error = ExceptionsHelper.detailedMessage(e);
+            }
+            SynonymSnapshot snapshot = source.getSnapshot();
+            reloads.add(new NodeReloadSynonymResponse.SourceReload(source.getKey().toString(),
+                    snapshot.getGeneration(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error));
+        }
+        return new NodeReloadSynonymResponse(clusterService.localNode(), reloads);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private ReloadSynonymRequest request;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, ReloadSynonymRequest request) {
+            super(nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new ReloadSynonymRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
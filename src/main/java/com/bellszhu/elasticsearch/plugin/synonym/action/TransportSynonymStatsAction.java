@@ -0,0 +1,86 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import com.bellszhu.elasticsearch.plugin.DynamicSynonymPlugin;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Collects the stats of the sources of each node. Runs on the management
+ * pool, so stats stay available while the synonym pool is busy reloading.
+ *
+ * @author bellszhu
+ */
+public class TransportSynonymStatsAction extends TransportNodesAction<SynonymStatsRequest, SynonymStatsResponse,
+        TransportSynonymStatsAction.NodeRequest, NodeSynonymStatsResponse> {
+
+    private final DynamicSynonymPlugin.PluginComponent pluginComponent;
+
+    @Inject
+    public TransportSynonymStatsAction(ThreadPool threadPool, ClusterService clusterService,
+                                       TransportService transportService, ActionFilters actionFilters,
+                                       DynamicSynonymPlugin.PluginComponent pluginComponent) {
+        super(SynonymStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                SynonymStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                NodeSynonymStatsResponse.class);
+        this.pluginComponent = pluginComponent;
+    }
+
+    @Override
+    protected SynonymStatsResponse newResponse(SynonymStatsRequest request, List<NodeSynonymStatsResponse> responses,
+                                               List<FailedNodeException> failures) {
+        return new SynonymStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, SynonymStatsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected NodeSynonymStatsResponse newNodeResponse() {
+        return new NodeSynonymStatsResponse();
+    }
+
+    @Override
+    protected NodeSynonymStatsResponse nodeOperation(NodeRequest request) {
+        return new NodeSynonymStatsResponse(clusterService.localNode(),
+                pluginComponent.getSynonymService().getStats());
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private SynonymStatsRequest request;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, SynonymStatsRequest request) {
+            super(nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new SynonymStatsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
+import org.elasticsearch.env.Environment;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsing and building shared by the synonym file implementations, which
+ * only have to provide the rules and tell when they changed.
+ *
+ * @author bellszhu
+ */
+abstract class AbstractSynonymFile implements SynonymFile {
+
+    protected static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    protected final Environment env;
+
+    protected final Analyzer analyzer;
+
+    protected final boolean expand;
+
+    protected final String format;
+
+    /**
+     * Local path or remote URL of the file
+     */
+    protected final String location;
+
+    /**
+     * Identity of the analyzer, see {@link CompiledSynonymMap#analyzerFingerprint}
+     */
+    protected final String analyzerFingerprint;
+
+    /**
+     * Analyzed rules of the last load, null unless delta reload is enabled
+     */
+    private final SynonymRuleCache ruleCache;
+
+    /**
+     * Move built maps to memory mapped files
+     */
+    protected final boolean offHeap;
+
+    /**
+     * Invalid rules skipped before a load fails
+     */
+    protected final int maxInvalidRules;
+
+    /**
+     * Parses on several threads, null to parse on the reloading thread
+     */
+    private final SynonymParallelParser parallelParser;
+
+    /**
+     * Build a {@link SynonymClassMap}
+     */
+    protected final boolean equivalenceClasses;
+
+    private volatile SynonymLoadStats loadStats;
+
+    private final AtomicLong checkFailures = new AtomicLong();
+
+    private CountingInputStream lastStream;
+
+    AbstractSynonymFile(Environment env, Analyzer analyzer, boolean expand,
+                        String format, String location, boolean deltaReload,
+                        boolean offHeap, int maxInvalidRules, SynonymParallelParser parallelParser,
+                        boolean equivalenceClasses, String analyzerFingerprint) {
+        this.env = env;
+        this.analyzer = analyzer;
+        this.expand = expand;
+        this.format = format;
+        this.location = location;
+        this.analyzerFingerprint = analyzerFingerprint;
+        this.offHeap = offHeap;
+        this.maxInvalidRules = maxInvalidRules;
+        this.parallelParser = parallelParser;
+        this.equivalenceClasses = equivalenceClasses;
+        this.ruleCache = deltaReload ? new SynonymRuleCache(format, expand, analyzer, equivalenceClasses) : null;
+    }
+
+    static SynonymMap.Builder getSynonymParser(Reader rulesReader, String format, boolean expand, Analyzer analyzer) throws IOException, ParseException {
+        SynonymMap.Builder parser;
+        if ("wordnet".equalsIgnoreCase(format)) {
+            parser = new WordnetSynonymParser(true, expand, analyzer);
+            ((WordnetSynonymParser) parser).parse(rulesReader);
+        } else {
+            parser = new SolrSynonymParser(true, expand, analyzer);
+            ((SolrSynonymParser) parser).parse(rulesReader);
+        }
+        return parser;
+    }
+
+    /**
+     * @param equivalenceClasses build a {@link SynonymClassMap}
+     */
+    static SynonymMap.Builder getSynonymParser(Reader rulesReader, String format, boolean expand, Analyzer analyzer,
+                                               boolean equivalenceClasses) throws IOException, ParseException {
+        if (!equivalenceClasses) {
+            return getSynonymParser(rulesReader, format, expand, analyzer);
+        }
+        SynonymMap.Builder builder = SynonymClassMap.builder(true);
+        SynonymRuleCache.newParser(format, expand, analyzer, builder).parse(rulesReader);
+        return builder;
+    }
+
+    /**
+     * Parses the rules one by one, so invalid ones can be skipped.
+     *
+     * @param equivalenceClasses build a {@link SynonymClassMap}
+     */
+    static SynonymMap.Builder getSynonymParser(Reader rulesReader, String format, boolean expand, Analyzer analyzer,
+                                               SynonymRuleErrors errors, boolean equivalenceClasses)
+            throws IOException, ParseException {
+        SynonymMap.Builder builder = equivalenceClasses ? SynonymClassMap.builder(true) : null;
+        SynonymMap.Parser parser;
+        if (builder != null) {
+            parser = SynonymRuleCache.newParser(format, expand, analyzer, builder);
+        } else if ("wordnet".equalsIgnoreCase(format)) {
+            parser = new WordnetSynonymParser(true, expand, analyzer);
+        } else {
+            parser = new SolrSynonymParser(true, expand, analyzer);
+        }
+        SynonymRuleCache.RuleSplitter splitter = SynonymRuleCache.splitter(new BufferedReader(rulesReader), format);
+        String rule;
+        while ((rule = splitter.next()) != null) {
+            try {
+                parser.parse(new StringReader(rule));
+            } catch (ParseException e) {
+                errors.invalid(rule, splitter.lineNumber(), e);
+            }
+        }
+        return builder != null ? builder : parser;
+    }
+
+    /**
+     * @return "local" or "remote", used in log messages
+     */
+    protected abstract String type();
+
+    @Override
+    public SynonymMap reloadSynonymMap() {
+        logger.info("start reload {} synonym from {}.", type(), location);
+        long start = System.nanoTime();
+        lastStream = null;
+        SynonymRuleErrors errors = new SynonymRuleErrors(maxInvalidRules, location);
+        try (RuleCountingReader rulesReader = new RuleCountingReader(getReader())) {
+            SynonymMap.Builder parser;
+            if (ruleCache != null) {
+                parser = ruleCache.parse(rulesReader, errors);
+            } else if (parallelParser != null) {
+                parser = parallelParser.parse(rulesReader, format, expand, analyzer, errors, equivalenceClasses);
+            } else if (maxInvalidRules > 0) {
+                parser = getSynonymParser(rulesReader, format, expand, analyzer, errors, equivalenceClasses);
+            } else {
+                parser = getSynonymParser(rulesReader, format, expand, analyzer, equivalenceClasses);
+            }
+            long parsed = System.nanoTime();
+            SynonymMap synonymMap = parser.build();
+            if (offHeap) {
+                synonymMap = moveOffHeap(synonymMap, rulesReader.rules);
+            }
+            return loaded(synonymMap, rulesReader.rules, errors.getCount(), lastStream == null ? 0 : lastStream.count,
+                    parsed - start, System.nanoTime() - parsed);
+        } catch (Exception e) {
+            logger.error(new ParameterizedMessage("reload {} synonym {} error!", type(), location), e);
+            throw new IllegalArgumentException(
+                    "could not reload " + type() + " synonyms file to build synonyms", e);
+        }
+    }
+
+    /**
+     * Writes a heap map to a temporary compiled file and maps it back, so the
+     * heap copy can be collected.
+     */
+    private SynonymMap moveOffHeap(SynonymMap synonymMap, long rules) throws IOException {
+        if (synonymMap.fst == null) {
+            return synonymMap;
+        }
+        Path dir = env.tmpFile().resolve("dynamic-synonym");
+        Files.createDirectories(dir);
+        Path file = Files.createTempFile(dir, "synonym-", ".fst");
+        try {
+            CompiledSynonymMap.Metadata metadata = new CompiledSynonymMap.Metadata(
+                    analyzerFingerprint, format, expand, rules, 0);
+            CompiledSynonymMap.write(file, synonymMap, metadata);
+            return CompiledSynonymMap.read(file, metadata, true).getSynonymMap();
+        } finally {
+            // the mapping stays valid once the file is deleted
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Records and logs the cost of a successful load.
+     */
+    protected SynonymMap loaded(SynonymMap synonymMap, long rules, long invalidRules, long bytes,
+                                long parseNanos, long buildNanos) {
+        loadStats = new SynonymLoadStats(System.currentTimeMillis(), rules, invalidRules, bytes,
+                TimeUnit.NANOSECONDS.toMillis(parseNanos),
+                TimeUnit.NANOSECONDS.toMillis(buildNanos),
+                synonymMap.fst == null ? 0 : synonymMap.fst.ramBytesUsed());
+        logger.info("reloaded {} synonym from {}: {}", type(), location, loadStats);
+        return synonymMap;
+    }
+
+    @Override
+    public SynonymLoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    /**
+     * Counts an update check that could not reach the file
+     */
+    protected void checkFailed() {
+        checkFailures.incrementAndGet();
+    }
+
+    @Override
+    public long getCheckFailures() {
+        return checkFailures.get();
+    }
+
+    /**
+     * Wraps the raw stream of the rules so the bytes read by the current load
+     * are counted.
+     */
+    protected InputStream countBytes(InputStream in) {
+        CountingInputStream counting = new CountingInputStream(in);
+        lastStream = counting;
+        return counting;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Counts the lines that are neither blank nor comments as they are read
+     */
+    static final class RuleCountingReader extends FilterReader {
+
+        long rules;
+
+        /**
+         * Whether only whitespace was read since the last line break
+         */
+        private boolean lineStart = true;
+
+        RuleCountingReader(Reader in) {
+            super(in);
+        }
+
+        private void count(char c) {
+            if (c == '\n') {
+                lineStart = true;
+            } else if (lineStart && !Character.isWhitespace(c)) {
+                // the first character of the line decides, indented comments
+                // are comments too
+                if (c != '#') {
+                    rules++;
+                }
+                lineStart = false;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                count((char) c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = super.read(cbuf, off, len);
+            for (int i = 0; i < n; i++) {
+                count(cbuf[off + i]);
+            }
+            return n;
+        }
+    }
+}
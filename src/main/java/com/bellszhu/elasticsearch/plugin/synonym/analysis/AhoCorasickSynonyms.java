@@ -0,0 +1,212 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton over the word ids of the rule inputs. Fed one token
+ * at a time, its state is the longest suffix of the tokens seen so far that
+ * starts some rule, and every rule ending at the current token is found by
+ * following the output links of that state. Tokens are therefore read once,
+ * instead of once for every rule start they may belong to.
+ *
+ * <p>
+ * State 0 is the root, the empty prefix. Transitions are stored as one sorted
+ * label array per state.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class AhoCorasickSynonyms {
+
+    static final int ROOT = 0;
+
+    private final CharArrayMap<Integer> vocabulary;
+
+    /**
+     * Transitions of state {@code s} are {@code labels[first[s]..first[s+1])}
+     * and the matching {@code targets}
+     */
+    private final int[] first;
+    private final int[] labels;
+    private final int[] targets;
+
+    private final int[] depth;
+    private final int[] fail;
+
+    /**
+     * Next state on the failure chain that completes a rule, -1 if none
+     */
+    private final int[] outputLink;
+
+    /**
+     * Output of the rule completed by the state, null if none
+     */
+    private final BytesRef[] outputs;
+
+    private AhoCorasickSynonyms(CharArrayMap<Integer> vocabulary, int[] first, int[] labels, int[] targets,
+                                int[] depth, int[] fail, int[] outputLink, BytesRef[] outputs) {
+        this.vocabulary = vocabulary;
+        this.first = first;
+        this.labels = labels;
+        this.targets = targets;
+        this.depth = depth;
+        this.fail = fail;
+        this.outputLink = outputLink;
+        this.outputs = outputs;
+    }
+
+    /**
+     * @return id of the token or -1 if no rule input contains it
+     */
+    int wordId(char[] buffer, int offset, int length) {
+        Integer id = vocabulary.get(buffer, offset, length);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the state after reading the word in the given state
+     */
+    int next(int state, int wordId) {
+        if (wordId == -1) {
+            return ROOT;
+        }
+        while (true) {
+            int target = child(state, wordId);
+            if (target != -1) {
+                return target;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = fail[state];
+        }
+    }
+
+    private int child(int state, int label) {
+        int index = Arrays.binarySearch(labels, first[state], first[state + 1], label);
+        return index < 0 ? -1 : targets[index];
+    }
+
+    /**
+     * @return number of words of the prefix the state stands for
+     */
+    int depth(int state) {
+        return depth[state];
+    }
+
+    boolean hasTransitions(int state) {
+        return first[state + 1] > first[state];
+    }
+
+    /**
+     * @return the longest proper suffix of the state that starts a rule
+     */
+    int fail(int state) {
+        return fail[state];
+    }
+
+    /**
+     * @return the longest state ending here that completes a rule, the state
+     * itself or one on its failure chain, -1 if none
+     */
+    int firstOutput(int state) {
+        return outputs[state] != null ? state : outputLink[state];
+    }
+
+    int nextOutput(int state) {
+        return outputLink[state];
+    }
+
+    BytesRef output(int state) {
+        return outputs[state];
+    }
+
+    /**
+     * @param ignoreCase look words up case insensitively, like the filter
+     * @return null if the map has no rules
+     */
+    static AhoCorasickSynonyms build(SynonymMap synonymMap, boolean ignoreCase) throws IOException {
+        if (synonymMap.fst == null) {
+            return null;
+        }
+        CharArrayMap<Integer> vocabulary = new CharArrayMap<>(1024, ignoreCase);
+        // trie with transitions in a map while building
+        List<Map<Integer, Integer>> children = new ArrayList<>();
+        List<BytesRef> ruleOutputs = new ArrayList<>();
+        children.add(new HashMap<>());
+        ruleOutputs.add(null);
+        WordIdFst.forEachRule(synonymMap, vocabulary, (input, output) -> {
+            int state = ROOT;
+            for (int i = input.offset; i < input.offset + input.length; i++) {
+                Integer target = children.get(state).get(input.ints[i]);
+                if (target == null) {
+                    target = children.size();
+                    children.get(state).put(input.ints[i], target);
+                    children.add(new HashMap<>());
+                    ruleOutputs.add(null);
+                }
+                state = target;
+            }
+            ruleOutputs.set(state, output);
+        });
+
+        int states = children.size();
+        int[] first = new int[states + 1];
+        int transitions = 0;
+        for (int state = 0; state < states; state++) {
+            first[state] = transitions;
+            transitions += children.get(state).size();
+        }
+        first[states] = transitions;
+        int[] labels = new int[transitions];
+        int[] targets = new int[transitions];
+        for (int state = 0; state < states; state++) {
+            int[] sorted = new int[children.get(state).size()];
+            int upto = 0;
+            for (int label : children.get(state).keySet()) {
+                sorted[upto++] = label;
+            }
+            Arrays.sort(sorted);
+            for (int i = 0; i < sorted.length; i++) {
+                labels[first[state] + i] = sorted[i];
+                targets[first[state] + i] = children.get(state).get(sorted[i]);
+            }
+        }
+
+        // breadth first, so the failure state of a state is always done
+        // before the state itself
+        int[] depth = new int[states];
+        int[] fail = new int[states];
+        int[] outputLink = new int[states];
+        BytesRef[] outputs = ruleOutputs.toArray(new BytesRef[0]);
+        outputLink[ROOT] = -1;
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        AhoCorasickSynonyms automaton = new AhoCorasickSynonyms(vocabulary, first, labels, targets,
+                depth, fail, outputLink, outputs);
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = first[state]; i < first[state + 1]; i++) {
+                int target = targets[i];
+                depth[target] = depth[state] + 1;
+                fail[target] = state == ROOT ? ROOT : automaton.next(fail[state], labels[i]);
+                int failure = fail[target];
+                outputLink[target] = outputs[failure] != null ? failure : outputLink[failure];
+                queue[tail++] = target;
+            }
+        }
+        assert tail == states;
+        return automaton;
+    }
+}
@@ -0,0 +1,214 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.OffHeapFSTStore;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary form of a {@link SynonymMap}, produced offline by
+ * {@link SynonymCompiler} so nodes can load a dictionary without parsing and
+ * analyzing its rules.
+ *
+ * <p>
+ * The file is a Lucene codec header, the {@link Metadata} the map was built
+ * with, the output words in id order with a table of their offsets, the FST
+ * and a checksum footer. The layout allows reading the FST and the words
+ * straight from the mapped file, see {@link OffHeapSynonymMap}.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class CompiledSynonymMap {
+
+    static final String CODEC = "dynamic_synonym_map";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+
+    private final SynonymMap synonymMap;
+
+    private final Metadata metadata;
+
+    private CompiledSynonymMap(SynonymMap synonymMap, Metadata metadata) {
+        this.synonymMap = synonymMap;
+        this.metadata = metadata;
+    }
+
+    SynonymMap getSynonymMap() {
+        return synonymMap;
+    }
+
+    Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Describes the analysis a compiled map was built with, a filter only
+     * loads it if its own settings describe the same.
+     */
+    static final class Metadata {
+        final String analyzerFingerprint;
+        final String format;
+        final boolean expand;
+        final long rules;
+        final long sourceChecksum;
+
+        Metadata(String analyzerFingerprint, String format, boolean expand,
+                 long rules, long sourceChecksum) {
+            this.analyzerFingerprint = analyzerFingerprint;
+            this.format = format;
+            this.expand = expand;
+            this.rules = rules;
+            this.sourceChecksum = sourceChecksum;
+        }
+
+        /**
+         * @throws IllegalArgumentException if a map built with this metadata
+         *                                  cannot be used with the expected one
+         */
+        void ensureCompatible(Metadata expected, Path path) {
+            if (!analyzerFingerprint.equals(expected.analyzerFingerprint)) {
+                throw new IllegalArgumentException("compiled synonyms " + path + " were built with analyzer ["
+                        + analyzerFingerprint + "] but the filter uses [" + expected.analyzerFingerprint + "]");
+            }
+            if (!format.equalsIgnoreCase(expected.format) || expand != expected.expand) {
+                throw new IllegalArgumentException("compiled synonyms " + path + " were built with format ["
+                        + format + "] and expand [" + expand + "] but the filter uses format ["
+                        + expected.format + "] and expand [" + expected.expand + "]");
+            }
+        }
+    }
+
+    /**
+     * Identifies the analysis chain used to parse the rules. Any change to
+     * the tokenizer or its settings or to case folding invalidates a
+     * compiled map.
+     */
+    static String analyzerFingerprint(String tokenizer, Settings tokenizerSettings, boolean ignoreCase) {
+        return "tokenizer=" + tokenizer + tokenizerSettings + ",ignore_case=" + ignoreCase;
+    }
+
+    /**
+     * @return true if the file starts with the codec header of a compiled map
+     * rather than synonym rules
+     */
+    static boolean isCompiled(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return Files.size(path) >= 4 && new DataInputStream(in).readInt() == CodecUtil.CODEC_MAGIC;
+        }
+    }
+
+    static void write(Path path, SynonymMap synonymMap, Metadata metadata) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (IndexOutput out = new OutputStreamIndexOutput(tmp.toString(), path.getFileName().toString(),
+                Files.newOutputStream(tmp), 8192)) {
+            CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+            out.writeString(metadata.analyzerFingerprint);
+            out.writeString(metadata.format);
+            out.writeByte((byte) (metadata.expand ? 1 : 0));
+            out.writeVLong(metadata.rules);
+            out.writeLong(metadata.sourceChecksum);
+
+            out.writeVInt(synonymMap.maxHorizontalContext);
+            SynonymWords words = OffHeapSynonymMap.words(synonymMap);
+            BytesRef scratch = new BytesRef();
+            BytesRefBuilder buffer = new BytesRefBuilder();
+            out.writeVInt(words.size());
+            long offset = 0;
+            for (int id = 0; id < words.size(); id++) {
+                out.writeLong(offset);
+                offset += words.get(id, scratch, buffer).length;
+            }
+            out.writeLong(offset);
+            for (int id = 0; id < words.size(); id++) {
+                BytesRef word = words.get(id, scratch, buffer);
+                out.writeBytes(word.bytes, word.offset, word.length);
+            }
+            if (synonymMap.fst == null) {
+                out.writeByte((byte) 0);
+            } else {
+                out.writeByte((byte) 1);
+                synonymMap.fst.save(out);
+            }
+            CodecUtil.writeFooter(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory maps the file and reads the map, verifying the checksum and
+     * that it was built for the expected analysis.
+     *
+     * @param offHeap keep the FST and the words in the mapped file instead of
+     *                copying them to the heap
+     */
+    static CompiledSynonymMap read(Path path, Metadata expected, boolean offHeap) throws IOException {
+        IndexInput in;
+        try (Directory dir = new MMapDirectory(path.toAbsolutePath().getParent())) {
+            in = dir.openInput(path.getFileName().toString(), IOContext.READ);
+        }
+        boolean keepOpen = false;
+        try {
+            CodecUtil.checksumEntireFile(in);
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+            Metadata metadata = new Metadata(in.readString(), in.readString(), in.readByte() == 1,
+                    in.readVLong(), in.readLong());
+            metadata.ensureCompatible(expected, path);
+            int maxHorizontalContext = in.readVInt();
+
+            int count = in.readVInt();
+            long offsetsStart = in.getFilePointer();
+            long bytesStart = offsetsStart + (count + 1L) * Long.BYTES;
+            RandomAccessInput offsets = in.randomAccessSlice(offsetsStart, bytesStart - offsetsStart);
+            long bytesLength = offsets.readLong((long) count * Long.BYTES);
+            SynonymWords words = SynonymWords.offHeap(count, offsets, in.randomAccessSlice(bytesStart, bytesLength));
+            in.seek(bytesStart + bytesLength);
+            boolean hasFst = in.readByte() == 1;
+            SynonymMap synonymMap;
+            if (offHeap) {
+                FST<BytesRef> fst = hasFst ? new FST<>(in, ByteSequenceOutputs.getSingleton(), new OffHeapFSTStore()) : null;
+                synonymMap = new OffHeapSynonymMap(fst, words, maxHorizontalContext);
+                // the map keeps reading from the input
+                keepOpen = true;
+            } else {
+                FST<BytesRef> fst = hasFst ? new FST<>(in, ByteSequenceOutputs.getSingleton()) : null;
+                synonymMap = new SynonymMap(fst, copyToHeap(words), maxHorizontalContext);
+            }
+            return new CompiledSynonymMap(synonymMap, metadata);
+        } finally {
+            if (!keepOpen) {
+                IOUtils.closeWhileHandlingException(in);
+            }
+        }
+    }
+
+    private static BytesRefHash copyToHeap(SynonymWords words) throws IOException {
+        BytesRefHash hash = new BytesRefHash();
+        BytesRef scratch = new BytesRef();
+        BytesRefBuilder buffer = new BytesRefBuilder();
+        for (int id = 0; id < words.size(); id++) {
+            hash.add(words.get(id, scratch, buffer));
+        }
+        return hash;
+    }
+}
@@ -73,31 +73,39 @@ import java.util.Arrays;
  * simply pass through and are not parsed. A future improvement would be to
  * allow these tokens to also be matched.
  * </p>
+ *
+ * <p>
+ * The synonym map is read from a {@link SynonymSource} and only switched to a
+ * newer {@link SynonymSnapshot} in {@link #reset()}, so a reload never changes
+ * the rules under a stream that is being consumed.
+ * </p>
+ *
+ * <p>
+ * If the snapshot carries a {@link WordIdFst}, tokens are resolved to word ids
+ * and the FST is walked one token per arc instead of one character per arc.
+ * If it carries an {@link AhoCorasickSynonyms} automaton, every token is fed
+ * to it exactly once and the longest match starting at a position is known as
+ * soon as no longer match can start there anymore, instead of restarting the
+ * FST walk at every position. Both resolve conflicts the same greedy way.
+ * If it carries {@link SingleWordSynonyms}, the first token is looked up in
+ * their hash table, which holds the outputs of the single word rules, and
+ * only tokens that start longer rules are walked in the FST of those rules.
+ * </p>
+ *
+ * <p>
+ * While nothing is buffered, a token the snapshot's {@link SynonymFirstWords}
+ * rejects cannot start a match and is returned as is, without looking it up.
+ * </p>
+ *
+ * <p>
+ * With {@link SynonymLayers} the FSTs of all layers are walked along the same
+ * tokens, each token is read once. Among the rules ending at a token the one
+ * of the top-most layer applies, or none if it is a tombstone, and the longest
+ * applying rule wins as usual. This matches exactly like the merged map the
+ * layers are compacted into.
+ * </p>
  */
 
-// TODO: maybe we should resolve token -> wordID then run
-// FST on wordIDs, for better perf?
-
-// TODO: a more efficient approach would be Aho/Corasick's
-// algorithm
-// http://en.wikipedia.org/wiki/Aho%E2%80%93Corasick_string_matching_algorithm
-// It improves over the current approach here
-// because it does not fully re-start matching at every
-// token. For example if one pattern is "a b c x"
-// and another is "b c d" and the input is "a b c d", on
-// trying to parse "a b c x" but failing when you got to x,
-// rather than starting over again your really should
-// immediately recognize that "b c d" matches at the next
-// input. I suspect this won't matter that much in
-// practice, but it's possible on some set of synonyms it
-// will. We'd have to modify Aho/Corasick to enforce our
-// conflict resolving (eg greedy matching) because that algo
-// finds all matches. This really amounts to adding a .*
-// closure to the FST and then determinizing it.
-//
-// Another possible solution is described at
-// http://www.cis.uni-muenchen.de/people/Schulz/Pub/dictle5.ps
-
 public final class DynamicSynonymFilter extends TokenFilter {
 
     private static final String TYPE_SYNONYM = "SYNONYM";
@@ -111,8 +119,25 @@ public final class DynamicSynonymFilter extends TokenFilter {
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
     private final ByteArrayDataInput bytesReader = new ByteArrayDataInput();
     private final BytesRef scratchBytes = new BytesRef();
+    private final BytesRefBuilder scratchBuffer = new BytesRefBuilder();
     private final CharsRefBuilder scratchChars = new CharsRefBuilder();
+    // Outputs accumulated along the FST path, appended to instead of
+    // adding outputs, which allocates:
+    private final BytesRefBuilder pendingOutput = new BytesRefBuilder();
+    private final BytesRefBuilder matchOutput = new BytesRefBuilder();
+    private final SynonymSource synonymSource;
+    // Null unless the map is stacked from several sources:
+    private final SynonymLayers layers;
+    private SynonymLayers.View view;
+    // Layers walked together, base first, null if a single map is
+    // walked:
+    private Layer[] stack;
+    private final BytesRefBuilder layerOutput = new BytesRefBuilder();
+    private SynonymSnapshot snapshot;
     private SynonymMap synonyms;
+    private SynonymWords words;
+    // Null unless the map stores equivalence classes:
+    private SynonymClassMap classes;
     private int rollBufferSize;
 
     private int captureCount;
@@ -121,10 +146,24 @@ public final class DynamicSynonymFilter extends TokenFilter {
     // try to do any more matching for such tokens:
     private int inputSkipCount;
 
-    // Rolling buffer, holding pending input tokens we had to
-    // clone because we needed to look ahead, indexed by
-    // position:
-    private PendingInput[] futureInputs;
+    // Rolling buffers, holding pending input tokens we had to
+    // keep because we needed to look ahead, indexed by position.
+    // They are allocated for the largest map used so far and only
+    // the first rollBufferSize positions are used. The term at
+    // position p is at p * termStride in termSlab:
+    private char[] termSlab;
+    private int termStride = 16;
+    private int[] termLengths;
+    private int[] inputStartOffsets;
+    private int[] inputEndOffsets;
+    private boolean[] inputKeepOrig;
+    private boolean[] inputMatched;
+    private boolean[] inputConsumed;
+    // True if the attributes of the token were copied to
+    // savedAttributes, clones of ours kept from token to token
+    // instead of capturing a new state:
+    private boolean[] inputSaved;
+    private AttributeSource[] savedAttributes;
     // Rolling buffer, holding stack of pending synonym
     // outputs, indexed by position:
     private PendingOutputs[] futureOutputs;
@@ -138,14 +177,47 @@ public final class DynamicSynonymFilter extends TokenFilter {
     // True once we've read last token
     private boolean finished;
 
-    private FST.Arc<BytesRef> scratchArc;
+    private final FST.Arc<BytesRef> scratchArc = new FST.Arc<>();
 
     private FST<BytesRef> fst;
 
+    private WordIdFst wordIds;
+
+    private AhoCorasickSynonyms ahoCorasick;
+
+    private SingleWordSynonyms singleWords;
+
+    // Entry of the token pulled by the fast path, -1 if not
+    // looked up yet:
+    private int pulledWord = -1;
+
+    private SynonymFirstWords firstWords;
+
+    // True if incrementToken already pulled the input token that
+    // parsing must start with:
+    private boolean pulled;
+
+    // Automaton state after the tokens fed so far:
+    private int ahoCorasickState;
+
+    // Where (in rolling buffers) the next token to feed to the
+    // automaton is:
+    private int nextFeed;
+
+    // True if the token at nextRead was fed but neither captured
+    // nor counted by nextWrite yet:
+    private boolean liveFed;
+
+    // Longest match found so far starting at each position of the
+    // rolling buffers, indexed like them:
+    private int[] matchLengths;
+    private BytesRef[] matchOutputs;
+    private int[] matchEndOffsets;
+
     private FST.BytesReader fstReader;
     /*
      * This is the core of this TokenFilter: it locates the synonym matches and
-     * buffers up the results into futureInputs/Outputs.
+     * buffers up the results into the rolling buffers.
      *
      * NOTE: this calls input.incrementToken and does not capture the state if
      * no further tokens were checked. So caller must then forward state to our
@@ -154,28 +226,61 @@ public final class DynamicSynonymFilter extends TokenFilter {
     private int lastStartOffset;
     private int lastEndOffset;
 
+    // Tokens and synonyms returned since the last reset, reported
+    // to the source at the end of the streams it samples:
+    private int streamTokens;
+    private int streamSynonyms;
+    private int streams;
+    private boolean sampled;
+
     /**
-     * @param input      input tokenstream
-     * @param synonyms   synonym map
-     * @param ignoreCase case-folds input for matching with
-     *                   {@link Character#toLowerCase(int)}. Note, if you set this to
-     *                   true, its your responsibility to lowercase the input entries
-     *                   when you create the {@link SynonymMap}
+     * @param input         input tokenstream
+     * @param synonymSource source of the current synonym map
+     * @param ignoreCase    case-folds input for matching with
+     *                      {@link Character#toLowerCase(int)}. Note, if you set this to
+     *                      true, its your responsibility to lowercase the input entries
+     *                      when you create the {@link SynonymMap}
      */
-    DynamicSynonymFilter(TokenStream input, SynonymMap synonyms,
+    DynamicSynonymFilter(TokenStream input, SynonymSource synonymSource,
                          boolean ignoreCase) {
         super(input);
+        this.synonymSource = synonymSource;
+        this.layers = null;
         this.ignoreCase = ignoreCase;
-        update(synonyms);
+        use(synonymSource.getSnapshot());
+    }
+
+    /**
+     * @param input      input tokenstream
+     * @param layers     sources stacked on top of each other
+     * @param ignoreCase case-folds input for matching, see above
+     */
+    DynamicSynonymFilter(TokenStream input, SynonymLayers layers, boolean ignoreCase) {
+        super(input);
+        this.synonymSource = layers.getBase();
+        this.layers = layers;
+        this.ignoreCase = ignoreCase;
+        use(layers.getView());
     }
 
     private void capture() {
         captureCount++;
-        final PendingInput input = futureInputs[nextWrite];
+        final int pos = nextWrite;
 
-        input.state = captureState();
-        input.consumed = false;
-        input.term.copyChars(termAtt.buffer(), 0, termAtt.length());
+        if (savedAttributes[pos] == null) {
+            savedAttributes[pos] = cloneAttributes();
+        } else {
+            try {
+                copyTo(savedAttributes[pos]);
+            } catch (IllegalArgumentException e) {
+                // An attribute was added to the stream since the
+                // copy was cloned:
+                savedAttributes[pos] = cloneAttributes();
+            }
+        }
+        inputSaved[pos] = true;
+        inputConsumed[pos] = false;
+        copyTerm(pos, termAtt.buffer(), termAtt.length());
 
         nextWrite = rollIncr(nextWrite);
 
@@ -183,29 +288,63 @@ public final class DynamicSynonymFilter extends TokenFilter {
         assert nextWrite != nextRead;
     }
 
+    private void copyTerm(int pos, char[] buffer, int length) {
+        if (length > termStride) {
+            // Spread the slab to fit the longer term:
+            final int stride = ArrayUtil.oversize(length, Character.BYTES);
+            final char[] slab = new char[termLengths.length * stride];
+            for (int upto = 0; upto < termLengths.length; upto++) {
+                System.arraycopy(termSlab, upto * termStride, slab, upto * stride, termLengths[upto]);
+            }
+            termSlab = slab;
+            termStride = stride;
+        }
+        System.arraycopy(buffer, 0, termSlab, pos * termStride, length);
+        termLengths[pos] = length;
+    }
+
+    private void resetInput(int pos) {
+        inputSaved[pos] = false;
+        inputConsumed[pos] = true;
+        inputKeepOrig[pos] = false;
+        inputMatched[pos] = false;
+    }
+
     private void parse() throws IOException {
 
         assert inputSkipCount == 0;
 
+        if (ahoCorasick != null) {
+            parseAhoCorasick();
+            return;
+        } else if (stack != null) {
+            parseLayers();
+            return;
+        }
+
         int curNextRead = nextRead;
 
         // Holds the longest match we've seen so far:
-        BytesRef matchOutput = null;
+        boolean matched = false;
         int matchInputLength = 0;
         int matchEndOffset = -1;
 
-        BytesRef pendingOutput = fst.outputs.getNoOutput();
+        pendingOutput.clear();
         fst.getFirstArc(scratchArc);
 
         assert scratchArc.output == fst.outputs.getNoOutput();
 
         int tokenCount = 0;
 
+        // Entry of the single word rule matched, -1 if none:
+        int matchWord = -1;
+
         byToken:
         while (true) {
 
             // Pull next token's chars:
             final char[] buffer;
+            final int bufferOffset;
             final int bufferLen;
 
             int inputEndOffset = 0;
@@ -217,22 +356,22 @@ public final class DynamicSynonymFilter extends TokenFilter {
                 if (finished) {
                     break;
                 } else {
-                    assert futureInputs[nextWrite].consumed;
+                    assert inputConsumed[nextWrite];
                     // Not correct: a syn match whose output is longer
                     // than its input can set future inputs keepOrig
                     // to true:
-                    if (input.incrementToken()) {
+                    if (nextInputToken()) {
                         buffer = termAtt.buffer();
+                        bufferOffset = 0;
                         bufferLen = termAtt.length();
-                        final PendingInput input = futureInputs[nextWrite];
-                        lastStartOffset = input.startOffset = offsetAtt
+                        lastStartOffset = inputStartOffsets[nextWrite] = offsetAtt
                                 .startOffset();
-                        lastEndOffset = input.endOffset = offsetAtt.endOffset();
-                        inputEndOffset = input.endOffset;
+                        lastEndOffset = inputEndOffsets[nextWrite] = offsetAtt.endOffset();
+                        inputEndOffset = lastEndOffset;
                         if (nextRead != nextWrite) {
                             capture();
                         } else {
-                            input.consumed = false;
+                            inputConsumed[nextWrite] = false;
                         }
 
                     } else {
@@ -243,42 +382,79 @@ public final class DynamicSynonymFilter extends TokenFilter {
                 }
             } else {
                 // Still in our lookahead
-                buffer = futureInputs[curNextRead].term.chars();
-                bufferLen = futureInputs[curNextRead].term.length();
-                inputEndOffset = futureInputs[curNextRead].endOffset;
+                buffer = termSlab;
+                bufferOffset = curNextRead * termStride;
+                bufferLen = termLengths[curNextRead];
+                inputEndOffset = inputEndOffsets[curNextRead];
             }
 
             tokenCount++;
 
-            // Run each char in this token through the FST:
-            int bufUpto = 0;
-            while (bufUpto < bufferLen) {
-                final int codePoint = Character.codePointAt(buffer, bufUpto,
-                        bufferLen);
-                if (fst.findTargetArc(
-                        ignoreCase ? Character.toLowerCase(codePoint)
-                                : codePoint, scratchArc, scratchArc, fstReader) == null) {
+            if (singleWords != null && tokenCount == 1) {
+                // One probe decides about the single word rule and
+                // whether any longer rule starts here:
+                final int word = pulledWord != -1 ? pulledWord
+                        : singleWords.find(buffer, bufferOffset, bufferLen);
+                pulledWord = -1;
+                if (word == -1) {
+                    break;
+                }
+                if (singleWords.hasOutput(word)) {
+                    matchWord = word;
+                    matchEndOffset = inputEndOffset;
+                }
+                if (!singleWords.startsPhrase(word)) {
+                    break;
+                }
+            }
+
+            if (wordIds != null) {
+                // Run the whole token through the FST:
+                final int wordId = wordIds.wordId(buffer, bufferOffset, bufferLen);
+                if (wordId == -1
+                        || fst.findTargetArc(wordId, scratchArc, scratchArc, fstReader) == null) {
                     break byToken;
                 }
+                pendingOutput.append(scratchArc.output);
+            } else {
+                // Run each char in this token through the FST:
+                final int bufferEnd = bufferOffset + bufferLen;
+                int bufUpto = bufferOffset;
+                while (bufUpto < bufferEnd) {
+                    final int codePoint = Character.codePointAt(buffer, bufUpto,
+                            bufferEnd);
+                    if (fst.findTargetArc(
+                            ignoreCase ? Character.toLowerCase(codePoint)
+                                    : codePoint, scratchArc, scratchArc, fstReader) == null) {
+                        break byToken;
+                    }
 
-                // Accum the output
-                pendingOutput = fst.outputs.add(pendingOutput,
-                        scratchArc.output);
-                bufUpto += Character.charCount(codePoint);
+                    // Accum the output
+                    pendingOutput.append(scratchArc.output);
+                    bufUpto += Character.charCount(codePoint);
+                }
             }
 
             // OK, entire token matched; now see if this is a final
             // state:
             if (scratchArc.isFinal()) {
-                matchOutput = fst.outputs.add(pendingOutput,
-                        scratchArc.nextFinalOutput);
+                matchOutput.copyBytes(pendingOutput);
+                matchOutput.append(scratchArc.nextFinalOutput);
+                matched = true;
                 matchInputLength = tokenCount;
                 matchEndOffset = inputEndOffset;
             }
 
             // See if the FST wants to continue matching (ie, needs to
             // see the next input token):
-            if (fst.findTargetArc(SynonymMap.WORD_SEPARATOR, scratchArc,
+            if (wordIds != null) {
+                // Words follow each other without a separator arc:
+                if (!FST.targetHasArcs(scratchArc)) {
+                    break;
+                } else if (nextRead == nextWrite) {
+                    capture();
+                }
+            } else if (fst.findTargetArc(SynonymMap.WORD_SEPARATOR, scratchArc,
                     scratchArc, fstReader) == null) {
                 // No further rules can match here; we're done
                 // searching for matching rules starting at the
@@ -287,8 +463,7 @@ public final class DynamicSynonymFilter extends TokenFilter {
             } else {
                 // More matching is possible -- accum the output (if
                 // any) of the WORD_SEP arc:
-                pendingOutput = fst.outputs.add(pendingOutput,
-                        scratchArc.output);
+                pendingOutput.append(scratchArc.output);
                 if (nextRead == nextWrite) {
                     capture();
                 }
@@ -301,9 +476,14 @@ public final class DynamicSynonymFilter extends TokenFilter {
             nextWrite = rollIncr(nextWrite);
         }
 
-        if (matchOutput != null) {
+        if (matched) {
             inputSkipCount = matchInputLength;
-            addOutput(matchOutput, matchInputLength, matchEndOffset);
+            addOutput(matchOutput.get(), words, classes, matchInputLength, matchEndOffset);
+        } else if (matchWord != -1) {
+            // Rules in the FST are longer, only applies if none of
+            // them matched:
+            inputSkipCount = 1;
+            addOutput(matchWord, matchEndOffset);
         } else if (nextRead != nextWrite) {
             // Even though we had no match here, we set to 1
             // because we need to skip current input token before
@@ -315,63 +495,406 @@ public final class DynamicSynonymFilter extends TokenFilter {
 
     }
 
+    /*
+     * Same contract as parse(), but tokens already fed to the automaton are
+     * not read again: feeds tokens until the longest match starting at
+     * nextRead is known, which is the case once the automaton state, the
+     * longest suffix still starting a rule, begins after nextRead or cannot
+     * be extended.
+     */
+    private void parseAhoCorasick() throws IOException {
+
+        while (true) {
+            final int fed = rollDistance(nextRead, nextFeed);
+            final int depth = ahoCorasick.depth(ahoCorasickState);
+            if (fed > 0 && (fed > depth || !ahoCorasick.hasTransitions(ahoCorasickState))) {
+                break;
+            }
+
+            final char[] buffer;
+            final int bufferOffset;
+            final int bufferLen;
+            if (nextFeed == (liveFed ? rollIncr(nextWrite) : nextWrite)) {
+                // Everything buffered was fed -- pull next real input
+                // token:
+                if (finished) {
+                    break;
+                }
+                if (liveFed) {
+                    // Need to look further, keep the token at nextRead:
+                    capture();
+                    liveFed = false;
+                }
+                assert inputConsumed[nextWrite];
+                if (!nextInputToken()) {
+                    // No more input tokens
+                    finished = true;
+                    break;
+                }
+                buffer = termAtt.buffer();
+                bufferOffset = 0;
+                bufferLen = termAtt.length();
+                lastStartOffset = inputStartOffsets[nextWrite] = offsetAtt.startOffset();
+                lastEndOffset = inputEndOffsets[nextWrite] = offsetAtt.endOffset();
+                if (nextRead != nextWrite) {
+                    capture();
+                } else {
+                    inputConsumed[nextWrite] = false;
+                    liveFed = true;
+                }
+            } else {
+                // Still in our lookahead
+                buffer = termSlab;
+                bufferOffset = nextFeed * termStride;
+                bufferLen = termLengths[nextFeed];
+            }
+
+            ahoCorasickState = ahoCorasick.next(ahoCorasickState,
+                    ahoCorasick.wordId(buffer, bufferOffset, bufferLen));
+            // Record the rules ending at this token for the position
+            // they start at:
+            for (int state = ahoCorasick.firstOutput(ahoCorasickState); state != -1;
+                 state = ahoCorasick.nextOutput(state)) {
+                final int length = ahoCorasick.depth(state);
+                final int start = (nextFeed - length + 1 + rollBufferSize) % rollBufferSize;
+                if (length > matchLengths[start]) {
+                    matchLengths[start] = length;
+                    matchOutputs[start] = ahoCorasick.output(state);
+                    matchEndOffsets[start] = inputEndOffsets[nextFeed];
+                }
+            }
+            nextFeed = rollIncr(nextFeed);
+        }
+
+        if (liveFed) {
+            nextWrite = rollIncr(nextWrite);
+            liveFed = false;
+        }
+
+        final int matchInputLength = matchLengths[nextRead];
+        if (matchInputLength > 0) {
+            final BytesRef matchOutput = matchOutputs[nextRead];
+            final int matchEndOffset = matchEndOffsets[nextRead];
+            // Greedy: nothing may start inside the match, forget the
+            // matches found there and the prefixes starting there:
+            int upto = nextRead;
+            for (int idx = 0; idx < matchInputLength; idx++) {
+                matchLengths[upto] = 0;
+                matchOutputs[upto] = null;
+                upto = rollIncr(upto);
+            }
+            final int fed = rollDistance(nextRead, nextFeed);
+            while (fed - ahoCorasick.depth(ahoCorasickState) < matchInputLength) {
+                ahoCorasickState = ahoCorasick.fail(ahoCorasickState);
+            }
+            inputSkipCount = matchInputLength;
+            addOutput(matchOutput, words, classes, matchInputLength, matchEndOffset);
+        } else if (nextRead != nextWrite) {
+            inputSkipCount = 1;
+        } else {
+            assert finished;
+        }
+    }
+
+    /*
+     * Same contract as parse(), walking the FSTs of all layers along the
+     * same tokens until none of them can match any further.
+     */
+    private void parseLayers() throws IOException {
+
+        int curNextRead = nextRead;
+
+        // Holds the longest match we've seen so far:
+        boolean matched = false;
+        int matchInputLength = 0;
+        int matchEndOffset = -1;
+        SynonymWords matchWords = null;
+        SynonymClassMap matchClasses = null;
+
+        boolean alive = false;
+        for (Layer layer : stack) {
+            if (layer.fst != null) {
+                layer.pending.clear();
+                layer.fst.getFirstArc(layer.arc);
+                layer.alive = true;
+                alive = true;
+            }
+        }
+
+        int tokenCount = 0;
+
+        while (alive) {
+
+            // Pull next token's chars:
+            final char[] buffer;
+            final int bufferOffset;
+            final int bufferLen;
+
+            int inputEndOffset = 0;
+
+            if (curNextRead == nextWrite) {
+
+                // We used up our lookahead buffer of input tokens
+                // -- pull next real input token:
+                if (finished) {
+                    break;
+                } else {
+                    assert inputConsumed[nextWrite];
+                    if (nextInputToken()) {
+                        buffer = termAtt.buffer();
+                        bufferOffset = 0;
+                        bufferLen = termAtt.length();
+                        lastStartOffset = inputStartOffsets[nextWrite] = offsetAtt
+                                .startOffset();
+                        lastEndOffset = inputEndOffsets[nextWrite] = offsetAtt.endOffset();
+                        inputEndOffset = lastEndOffset;
+                        if (nextRead != nextWrite) {
+                            capture();
+                        } else {
+                            inputConsumed[nextWrite] = false;
+                        }
+                    } else {
+                        // No more input tokens
+                        finished = true;
+                        break;
+                    }
+                }
+            } else {
+                // Still in our lookahead
+                buffer = termSlab;
+                bufferOffset = curNextRead * termStride;
+                bufferLen = termLengths[curNextRead];
+                inputEndOffset = inputEndOffsets[curNextRead];
+            }
+
+            tokenCount++;
+
+            // Run the token through every layer still matching, the
+            // top-most one ending a rule here decides about this length:
+            Layer top = null;
+            for (int idx = stack.length - 1; idx >= 0; idx--) {
+                final Layer layer = stack[idx];
+                if (layer.alive && walk(layer, buffer, bufferOffset, bufferLen)
+                        && top == null && layer.arc.isFinal()) {
+                    top = layer;
+                }
+            }
+            if (top != null) {
+                layerOutput.copyBytes(top.pending);
+                layerOutput.append(top.arc.nextFinalOutput);
+                if (!top.overlay || !isTombstone(layerOutput.get(), top.words, tokenCount,
+                        buffer, bufferOffset, bufferLen)) {
+                    matchOutput.copyBytes(layerOutput);
+                    matched = true;
+                    matchInputLength = tokenCount;
+                    matchEndOffset = inputEndOffset;
+                    matchWords = top.words;
+                    matchClasses = top.classes;
+                }
+            }
+
+            // See if any layer wants to see the next input token:
+            alive = false;
+            for (Layer layer : stack) {
+                if (!layer.alive) {
+                    continue;
+                }
+                if (layer.fst.findTargetArc(SynonymMap.WORD_SEPARATOR, layer.arc,
+                        layer.arc, layer.reader) == null) {
+                    layer.alive = false;
+                } else {
+                    layer.pending.append(layer.arc.output);
+                    alive = true;
+                }
+            }
+            if (alive && nextRead == nextWrite) {
+                capture();
+            }
+
+            curNextRead = rollIncr(curNextRead);
+        }
+
+        if (nextRead == nextWrite && !finished) {
+            nextWrite = rollIncr(nextWrite);
+        }
+
+        if (matched) {
+            inputSkipCount = matchInputLength;
+            addOutput(matchOutput.get(), matchWords, matchClasses, matchInputLength, matchEndOffset);
+        } else if (nextRead != nextWrite) {
+            inputSkipCount = 1;
+        } else {
+            assert finished;
+        }
+    }
+
+    // Runs each char of the token through the layer's FST, false
+    // (and the layer is done) if it has no rule going on with it:
+    private boolean walk(Layer layer, char[] buffer, int bufferOffset, int bufferLen) throws IOException {
+        final int bufferEnd = bufferOffset + bufferLen;
+        int bufUpto = bufferOffset;
+        while (bufUpto < bufferEnd) {
+            final int codePoint = Character.codePointAt(buffer, bufUpto, bufferEnd);
+            if (layer.fst.findTargetArc(ignoreCase ? Character.toLowerCase(codePoint) : codePoint,
+                    layer.arc, layer.arc, layer.reader) == null) {
+                layer.alive = false;
+                return false;
+            }
+            layer.pending.append(layer.arc.output);
+            bufUpto += Character.charCount(codePoint);
+        }
+        return true;
+    }
+
+    // True if the output maps the matched tokens to themselves and
+    // nothing else. The last of the tokens is in the given buffer,
+    // the ones before it were captured:
+    private boolean isTombstone(BytesRef output, SynonymWords words, int tokenCount,
+                                char[] buffer, int bufferOffset, int bufferLen) throws IOException {
+        bytesReader.reset(output.bytes, output.offset, output.length);
+        final int code = bytesReader.readVInt();
+        if (code >>> 1 != 1 || (code & 0x1) == 0) {
+            return false;
+        }
+        scratchChars.copyUTF8Bytes(words.get(bytesReader.readVInt(), scratchBytes, scratchBuffer));
+        final char[] chars = scratchChars.chars();
+        final int charsEnd = scratchChars.length();
+        int chUpto = 0;
+        int upto = nextRead;
+        for (int idx = 0; idx < tokenCount; idx++) {
+            final char[] token;
+            int tokenUpto;
+            final int tokenEnd;
+            if (idx == tokenCount - 1) {
+                token = buffer;
+                tokenUpto = bufferOffset;
+                tokenEnd = bufferOffset + bufferLen;
+            } else {
+                token = termSlab;
+                tokenUpto = upto * termStride;
+                tokenEnd = tokenUpto + termLengths[upto];
+            }
+            if (idx > 0 && (chUpto == charsEnd || chars[chUpto++] != SynonymMap.WORD_SEPARATOR)) {
+                return false;
+            }
+            while (tokenUpto < tokenEnd) {
+                final int codePoint = Character.codePointAt(token, tokenUpto, tokenEnd);
+                if (chUpto == charsEnd || Character.codePointAt(chars, chUpto, charsEnd)
+                        != (ignoreCase ? Character.toLowerCase(codePoint) : codePoint)) {
+                    return false;
+                }
+                tokenUpto += Character.charCount(codePoint);
+                chUpto += Character.charCount(codePoint);
+            }
+            upto = rollIncr(upto);
+        }
+        return chUpto == charsEnd;
+    }
+
+    private boolean nextInputToken() throws IOException {
+        if (pulled) {
+            pulled = false;
+            return true;
+        }
+        return input.incrementToken();
+    }
+
     // Interleaves all output tokens onto the futureOutputs:
-    private void addOutput(BytesRef bytes, int matchInputLength,
-                           int matchEndOffset) {
+    private void addOutput(BytesRef bytes, SynonymWords words, SynonymClassMap classes,
+                           int matchInputLength, int matchEndOffset) throws IOException {
         bytesReader.reset(bytes.bytes, bytes.offset, bytes.length);
 
         final int code = bytesReader.readVInt();
         final boolean keepOrig = (code & 0x1) == 0;
-        final int count = code >>> 1;
+        int count = code >>> 1;
+        // A count of 0 refers to an equivalence class, whose word
+        // ids are read from the map instead of the output, less the
+        // one at position skip:
+        int classStart = -1;
+        int skip = Integer.MAX_VALUE;
+        if (count == 0) {
+            final int classRef = bytesReader.readVInt();
+            classStart = classes.classStarts[classRef >>> 1];
+            count = classes.classStarts[(classRef >>> 1) + 1] - classStart;
+            if ((classRef & 0x1) != 0) {
+                skip = bytesReader.readVInt();
+                count--;
+            }
+        }
         for (int outputIDX = 0; outputIDX < count; outputIDX++) {
-            synonyms.words.get(bytesReader.readVInt(), scratchBytes);
-            scratchChars.copyUTF8Bytes(scratchBytes);
-            int lastStart = 0;
-            final int chEnd = lastStart + scratchChars.length();
-            int outputUpto = nextRead;
-            for (int chIDX = lastStart; chIDX <= chEnd; chIDX++) {
-                if (chIDX == chEnd
-                        || scratchChars.charAt(chIDX) == SynonymMap.WORD_SEPARATOR) {
-                    final int outputLen = chIDX - lastStart;
-                    // Caller is not allowed to have empty string in
-                    // the output:
-                    assert outputLen > 0 : "output contains empty string: "
-                            + scratchChars;
-                    final int endOffset;
-                    final int posLen;
-                    if (chIDX == chEnd && lastStart == 0) {
-                        // This rule had a single output token, so, we set
-                        // this output's endOffset to the current
-                        // endOffset (ie, endOffset of the last input
-                        // token it matched):
-                        endOffset = matchEndOffset;
-                        posLen = keepOrig ? matchInputLength : 1;
-                    } else {
-                        // This rule has more than one output token; we
-                        // can't pick any particular endOffset for this
-                        // case, so, we inherit the endOffset for the
-                        // input token which this output overlaps:
-                        endOffset = -1;
-                        posLen = 1;
-                    }
-                    futureOutputs[outputUpto].add(scratchChars.chars(),
-                            lastStart, outputLen, endOffset, posLen);
-                    lastStart = 1 + chIDX;
-                    outputUpto = rollIncr(outputUpto);
-                    assert futureOutputs[outputUpto].posIncr == 1 : "outputUpto="
-                            + outputUpto + " vs nextWrite=" + nextWrite;
+            final int ord = classStart == -1 ? bytesReader.readVInt()
+                    : classes.classOrds[classStart + (outputIDX < skip ? outputIDX : outputIDX + 1)];
+            addOutputWord(words, ord, keepOrig, matchInputLength, matchEndOffset);
+        }
+        markMatched(keepOrig, matchInputLength);
+    }
+
+    // Same for a single word rule, whose word ids are precomputed:
+    private void addOutput(int word, int matchEndOffset) throws IOException {
+        final boolean keepOrig = singleWords.keepOrig(word);
+        final int count = singleWords.outputCount(word);
+        for (int outputIDX = 0; outputIDX < count; outputIDX++) {
+            addOutputWord(words, singleWords.outputOrd(word, outputIDX), keepOrig, 1, matchEndOffset);
+        }
+        markMatched(keepOrig, 1);
+    }
+
+    private void addOutputWord(SynonymWords words, int ord, boolean keepOrig,
+                               int matchInputLength, int matchEndOffset) throws IOException {
+        scratchChars.copyUTF8Bytes(words.get(ord, scratchBytes, scratchBuffer));
+        int lastStart = 0;
+        final int chEnd = lastStart + scratchChars.length();
+        int outputUpto = nextRead;
+        for (int chIDX = lastStart; chIDX <= chEnd; chIDX++) {
+            if (chIDX == chEnd
+                    || scratchChars.charAt(chIDX) == SynonymMap.WORD_SEPARATOR) {
+                final int outputLen = chIDX - lastStart;
+                // Caller is not allowed to have empty string in
+                // the output:
+                assert outputLen > 0 : "output contains empty string: "
+                        + scratchChars;
+                final int endOffset;
+                final int posLen;
+                if (chIDX == chEnd && lastStart == 0) {
+                    // This rule had a single output token, so, we set
+                    // this output's endOffset to the current
+                    // endOffset (ie, endOffset of the last input
+                    // token it matched):
+                    endOffset = matchEndOffset;
+                    posLen = keepOrig ? matchInputLength : 1;
+                } else {
+                    // This rule has more than one output token; we
+                    // can't pick any particular endOffset for this
+                    // case, so, we inherit the endOffset for the
+                    // input token which this output overlaps:
+                    endOffset = -1;
+                    posLen = 1;
                 }
+                futureOutputs[outputUpto].add(scratchChars.chars(),
+                        lastStart, outputLen, endOffset, posLen);
+                lastStart = 1 + chIDX;
+                outputUpto = rollIncr(outputUpto);
+                assert futureOutputs[outputUpto].posIncr == 1 : "outputUpto="
+                        + outputUpto + " vs nextWrite=" + nextWrite;
             }
         }
+    }
 
+    private void markMatched(boolean keepOrig, int matchInputLength) {
         int upto = nextRead;
         for (int idx = 0; idx < matchInputLength; idx++) {
-            futureInputs[upto].keepOrig |= keepOrig;
-            futureInputs[upto].matched = true;
+            inputKeepOrig[upto] |= keepOrig;
+            inputMatched[upto] = true;
             upto = rollIncr(upto);
         }
     }
 
+    // Number of positions from one index of the rolling buffers to
+    // another:
+    private int rollDistance(int from, int to) {
+        return (to - from + rollBufferSize) % rollBufferSize;
+    }
+
     // ++ mod rollBufferSize
     private int rollIncr(int count) {
         count++;
@@ -384,6 +907,19 @@ public final class DynamicSynonymFilter extends TokenFilter {
 
     @Override
     public boolean incrementToken() throws IOException {
+        if (nextToken()) {
+            streamTokens++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean nextToken() throws IOException {
+
+        if (fst == null) {
+            // No synonyms in the current snapshot:
+            return input.incrementToken();
+        }
 
         while (true) {
 
@@ -394,23 +930,20 @@ public final class DynamicSynonymFilter extends TokenFilter {
                 // At each position, we first output the original
                 // token
 
-                // TODO: maybe just a PendingState class, holding
-                // both input & outputs?
-                final PendingInput input = futureInputs[nextRead];
                 final PendingOutputs outputs = futureOutputs[nextRead];
 
-                if (!input.consumed && (input.keepOrig || !input.matched)) {
-                    if (input.state != null) {
+                if (!inputConsumed[nextRead] && (inputKeepOrig[nextRead] || !inputMatched[nextRead])) {
+                    if (inputSaved[nextRead]) {
                         // Return a previously saved token (because we
                         // had to lookahead):
-                        restoreState(input.state);
+                        savedAttributes[nextRead].copyTo(this);
                     } else {
                         // Pass-through case: return token we just pulled
                         // but didn't capture:
                         assert inputSkipCount == 1 : "inputSkipCount="
                                 + inputSkipCount + " nextRead=" + nextRead;
                     }
-                    input.reset();
+                    resetInput(nextRead);
                     if (outputs.count > 0) {
                         outputs.posIncr = 0;
                     } else {
@@ -421,20 +954,21 @@ public final class DynamicSynonymFilter extends TokenFilter {
                 } else if (outputs.upto < outputs.count) {
                     // Still have pending outputs to replay at this
                     // position
-                    input.reset();
+                    resetInput(nextRead);
                     final int posIncr = outputs.posIncr;
-                    final CharsRef output = outputs.pullNext();
+                    final int output = outputs.pullNext();
                     clearAttributes();
-                    termAtt.copyBuffer(output.chars, output.offset,
-                            output.length);
+                    termAtt.copyBuffer(outputs.chars, outputs.starts[output],
+                            outputs.lengths[output]);
                     typeAtt.setType(TYPE_SYNONYM);
-                    int endOffset = outputs.getLastEndOffset();
+                    int endOffset = outputs.endOffsets[output];
                     if (endOffset == -1) {
-                        endOffset = input.endOffset;
+                        endOffset = inputEndOffsets[nextRead];
                     }
-                    offsetAtt.setOffset(input.startOffset, endOffset);
+                    offsetAtt.setOffset(inputStartOffsets[nextRead], endOffset);
                     posIncrAtt.setPositionIncrement(posIncr);
-                    posLenAtt.setPositionLength(outputs.getLastPosLength());
+                    posLenAtt.setPositionLength(outputs.posLengths[output]);
+                    streamSynonyms++;
                     if (outputs.count == 0) {
                         // Done with the buffered input and all outputs at
                         // this position
@@ -445,7 +979,7 @@ public final class DynamicSynonymFilter extends TokenFilter {
                 } else {
                     // Done with the buffered input and all outputs at
                     // this position
-                    input.reset();
+                    resetInput(nextRead);
                     nextRead = rollIncr(nextRead);
                     inputSkipCount--;
                 }
@@ -457,161 +991,291 @@ public final class DynamicSynonymFilter extends TokenFilter {
                 final PendingOutputs outputs = futureOutputs[nextRead];
                 if (outputs.upto < outputs.count) {
                     final int posIncr = outputs.posIncr;
-                    final CharsRef output = outputs.pullNext();
-                    futureInputs[nextRead].reset();
+                    final int output = outputs.pullNext();
+                    resetInput(nextRead);
                     if (outputs.count == 0) {
                         nextWrite = nextRead = rollIncr(nextRead);
                     }
                     clearAttributes();
                     // Keep offset from last input token:
                     offsetAtt.setOffset(lastStartOffset, lastEndOffset);
-                    termAtt.copyBuffer(output.chars, output.offset,
-                            output.length);
+                    termAtt.copyBuffer(outputs.chars, outputs.starts[output],
+                            outputs.lengths[output]);
                     typeAtt.setType(TYPE_SYNONYM);
                     posIncrAtt.setPositionIncrement(posIncr);
+                    streamSynonyms++;
                     return true;
                 } else {
                     return false;
                 }
             }
 
+            if ((firstWords != null || singleWords != null) && nextRead == nextWrite
+                    && futureOutputs[nextRead].count == 0) {
+                // Nothing is pending: a token that cannot start a rule
+                // passes straight through, without being buffered:
+                if (!input.incrementToken()) {
+                    finished = true;
+                    return false;
+                }
+                if (!mayStart(termAtt.buffer(), termAtt.length())) {
+                    lastStartOffset = offsetAtt.startOffset();
+                    lastEndOffset = offsetAtt.endOffset();
+                    return true;
+                }
+                pulled = true;
+            }
+
             // Find new synonym matches:
             parse();
         }
     }
 
+    // False if the token starts no rule in any layer:
+    private boolean mayStart(char[] buffer, int length) {
+        if (singleWords != null) {
+            // Looked up for good, parse() takes the entry:
+            pulledWord = singleWords.find(buffer, 0, length);
+            return pulledWord != -1;
+        } else if (stack == null) {
+            return firstWords.mayStart(buffer, length);
+        }
+        for (Layer layer : stack) {
+            if (layer.fst != null && layer.firstWords.mayStart(buffer, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void reset() throws IOException {
 
         super.reset();
+
+        // Only switch to a reloaded map between two streams:
+        if (layers != null) {
+            final SynonymLayers.View latest = layers.getView();
+            if (latest != view) {
+                use(latest);
+            }
+        } else {
+            final SynonymSnapshot latest = synonymSource.getSnapshot();
+            if (latest != snapshot) {
+                use(latest);
+            }
+        }
+
         captureCount = 0;
         finished = false;
+        pulled = false;
+        pulledWord = -1;
+        streamTokens = streamSynonyms = 0;
+        final int sampling = synonymSource.getTokenSampling();
+        sampled = sampling > 0 && ++streams % sampling == 0;
         inputSkipCount = 0;
         nextRead = nextWrite = 0;
 
+        if (fst == null) {
+            return;
+        }
+
+        ahoCorasickState = AhoCorasickSynonyms.ROOT;
+        nextFeed = 0;
+        liveFed = false;
+        Arrays.fill(matchLengths, 0);
+        Arrays.fill(matchOutputs, null);
+
         // In normal usage these resets would not be needed,
         // since they reset-as-they-are-consumed, but the app
         // may not consume all input tokens (or we might hit an
         // exception), in which case we have leftover state
         // here:
-        for (PendingInput input : futureInputs) {
-            input.reset();
+        for (int pos = 0; pos < rollBufferSize; pos++) {
+            resetInput(pos);
+            futureOutputs[pos].reset();
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        if (sampled) {
+            synonymSource.addSampledTokens(streamTokens, streamSynonyms);
+            sampled = false;
+        }
+    }
+
+    private void use(SynonymLayers.View view) {
+        this.view = view;
+        final SynonymSnapshot[] snapshots = view.getLayers();
+        if (snapshots.length == 1) {
+            this.stack = null;
+            use(snapshots[0]);
+            return;
         }
-        for (PendingOutputs output : futureOutputs) {
-            output.reset();
+        this.snapshot = null;
+        this.synonyms = null;
+        this.wordIds = null;
+        this.ahoCorasick = null;
+        this.singleWords = null;
+        this.words = null;
+        this.classes = null;
+        // Only tells whether there are any rules, each layer is
+        // walked with its own FST:
+        this.fst = null;
+        this.fstReader = null;
+        // Only enables mayStart(), which asks every layer:
+        this.firstWords = null;
+        boolean filterStarts = true;
+        int maxHorizontalContext = 0;
+        stack = new Layer[snapshots.length];
+        for (int idx = 0; idx < snapshots.length; idx++) {
+            stack[idx] = new Layer(snapshots[idx], idx > 0);
+            if (stack[idx].fst != null) {
+                fst = stack[idx].fst;
+                firstWords = stack[idx].firstWords;
+                filterStarts &= firstWords != null;
+                maxHorizontalContext = Math.max(maxHorizontalContext,
+                        snapshots[idx].getSynonymMap().maxHorizontalContext);
+            }
+        }
+        if (!filterStarts) {
+            firstWords = null;
+        }
+        if (fst != null) {
+            allocate(1 + maxHorizontalContext);
         }
     }
 
-    void update(SynonymMap synonymMap) {
-        this.synonyms = synonymMap;
-        this.fst = synonyms.fst;
-        if (fst == null) {
-            throw new IllegalArgumentException("fst must be non-null");
+    private void use(SynonymSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.synonyms = snapshot.getSynonymMap();
+        if (snapshot.isEmpty()) {
+            this.fst = null;
+            this.fstReader = null;
+            return;
+        }
+        this.wordIds = snapshot.getWordIds();
+        this.ahoCorasick = snapshot.getAhoCorasick();
+        this.singleWords = snapshot.getSingleWords();
+        this.firstWords = snapshot.getFirstWords();
+        if (singleWords != null) {
+            // Only walked for tokens starting a longer rule, which
+            // the full FST stands in for if there is none, to tell
+            // there are rules:
+            this.fst = singleWords.phrases != null ? singleWords.phrases : synonyms.fst;
+        } else {
+            this.fst = wordIds != null ? wordIds.fst : synonyms.fst;
         }
         this.fstReader = fst.getBytesReader();
+        this.words = snapshot.getWords();
+        this.classes = SynonymClassMap.classes(synonyms);
 
         // Must be 1+ so that when roll buffer is at full
         // lookahead we can distinguish this full buffer from
         // the empty buffer:
-        rollBufferSize = 1 + synonyms.maxHorizontalContext;
+        allocate(1 + synonyms.maxHorizontalContext);
+    }
 
-        futureInputs = new PendingInput[rollBufferSize];
-        futureOutputs = new PendingOutputs[rollBufferSize];
-        for (int pos = 0; pos < rollBufferSize; pos++) {
-            futureInputs[pos] = new PendingInput();
-            futureOutputs[pos] = new PendingOutputs();
+    private void allocate(int rollBufferSize) {
+        this.rollBufferSize = rollBufferSize;
+        final int capacity = futureOutputs == null ? 0 : futureOutputs.length;
+        if (rollBufferSize <= capacity) {
+            // Keep the buffers, reset() clears them anyway
+            return;
         }
 
-        scratchArc = new FST.Arc<>();
+        termSlab = new char[rollBufferSize * termStride];
+        termLengths = new int[rollBufferSize];
+        inputStartOffsets = new int[rollBufferSize];
+        inputEndOffsets = new int[rollBufferSize];
+        inputKeepOrig = new boolean[rollBufferSize];
+        inputMatched = new boolean[rollBufferSize];
+        inputConsumed = new boolean[rollBufferSize];
+        Arrays.fill(inputConsumed, true);
+        inputSaved = new boolean[rollBufferSize];
+        savedAttributes = capacity == 0
+                ? new AttributeSource[rollBufferSize]
+                : Arrays.copyOf(savedAttributes, rollBufferSize);
+        futureOutputs = capacity == 0
+                ? new PendingOutputs[rollBufferSize]
+                : Arrays.copyOf(futureOutputs, rollBufferSize);
+        for (int pos = capacity; pos < rollBufferSize; pos++) {
+            futureOutputs[pos] = new PendingOutputs();
+        }
+        matchLengths = new int[rollBufferSize];
+        matchOutputs = new BytesRef[rollBufferSize];
+        matchEndOffsets = new int[rollBufferSize];
     }
 
-    // Hold all buffered (read ahead) stacked input tokens for
-    // a future position. When multiple tokens are at the
-    // same position, we only store (and match against) the
-    // term for the first token at the position, but capture
-    // state for (and enumerate) all other tokens at this
-    // position:
-    private static class PendingInput {
-        final CharsRefBuilder term = new CharsRefBuilder();
-        AttributeSource.State state;
-        boolean keepOrig;
-        boolean matched;
-        boolean consumed = true;
-        int startOffset;
-        int endOffset;
-
-        void reset() {
-            state = null;
-            consumed = true;
-            keepOrig = false;
-            matched = false;
+    // One map of a stack and the state of its walk:
+    private static final class Layer {
+        final FST<BytesRef> fst;
+        final FST.BytesReader reader;
+        final SynonymWords words;
+        final SynonymClassMap classes;
+        final SynonymFirstWords firstWords;
+        // Rules mapping their input to itself are tombstones:
+        final boolean overlay;
+        final FST.Arc<BytesRef> arc = new FST.Arc<>();
+        final BytesRefBuilder pending = new BytesRefBuilder();
+        boolean alive;
+
+        Layer(SynonymSnapshot snapshot, boolean overlay) {
+            this.fst = snapshot.isEmpty() ? null : snapshot.getSynonymMap().fst;
+            this.reader = fst == null ? null : fst.getBytesReader();
+            this.words = snapshot.getWords();
+            this.classes = SynonymClassMap.classes(snapshot.getSynonymMap());
+            this.firstWords = snapshot.getFirstWords();
+            this.overlay = overlay;
         }
     }
 
-    // Holds pending output synonyms for one future position:
+    // Holds pending output synonyms for one future position. The
+    // chars of all outputs are appended to one slab:
     private static class PendingOutputs {
-        CharsRefBuilder[] outputs;
-        int[] endOffsets;
-        int[] posLengths;
+        char[] chars = new char[16];
+        int[] starts = new int[1];
+        int[] lengths = new int[1];
+        int[] endOffsets = new int[1];
+        int[] posLengths = new int[1];
+        int charCount;
         int upto;
         int count;
         int posIncr = 1;
-        int lastEndOffset;
-        int lastPosLength;
-
-        PendingOutputs() {
-            outputs = new CharsRefBuilder[1];
-            endOffsets = new int[1];
-            posLengths = new int[1];
-        }
 
         void reset() {
-            upto = count = 0;
+            upto = count = charCount = 0;
             posIncr = 1;
         }
 
-        CharsRef pullNext() {
+        // Returns the index of the next output, its chars stay valid
+        // until the next add:
+        int pullNext() {
             assert upto < count;
-            lastEndOffset = endOffsets[upto];
-            lastPosLength = posLengths[upto];
-            final CharsRefBuilder result = outputs[upto++];
+            final int result = upto++;
             posIncr = 0;
             if (upto == count) {
                 reset();
             }
-            return result.get();
-        }
-
-        int getLastEndOffset() {
-            return lastEndOffset;
-        }
-
-        int getLastPosLength() {
-            return lastPosLength;
+            return result;
         }
 
         void add(char[] output, int offset, int len, int endOffset,
                  int posLength) {
-            if (count == outputs.length) {
-                outputs = Arrays.copyOf(outputs, ArrayUtil.oversize(1 + count,
-                        RamUsageEstimator.NUM_BYTES_OBJECT_REF));
-            }
-            if (count == endOffsets.length) {
-                final int[] next = new int[ArrayUtil.oversize(1 + count,
-                                                              Integer.BYTES)];
-                System.arraycopy(endOffsets, 0, next, 0, count);
-                endOffsets = next;
-            }
-            if (count == posLengths.length) {
-                final int[] next = new int[ArrayUtil.oversize(1 + count,
-                                                              Integer.BYTES)];
-                System.arraycopy(posLengths, 0, next, 0, count);
-                posLengths = next;
-            }
-            if (outputs[count] == null) {
-                outputs[count] = new CharsRefBuilder();
-            }
-            outputs[count].copyChars(output, offset, len);
+            if (count == starts.length) {
+                final int size = ArrayUtil.oversize(1 + count, Integer.BYTES);
+                starts = Arrays.copyOf(starts, size);
+                lengths = Arrays.copyOf(lengths, size);
+                endOffsets = Arrays.copyOf(endOffsets, size);
+                posLengths = Arrays.copyOf(posLengths, size);
+            }
+            chars = ArrayUtil.grow(chars, charCount + len);
+            System.arraycopy(output, offset, chars, charCount, len);
+            starts[count] = charCount;
+            lengths[count] = len;
+            charCount += len;
             // endOffset can be -1, in which case we should simply
             // use the endOffset of the input token, or X >= 0, in
             // which case we use X as the endOffset for this output
@@ -0,0 +1,81 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+
+import java.io.IOException;
+
+/**
+ * Applies synonyms like Lucene's {@link SynonymGraphFilter}, producing a
+ * correct token graph with position lengths, with the map of a reloadable
+ * {@link SynonymSource}.
+ *
+ * <p>
+ * A {@link SynonymGraphFilter} is created over the same input whenever a new
+ * {@link SynonymSnapshot} is picked up in {@link #reset()}, so a stream is
+ * always analyzed against a single generation. It shares the attributes of
+ * the input, like this filter does, and resets, ends and closes the input
+ * itself. Without rules tokens are passed through.
+ * </p>
+ *
+ * <p>
+ * As with {@code synonym_graph}, a graph cannot be indexed as is: at index
+ * time this filter must be followed by {@code flatten_graph}.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public final class DynamicSynonymGraphFilter extends TokenFilter {
+
+    private final SynonymSource synonymSource;
+
+    private final boolean ignoreCase;
+
+    private SynonymSnapshot snapshot;
+
+    /**
+     * The graph filter over {@link #input} or the input itself
+     */
+    private TokenStream delegate;
+
+    DynamicSynonymGraphFilter(TokenStream input, SynonymSource synonymSource, boolean ignoreCase) {
+        super(input);
+        this.synonymSource = synonymSource;
+        this.ignoreCase = ignoreCase;
+        use(synonymSource.getSnapshot());
+    }
+
+    private void use(SynonymSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.delegate = snapshot.isEmpty()
+                ? input
+                : new SynonymGraphFilter(input, snapshot.getSynonymMap(), ignoreCase);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        return delegate.incrementToken();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        // Only switch to a reloaded map between two streams:
+        SynonymSnapshot latest = synonymSource.getSnapshot();
+        if (latest != snapshot) {
+            use(latest);
+        }
+        // resets the input too, which must only happen once
+        delegate.reset();
+    }
+
+    @Override
+    public void end() throws IOException {
+        delegate.end();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,57 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import com.bellszhu.elasticsearch.plugin.synonym.service.DynamicSynonymAnalysisService;
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+
+import java.io.IOException;
+
+/**
+ * Factory of {@code dynamic_synonym_graph}, taking the same settings as
+ * {@code dynamic_synonym} and sharing its sources.
+ *
+ * @author bellszhu
+ */
+public class DynamicSynonymGraphTokenFilterFactory extends DynamicSynonymTokenFilterFactory {
+
+    public DynamicSynonymGraphTokenFilterFactory(
+            IndexSettings indexSettings,
+            Environment env,
+            String name,
+            Settings settings,
+            AnalysisRegistry analysisRegistry,
+            DynamicSynonymAnalysisService synonymService
+    ) throws IOException {
+        super(indexSettings, env, name, validate(settings), analysisRegistry, synonymService);
+    }
+
+    /**
+     * Checked before the source is acquired, Lucene's graph filter reads the
+     * output words from the heap and walks a single FST itself.
+     */
+    private static Settings validate(Settings settings) {
+        if (settings.getAsBoolean("off_heap", false)) {
+            throw new IllegalArgumentException("dynamic_synonym_graph does not support `off_heap`");
+        }
+        SynonymMatcher matcher = SynonymMatcher.fromString(settings.get("matcher", SynonymMatcher.FST.toString()));
+        if (matcher != SynonymMatcher.FST) {
+            throw new IllegalArgumentException("dynamic_synonym_graph does not support matcher [" + matcher + "]");
+        }
+        if (settings.getAsBoolean("equivalence_classes", false)) {
+            throw new IllegalArgumentException("dynamic_synonym_graph does not support `equivalence_classes`");
+        }
+        if (!settings.getAsList("overlays").isEmpty()) {
+            throw new IllegalArgumentException("dynamic_synonym_graph does not support `overlays`");
+        }
+        return settings;
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        // always wrap, even without synonyms, a reload may add some later
+        return new DynamicSynonymGraphFilter(tokenStream, synonymSource, ignoreCase);
+    }
+}
@@ -1,14 +1,12 @@
 package com.bellszhu.elasticsearch.plugin.synonym.analysis;
 
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import com.bellszhu.elasticsearch.plugin.synonym.service.DynamicSynonymAnalysisService;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
-import org.apache.lucene.analysis.synonym.SynonymMap;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
@@ -18,13 +16,8 @@ import org.elasticsearch.index.analysis.TokenizerFactory;
 import org.elasticsearch.indices.analysis.AnalysisModule;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author bellszhu
@@ -32,31 +25,30 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class DynamicSynonymTokenFilterFactory extends
         AbstractTokenFilterFactory {
 
-    /**
-     * Static id generator
-     */
-    private static final AtomicInteger id = new AtomicInteger(1);
-    private static Logger logger = LogManager.getLogger("dynamic-synonym");
-    private static ScheduledExecutorService pool = Executors.newScheduledThreadPool(1, r -> {
-        Thread thread = new Thread(r);
-        thread.setName("monitor-synonym-Thread-" + id.getAndAdd(1));
-        return thread;
-    });
     private final String location;
-    private final boolean ignoreCase;
+    protected final boolean ignoreCase;
     private final boolean expand;
     private final String format;
     private final int interval;
-    private volatile ScheduledFuture<?> scheduledFuture;
-    private SynonymMap synonymMap;
-    private Map<DynamicSynonymFilter, Integer> dynamicSynonymFilters = new WeakHashMap<>();
+    private final boolean deltaReload;
+    private final int maxInvalidRules;
+    private final boolean equivalenceClasses;
+    private final SynonymReloadChecks reloadChecks;
+    protected final boolean offHeap;
+    protected final SynonymMatcher matcher;
+    protected final SynonymSource synonymSource;
+    /**
+     * Null without overlays
+     */
+    private final SynonymLayers synonymLayers;
 
     public DynamicSynonymTokenFilterFactory(
             IndexSettings indexSettings,
             Environment env,
             String name,
             Settings settings,
-            AnalysisRegistry analysisRegistry
+            AnalysisRegistry analysisRegistry,
+            DynamicSynonymAnalysisService synonymService
     ) throws IOException {
 
         super(indexSettings, name, settings);
@@ -71,6 +63,24 @@ public class DynamicSynonymTokenFilterFactory extends
         this.ignoreCase = settings.getAsBoolean("ignore_case", false);
         this.expand = settings.getAsBoolean("expand", true);
         this.format = settings.get("format", "");
+        this.deltaReload = settings.getAsBoolean("delta_reload", false);
+        this.offHeap = settings.getAsBoolean("off_heap", false);
+        this.matcher = SynonymMatcher.fromString(settings.get("matcher", SynonymMatcher.FST.toString()));
+        this.maxInvalidRules = settings.getAsInt("max_invalid_rules", 0);
+        if (maxInvalidRules < 0) {
+            throw new IllegalArgumentException("max_invalid_rules must not be negative, got [" + maxInvalidRules + "]");
+        }
+        this.reloadChecks = new SynonymReloadChecks(settings.getAsLong("min_rules", 0L),
+                settings.getAsDouble("max_rule_change", Double.POSITIVE_INFINITY));
+        this.equivalenceClasses = settings.getAsBoolean("equivalence_classes", false);
+        if (equivalenceClasses && offHeap) {
+            throw new IllegalArgumentException("`equivalence_classes` does not support `off_heap`");
+        }
+        List<String> overlays = settings.getAsList("overlays");
+        if (!overlays.isEmpty() && matcher != SynonymMatcher.FST) {
+            throw new IllegalArgumentException("`overlays` do not support matcher [" + matcher + "]");
+        }
+        int compactInterval = settings.getAsInt("compact_interval", 0);
 
         String tokenizerName = settings.get("tokenizer", "whitespace");
 
@@ -79,9 +89,15 @@ public class DynamicSynonymTokenFilterFactory extends
         if (tokenizerFactoryFactory == null) {
             throw new IllegalArgumentException("failed to find tokenizer [" + tokenizerName + "] for synonym token filter");
         }
+        final Settings tokenizerSettings = AnalysisRegistry.getSettingsFromIndexSettings(indexSettings,
+                AnalysisRegistry.INDEX_ANALYSIS_TOKENIZER + "." + tokenizerName);
+        // the settings above always carry the version the index was created
+        // with, sources are shared and compiled maps checked by the explicit
+        // ones only
+        final Settings explicitTokenizerSettings = indexSettings.getSettings().getAsSettings(
+                AnalysisRegistry.INDEX_ANALYSIS_TOKENIZER + "." + tokenizerName);
         final TokenizerFactory tokenizerFactory = tokenizerFactoryFactory.get(indexSettings, env, tokenizerName,
-
-                AnalysisRegistry.getSettingsFromIndexSettings(indexSettings, AnalysisRegistry.INDEX_ANALYSIS_TOKENIZER + "." + tokenizerName));
+                tokenizerSettings);
 
 
         Analyzer analyzer = new Analyzer() {
@@ -93,54 +109,53 @@ public class DynamicSynonymTokenFilterFactory extends
             }
         };
 
-        SynonymFile synonymFile;
-        if (location.startsWith("http://") || location.startsWith("https://")) {
-            synonymFile = new RemoteSynonymFile(env, analyzer, expand, format,
-                    location);
+        this.synonymSource = acquire(indexSettings, env, synonymService, analyzer, location,
+                tokenizerName, explicitTokenizerSettings, reloadChecks);
+        if (overlays.isEmpty()) {
+            this.synonymLayers = null;
         } else {
-            synonymFile = new LocalSynonymFile(env, analyzer, expand, format,
-                    location);
+            List<SynonymSource> sources = new ArrayList<>(1 + overlays.size());
+            sources.add(synonymSource);
+            for (String overlay : overlays) {
+                // the size of an overlay says nothing about the rules
+                sources.add(acquire(indexSettings, env, synonymService, analyzer, overlay,
+                        tokenizerName, explicitTokenizerSettings, SynonymReloadChecks.NONE));
+            }
+            this.synonymLayers = synonymService.acquireLayers(indexSettings, sources, ignoreCase, compactInterval);
         }
-        synonymMap = synonymFile.reloadSynonymMap();
-
-        scheduledFuture = pool.scheduleAtFixedRate(new Monitor(synonymFile),
-                interval, interval, TimeUnit.SECONDS);
+    }
 
+    private SynonymSource acquire(IndexSettings indexSettings, Environment env,
+                                  DynamicSynonymAnalysisService synonymService, Analyzer analyzer,
+                                  String location, String tokenizerName, Settings tokenizerSettings,
+                                  SynonymReloadChecks checks) {
+        SynonymSourceKey key = new SynonymSourceKey(location, format, expand, ignoreCase,
+                tokenizerName, tokenizerSettings, deltaReload, offHeap, matcher, maxInvalidRules, equivalenceClasses);
+        return synonymService.acquire(indexSettings, key, interval, checks, () -> {
+            if (location.startsWith(IndexSynonymFile.PREFIX)) {
+                return new IndexSynonymFile(synonymService.client(), env, analyzer, expand, format, location,
+                        deltaReload, offHeap, maxInvalidRules, synonymService.parallelParser(),
+                        equivalenceClasses, key.analyzerFingerprint());
+            } else if (location.startsWith("http://") || location.startsWith("https://")) {
+                return new RemoteSynonymFile(env, analyzer, expand, format, location, deltaReload,
+                        offHeap, maxInvalidRules, synonymService.parallelParser(), equivalenceClasses,
+                        key.analyzerFingerprint(), synonymService.remoteCache());
+            } else {
+                return new LocalSynonymFile(env, analyzer, expand, format, location, deltaReload,
+                        offHeap, maxInvalidRules, synonymService.parallelParser(), equivalenceClasses,
+                        key.analyzerFingerprint());
+            }
+        });
     }
 
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        // fst is null means no synonyms
-        if (synonymMap == null || synonymMap.fst == null) {
-            return tokenStream;
-        }
-
-        DynamicSynonymFilter dynamicSynonymFilter = new DynamicSynonymFilter(tokenStream, synonymMap, ignoreCase);
-        dynamicSynonymFilters.put(dynamicSynonymFilter, 1);
-
-        return dynamicSynonymFilter;
-    }
-
-    public class Monitor implements Runnable {
-
-        private SynonymFile synonymFile;
-
-        Monitor(SynonymFile synonymFile) {
-            this.synonymFile = synonymFile;
-        }
-
-        @Override
-        public void run() {
-            if (synonymFile.isNeedReloadSynonymMap()) {
-                synonymMap = synonymFile.reloadSynonymMap();
-                for (DynamicSynonymFilter dynamicSynonymFilter : dynamicSynonymFilters
-                        .keySet()) {
-                    dynamicSynonymFilter.update(synonymMap);
-                    logger.info("success reload synonym");
-                }
-            }
+        // always wrap, even without synonyms, a reload may add some later
+        if (synonymLayers != null) {
+            return new DynamicSynonymFilter(tokenStream, synonymLayers, ignoreCase);
         }
+        return new DynamicSynonymFilter(tokenStream, synonymSource, ignoreCase);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,280 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.analysis.Analyzer;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Synonym set stored in the {@value #INDEX} index, one document per rule:
+ *
+ * <pre>
+ * { "set": "my_set", "rule": "foo, bar", "version": 42, "deleted": false }
+ * </pre>
+ * <p>
+ * Every write must give the document a version higher than any version of
+ * the set already visible, a rule is removed by writing it again with
+ * {@code deleted: true}. A check only fetches the documents with a version
+ * above the last one seen, so every node converges on the same version while
+ * transferring just the changed rules.
+ * </p>
+ * <p>
+ * Writes of concurrent clients do not become visible in version order, a
+ * rule may show up after a rule with a higher version was already fetched.
+ * Checks therefore fetch again the versions seen during the last
+ * {@link #VISIBILITY_WINDOW} and skip the documents whose version was
+ * applied already, so a late rule is still picked up as long as it becomes
+ * visible within the window.
+ * </p>
+ * <p>
+ * Nothing is read when the source is created, the analysis chain of an index
+ * is built on the cluster state thread which must not wait for a search. The
+ * source starts empty and the rules are fetched by its first check.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public class IndexSynonymFile extends AbstractSynonymFile {
+
+    /**
+     * {@code synonyms_path} prefix of index backed sources, followed by the set name
+     */
+    public static final String PREFIX = "index:";
+
+    public static final String INDEX = ".dynamic_synonym";
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final TimeValue TIMEOUT = TimeValue.timeValueSeconds(30);
+
+    /**
+     * Time a write may become visible after a write with a higher version,
+     * far above the refresh interval of the index
+     */
+    static final TimeValue VISIBILITY_WINDOW = TimeValue.timeValueMinutes(1);
+
+    private final Client client;
+
+    private final String set;
+
+    /**
+     * Live rules by document id, sorted so every node parses the same input
+     */
+    private final Map<String, String> rules = new TreeMap<>();
+
+    /**
+     * Version applied per document id of the live rules
+     */
+    private final Map<String, Long> versions = new HashMap<>();
+
+    /**
+     * Version applied per document id of the deleted rules that may still be
+     * fetched again
+     */
+    private final Map<String, Long> deletions = new HashMap<>();
+
+    /**
+     * Highest version seen, -1 before the first check
+     */
+    private long version = -1;
+
+    /**
+     * Start time and highest version seen before each check of the window,
+     * oldest first
+     */
+    private final ArrayDeque<long[]> checks = new ArrayDeque<>();
+
+    /**
+     * Versions up to this one are not fetched again
+     */
+    private long fetchedVersion = -1;
+
+    IndexSynonymFile(Client client, Environment env, Analyzer analyzer, boolean expand,
+                     String format, String location, boolean deltaReload,
+                     boolean offHeap, int maxInvalidRules, SynonymParallelParser parallelParser,
+                     boolean equivalenceClasses, String analyzerFingerprint) {
+        super(env, analyzer, expand, format, location, deltaReload, offHeap, maxInvalidRules, parallelParser,
+                equivalenceClasses, analyzerFingerprint);
+        this.client = client;
+        this.set = location.substring(PREFIX.length());
+        if (set.isEmpty()) {
+            throw new IllegalArgumentException("synonyms_path [" + location + "] is missing the synonym set name");
+        }
+    }
+
+    @Override
+    protected String type() {
+        return "index";
+    }
+
+    /**
+     * Streams the rules one by one, like a file is read
+     */
+    @Override
+    public synchronized Reader getReader() {
+        Iterator<String> lines = new ArrayList<>(rules.values()).iterator();
+        return new InputStreamReader(countBytes(new RulesInputStream(lines)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fetches the rules changed since the last check and applies them.
+     */
+    @Override
+    public synchronized boolean isNeedReloadSynonymMap() {
+        // internal request, must not run with the permissions of whoever
+        // triggered the check
+        try (ThreadContext.StoredContext ignore = client.threadPool().getThreadContext().stashContext()) {
+            return fetchChanges();
+        } catch (IndexNotFoundException e) {
+            logger.debug("synonym index {} does not exist yet", INDEX);
+            return false;
+        } catch (Exception e) {
+            logger.error(new ParameterizedMessage("check index synonym {} error!", location), e);
+            checkFailed();
+            return false;
+        }
+    }
+
+    /**
+     * @return highest document version of the set seen
+     */
+    @Override
+    public synchronized String getVersion() {
+        return version == -1 ? null : Long.toString(version);
+    }
+
+    private boolean fetchChanges() {
+        long now = System.nanoTime();
+        // the highest version seen by a check that started before the window
+        while (!checks.isEmpty() && now - checks.peekFirst()[0] >= VISIBILITY_WINDOW.nanos()) {
+            fetchedVersion = checks.pollFirst()[1];
+        }
+        // collected first, a failure half way must not advance the version
+        Map<String, String> changed = new HashMap<>();
+        Map<String, Long> changedVersions = new HashMap<>();
+        long lastVersion = version;
+        SearchResponse response = client.prepareSearch(INDEX)
+                .setQuery(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.termQuery("set", set))
+                        .filter(QueryBuilders.rangeQuery("version").gt(fetchedVersion)))
+                .addSort("version", SortOrder.ASC)
+                .setFetchSource(new String[]{"rule", "version", "deleted"}, null)
+                .setSize(PAGE_SIZE)
+                .setScroll(TIMEOUT)
+                .get(TIMEOUT);
+        try {
+            while (response.getHits().getHits().length > 0) {
+                for (SearchHit hit : response.getHits().getHits()) {
+                    Map<String, Object> source = hit.getSourceAsMap();
+                    long hitVersion = ((Number) source.get("version")).longValue();
+                    lastVersion = Math.max(lastVersion, hitVersion);
+                    Long applied = versions.containsKey(hit.getId())
+                            ? versions.get(hit.getId()) : deletions.get(hit.getId());
+                    if (applied != null && applied >= hitVersion) {
+                        // fetched again within the window
+                        continue;
+                    }
+                    Object rule = source.get("rule");
+                    boolean deleted = Boolean.TRUE.equals(source.get("deleted"))
+                            || "true".equals(source.get("deleted"));
+                    changed.put(hit.getId(), deleted || rule == null ? null : rule.toString());
+                    changedVersions.put(hit.getId(), hitVersion);
+                }
+                response = client.prepareSearchScroll(response.getScrollId()).setScroll(TIMEOUT).get(TIMEOUT);
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+        }
+        checks.addLast(new long[]{now, version});
+        // deletions that are not fetched anymore need no version
+        deletions.values().removeIf(deleted -> deleted <= fetchedVersion);
+        if (changed.isEmpty()) {
+            version = lastVersion;
+            return false;
+        }
+        boolean rulesChanged = false;
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            String id = entry.getKey();
+            String previous;
+            if (entry.getValue() == null) {
+                versions.remove(id);
+                deletions.put(id, changedVersions.get(id));
+                previous = rules.remove(id);
+            } else {
+                deletions.remove(id);
+                versions.put(id, changedVersions.get(id));
+                previous = rules.put(id, entry.getValue());
+            }
+            rulesChanged |= previous == null ? entry.getValue() != null : !previous.equals(entry.getValue());
+        }
+        logger.info("synonym set {} changed from version {} to {}, {} rules changed",
+                set, version, lastVersion, changed.size());
+        version = lastVersion;
+        return rulesChanged;
+    }
+
+    /**
+     * UTF-8 bytes of the rules, one per line, encoded as they are read
+     */
+    private static final class RulesInputStream extends InputStream {
+
+        private final Iterator<String> rules;
+
+        private byte[] line = new byte[0];
+
+        private int upto;
+
+        RulesInputStream(Iterator<String> rules) {
+            this.rules = rules;
+        }
+
+        private boolean fill() {
+            while (upto == line.length) {
+                if (!rules.hasNext()) {
+                    return false;
+                }
+                line = (rules.next() + '\n').getBytes(StandardCharsets.UTF_8);
+                upto = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return fill() ? line[upto++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < len && fill()) {
+                int n = Math.min(len - read, line.length - upto);
+                System.arraycopy(line, upto, b, off + read, n);
+                upto += n;
+                read += n;
+            }
+            return read == 0 ? -1 : read;
+        }
+    }
+}
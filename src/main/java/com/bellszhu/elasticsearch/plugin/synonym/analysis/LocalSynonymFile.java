@@ -4,82 +4,90 @@
 package com.bellszhu.elasticsearch.plugin.synonym.analysis;
 
 import org.apache.commons.codec.Charsets;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.env.Environment;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Arrays;
 
 
 /**
+ * Synonym file in the config directory of the node. A check compares the
+ * modification time first and then a SHA-256 of the content, so a file that
+ * was only touched or copied over with the same bytes is not reloaded. Any
+ * other modification time counts, a file renamed into place may well be
+ * older than the one it replaces.
+ *
  * @author bellszhu
  */
-public class LocalSynonymFile implements SynonymFile {
-
-    private static Logger logger = LogManager.getLogger("dynamic-synonym");
-
-    private String format;
+public class LocalSynonymFile extends AbstractSynonymFile {
 
-    private boolean expand;
-
-    private Analyzer analyzer;
+    private Path synonymFilePath;
 
-    private Environment env;
+    private volatile long lastModified;
 
     /**
-     * Local file path relative to the config directory
+     * SHA-256 of the content seen by the last check that found a change
      */
-    private String location;
-
-    private Path synonymFilePath;
-
-    private long lastModified;
+    private byte[] checksum;
 
     LocalSynonymFile(Environment env, Analyzer analyzer, boolean expand,
-                     String format, String location) {
-        this.analyzer = analyzer;
-        this.expand = expand;
-        this.format = format;
-        this.env = env;
-        this.location = location;
+                     String format, String location, boolean deltaReload,
+                     boolean offHeap, int maxInvalidRules, SynonymParallelParser parallelParser,
+                     boolean equivalenceClasses, String analyzerFingerprint) {
+        super(env, analyzer, expand, format, location, deltaReload, offHeap, maxInvalidRules, parallelParser,
+                equivalenceClasses, analyzerFingerprint);
 
         this.synonymFilePath = env.configFile().resolve(location);
         isNeedReloadSynonymMap();
     }
 
+    @Override
+    protected String type() {
+        return "local";
+    }
+
+    /**
+     * Loads a map compiled by {@link SynonymCompiler} directly, any other
+     * file is parsed as synonym rules.
+     */
     @Override
     public SynonymMap reloadSynonymMap() {
         try {
-            logger.info("start reload local synonym from {}.", location);
-            Reader rulesReader = getReader();
-            SynonymMap.Builder parser = RemoteSynonymFile.getSynonymParser(rulesReader, format, expand, analyzer);
-            return parser.build();
+            if (CompiledSynonymMap.isCompiled(synonymFilePath)) {
+                logger.info("start load compiled synonym from {}.", location);
+                long start = System.nanoTime();
+                CompiledSynonymMap compiled = CompiledSynonymMap.read(synonymFilePath,
+                        new CompiledSynonymMap.Metadata(analyzerFingerprint, format, expand, 0, 0), offHeap);
+                return loaded(compiled.getSynonymMap(), compiled.getMetadata().rules, 0,
+                        Files.size(synonymFilePath), System.nanoTime() - start, 0);
+            }
         } catch (Exception e) {
-            logger.error("reload local synonym {} error!", e, location);
+            logger.error(new ParameterizedMessage("load compiled synonym {} error!", location), e);
             throw new IllegalArgumentException(
-                    "could not reload local synonyms file to build synonyms", e);
+                    "could not load compiled synonyms file", e);
         }
-
+        return super.reloadSynonymMap();
     }
 
+    /**
+     * Streams the file, the caller has to close the reader
+     */
     public Reader getReader() {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                synonymFilePath.toUri().toURL().openStream(), Charsets.UTF_8))) {
-            StringBuffer sb = new StringBuffer();
-            String line;
-            while ((line = br.readLine()) != null) {
-                logger.info("reload local synonym: {}", line);
-                sb.append(line).append(System.getProperty("line.separator"));
-            }
-            return new StringReader(sb.toString());
+        try {
+            return new BufferedReader(new InputStreamReader(
+                    countBytes(Files.newInputStream(synonymFilePath)), Charsets.UTF_8));
         } catch (IOException e) {
             logger.error("get local synonym reader {} error!", e, location);
             throw new IllegalArgumentException(
@@ -87,21 +95,61 @@ public class LocalSynonymFile implements SynonymFile {
         }
     }
 
+    /**
+     * @return modification date of the loaded file
+     */
     @Override
-    public boolean isNeedReloadSynonymMap() {
+    public String getVersion() {
+        return lastModified == 0 ? null : Instant.ofEpochMilli(lastModified).toString();
+    }
+
+    /**
+     * @return the file, watched by the synonym service if enabled
+     */
+    @Override
+    public Path getPath() {
+        return synonymFilePath;
+    }
+
+    @Override
+    public synchronized boolean isNeedReloadSynonymMap() {
         try {
-            File synonymFile = synonymFilePath.toFile();
-            if (synonymFile.exists()
-                    && lastModified < synonymFile.lastModified()) {
-                lastModified = synonymFile.lastModified();
-                return true;
+            if (!Files.exists(synonymFilePath)) {
+                return false;
+            }
+            long modified = Files.getLastModifiedTime(synonymFilePath).toMillis();
+            if (modified == lastModified) {
+                return false;
+            }
+            // a failed read leaves the modification time unseen so the next
+            // check reads the file again
+            byte[] digest = checksum();
+            lastModified = modified;
+            if (Arrays.equals(digest, checksum)) {
+                logger.debug("local synonym {} touched, content unchanged", location);
+                return false;
             }
+            checksum = digest;
+            return true;
         } catch (Exception e) {
             logger.error("check need reload local synonym {} error!", e,
                     location);
+            checkFailed();
         }
 
         return false;
     }
 
+    private byte[] checksum() throws IOException {
+        MessageDigest digest = MessageDigests.sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(synonymFilePath)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * A synonym map whose FST and output words stay in a memory mapped file.
+ * {@link #words} is null, the words are read through {@link #offHeapWords}.
+ *
+ * <p>
+ * The mapping is never unmapped explicitly, it is released by the garbage
+ * collector once no filter references the map anymore. The file must be
+ * replaced atomically, never rewritten in place.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class OffHeapSynonymMap extends SynonymMap {
+
+    final SynonymWords offHeapWords;
+
+    OffHeapSynonymMap(FST<BytesRef> fst, SynonymWords offHeapWords, int maxHorizontalContext) {
+        super(fst, null, maxHorizontalContext);
+        this.offHeapWords = offHeapWords;
+    }
+
+    /**
+     * @return the words of any synonym map
+     */
+    static SynonymWords words(SynonymMap synonymMap) {
+        if (synonymMap instanceof OffHeapSynonymMap) {
+            return ((OffHeapSynonymMap) synonymMap).offHeapWords;
+        }
+        return SynonymWords.onHeap(synonymMap.words);
+    }
+}
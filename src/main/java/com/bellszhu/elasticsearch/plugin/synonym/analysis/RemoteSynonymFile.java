@@ -3,222 +3,296 @@
  */
 package com.bellszhu.elasticsearch.plugin.synonym.analysis;
 
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.Header;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.synonym.SolrSynonymParser;
 import org.apache.lucene.analysis.synonym.SynonymMap;
-import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
 import org.elasticsearch.env.Environment;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.text.ParseException;
+import java.nio.file.Files;
 
 /**
+ * Synonym file served over http(s). Changes are detected with a conditional
+ * GET on the {@code Last-Modified} and {@code ETag} validators of the last
+ * load; when the file changed, the body of that same response is parsed, so
+ * an update costs one request.
+ *
+ * <p>
+ * With a {@link SynonymRemoteCache} the first load reads the copy kept by the
+ * last successful download, if any, and takes over its validators; the copy is
+ * replaced once a downloaded file was parsed and published, a download the
+ * reload checks reject never reaches it.
+ * </p>
+ *
  * @author bellszhu
  */
-public class RemoteSynonymFile implements SynonymFile {
+public class RemoteSynonymFile extends AbstractSynonymFile {
 
     private static final String LAST_MODIFIED_HEADER = "Last-Modified";
     private static final String ETAG_HEADER = "ETag";
 
-    private static Logger logger = LogManager.getLogger("dynamic-synonym");
-
-    private CloseableHttpClient httpclient;
+    private String lastModified;
 
-    private String format;
+    private String eTags;
 
-    private boolean expand;
+    /**
+     * Response of a check that found a change, its body is read by the
+     * following reload
+     */
+    private CloseableHttpResponse pending;
 
-    private Analyzer analyzer;
+    /**
+     * Null to always download the file
+     */
+    private final SynonymRemoteCache remoteCache;
 
-    private Environment env;
+    /**
+     * Copy read by the current load instead of downloading, null if none
+     */
+    private SynonymRemoteCache.Entry cached;
 
     /**
-     * Remote URL address
+     * Download of the last load, copied to the cache once it is published,
+     * null if none
      */
-    private String location;
+    private SynonymRemoteCache.Pending caching;
 
-    private String lastModified;
+    /**
+     * Whether the loaded rules are a copy not yet confirmed by the server
+     */
+    private volatile boolean fromCache;
 
-    private String eTags;
+    private boolean loaded;
 
     RemoteSynonymFile(Environment env, Analyzer analyzer,
-                      boolean expand, String format, String location) {
-        this.analyzer = analyzer;
-        this.expand = expand;
-        this.format = format;
-        this.env = env;
-        this.location = location;
-
-        this.httpclient = AccessController.doPrivileged((PrivilegedAction<CloseableHttpClient>) HttpClients::createDefault);
-
-        isNeedReloadSynonymMap();
+                      boolean expand, String format, String location, boolean deltaReload,
+                      boolean offHeap, int maxInvalidRules, SynonymParallelParser parallelParser,
+                      boolean equivalenceClasses, String analyzerFingerprint, SynonymRemoteCache remoteCache) {
+        super(env, analyzer, expand, format, location, deltaReload, offHeap, maxInvalidRules, parallelParser,
+                equivalenceClasses, analyzerFingerprint);
+        this.remoteCache = remoteCache;
     }
 
-    static SynonymMap.Builder getSynonymParser(Reader rulesReader, String format, boolean expand, Analyzer analyzer) throws IOException, ParseException {
-        SynonymMap.Builder parser;
-        if ("wordnet".equalsIgnoreCase(format)) {
-            parser = new WordnetSynonymParser(true, expand, analyzer);
-            ((WordnetSynonymParser) parser).parse(rulesReader);
-        } else {
-            parser = new SolrSynonymParser(true, expand, analyzer);
-            ((SolrSynonymParser) parser).parse(rulesReader);
-        }
-        return parser;
+    @Override
+    protected String type() {
+        return "remote";
     }
 
+    /**
+     * Loads the cached copy on the first load, falling back to a download if
+     * there is none or it cannot be parsed. A downloaded file is cached once
+     * its map was published, see {@link #reloadCompleted(boolean)}.
+     */
     @Override
     public SynonymMap reloadSynonymMap() {
-        Reader rulesReader = null;
-        try {
-            logger.info("start reload remote synonym from {}.", location);
-            rulesReader = getReader();
-            SynonymMap.Builder parser;
-
-            parser = getSynonymParser(rulesReader, format, expand, analyzer);
-            return parser.build();
-        } catch (Exception e) {
-            logger.error("reload remote synonym {} error!", e, location);
-            throw new IllegalArgumentException(
-                    "could not reload remote synonyms file to build synonyms",
-                    e);
-        } finally {
-            if (rulesReader != null) {
+        discardCaching();
+        if (!loaded && remoteCache != null) {
+            loaded = true;
+            SynonymRemoteCache.Entry entry = remoteCache.get(location);
+            if (entry != null) {
+                logger.info("load remote synonym {} from the local cache, checking it later", location);
+                cached = entry;
                 try {
-                    rulesReader.close();
-                } catch (Exception e) {
-                    logger.error("failed to close rulesReader", e);
+                    SynonymMap synonymMap = super.reloadSynonymMap();
+                    fromCache = true;
+                    return synonymMap;
+                } catch (RuntimeException e) {
+                    logger.warn(new ParameterizedMessage("load cached remote synonym {} failed, downloading it",
+                            location), e);
+                    synchronized (this) {
+                        lastModified = null;
+                        eTags = null;
+                    }
+                } finally {
+                    cached = null;
                 }
             }
         }
+        loaded = true;
+        try {
+            SynonymMap synonymMap = super.reloadSynonymMap();
+            fromCache = false;
+            return synonymMap;
+        } catch (RuntimeException e) {
+            discardCaching();
+            throw e;
+        }
     }
 
-    private CloseableHttpResponse executeHttpRequest(HttpUriRequest httpUriRequest) {
-        return AccessController.doPrivileged((PrivilegedAction<CloseableHttpResponse>) () -> {
-            try {
-                return httpclient.execute(httpUriRequest);
-            } catch (IOException e) {
-                logger.error("Unable to execute HTTP request: {}", e);
-            }
-            return null;
-        });
+    /**
+     * Caches the download of a published map, drops that of a rejected one
+     */
+    @Override
+    public void reloadCompleted(boolean published) {
+        if (published && caching != null) {
+            caching.commit();
+            caching = null;
+        }
+        discardCaching();
+    }
+
+    private void discardCaching() {
+        if (caching != null) {
+            caching.discard();
+            caching = null;
+        }
     }
 
     /**
-     * Download custom terms from a remote server
+     * Download custom terms from a remote server. The reader streams the
+     * response body and releases the connection when it is closed.
      */
-    public Reader getReader() {
-        Reader reader = null;
-        RequestConfig rc = RequestConfig.custom()
-                .setConnectionRequestTimeout(10 * 1000)
-                .setConnectTimeout(10 * 1000).setSocketTimeout(60 * 1000)
-                .build();
-        CloseableHttpResponse response;
-        BufferedReader br = null;
-        HttpGet get = new HttpGet(location);
-        get.setConfig(rc);
+    @Override
+    public synchronized Reader getReader() {
+        if (cached != null) {
+            try {
+                lastModified = cached.lastModified;
+                eTags = cached.eTag;
+                return new BufferedReader(new InputStreamReader(
+                        countBytes(Files.newInputStream(cached.content)), cached.charset));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Exception while reading cached remote synonyms file "
+                        + location, e);
+            }
+        }
+        CloseableHttpResponse response = pending;
+        pending = null;
         try {
-            response = executeHttpRequest(get);
-            if (response.getStatusLine().getStatusCode() == 200) {
-                String charset = "UTF-8"; // 获取编码，默认为utf-8
-                if (response.getEntity().getContentType().getValue()
-                        .contains("charset=")) {
-                    String contentType = response.getEntity().getContentType()
-                            .getValue();
-                    charset = contentType.substring(contentType
-                            .lastIndexOf('=') + 1);
-                }
+            if (response == null) {
+                response = SynonymHttpClient.execute(new HttpGet(location));
+            }
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IllegalArgumentException("remote synonym " + location
+                        + " return bad code " + response.getStatusLine().getStatusCode());
+            }
+            updateValidators(response);
+            String charset = "UTF-8"; // 获取编码，默认为utf-8
+            Header contentType = response.getEntity().getContentType();
+            if (contentType != null && contentType.getValue().contains("charset=")) {
+                charset = contentType.getValue().substring(contentType.getValue()
+                        .lastIndexOf('=') + 1);
+            }
 
-                br = new BufferedReader(new InputStreamReader(response
-                        .getEntity().getContent(), charset));
-                StringBuffer sb = new StringBuffer();
-                String line;
-                while ((line = br.readLine()) != null) {
-                    logger.info("reload remote synonym: {}", line);
-                    sb.append(line)
-                            .append(System.getProperty("line.separator"));
+            InputStream content = response.getEntity().getContent();
+            if (remoteCache != null && (lastModified != null || eTags != null)) {
+                try {
+                    caching = remoteCache.store(location, eTags, lastModified, charset, content);
+                    content = caching;
+                } catch (IOException e) {
+                    logger.warn(new ParameterizedMessage("cannot cache remote synonym {}", location), e);
                 }
-                reader = new StringReader(sb.toString());
             }
+
+            CloseableHttpResponse body = response;
+            return new BufferedReader(new InputStreamReader(countBytes(content), charset)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        body.close();
+                    }
+                }
+            };
         } catch (Exception e) {
+            close(response);
             logger.error("get remote synonym reader {} error!", e, location);
             throw new IllegalArgumentException(
-                    "Exception while reading remote synonyms file", e);
-        } finally {
-            try {
-                if (br != null) {
-                    br.close();
-                }
-            } catch (IOException e) {
-                logger.error("failed to close bufferedReader", e);
-            }
+                    "Exception while reading remote synonyms file " + location, e);
         }
-        return reader;
     }
 
     @Override
-    public boolean isNeedReloadSynonymMap() {
-        RequestConfig rc = RequestConfig.custom()
-                .setConnectionRequestTimeout(10 * 1000)
-                .setConnectTimeout(10 * 1000).setSocketTimeout(15 * 1000)
-                .build();
-        HttpHead head = AccessController.doPrivileged((PrivilegedAction<HttpHead>) () -> new HttpHead(location));
-        head.setConfig(rc);
+    public synchronized boolean isNeedReloadSynonymMap() {
+        // a change found earlier that was never loaded
+        close(pending);
+        pending = null;
 
+        HttpGet get = new HttpGet(location);
         // 设置请求头
         if (lastModified != null) {
-            head.setHeader("If-Modified-Since", lastModified);
+            get.setHeader("If-Modified-Since", lastModified);
         }
         if (eTags != null) {
-            head.setHeader("If-None-Match", eTags);
+            get.setHeader("If-None-Match", eTags);
         }
 
         CloseableHttpResponse response = null;
         try {
-            response = executeHttpRequest(head);
-            if (response.getStatusLine().getStatusCode() == 200) { // 返回200 才做操作
-                if (!response.getLastHeader(LAST_MODIFIED_HEADER).getValue()
-                        .equalsIgnoreCase(lastModified)
-                        || !response.getLastHeader(ETAG_HEADER).getValue()
-                        .equalsIgnoreCase(eTags)) {
-
-                    lastModified = response.getLastHeader(LAST_MODIFIED_HEADER) == null ? null
-                            : response.getLastHeader(LAST_MODIFIED_HEADER)
-                            .getValue();
-                    eTags = response.getLastHeader(ETAG_HEADER) == null ? null
-                            : response.getLastHeader(ETAG_HEADER).getValue();
+            response = SynonymHttpClient.execute(get);
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 200) { // 返回200 才做操作
+                String newLastModified = headerValue(response, LAST_MODIFIED_HEADER);
+                String newETags = headerValue(response, ETAG_HEADER);
+                // servers that ignore the conditions send the body anyway
+                if ((newLastModified != null || newETags != null)
+                        && (!equalsIgnoreCase(newLastModified, lastModified)
+                        || !equalsIgnoreCase(newETags, eTags))) {
+                    pending = response;
+                    response = null;
                     return true;
                 }
-            } else if (response.getStatusLine().getStatusCode() == 304) {
-                return false;
+                fromCache = false;
+            } else if (status == 304) {
+                fromCache = false;
             } else {
-                logger.info("remote synonym {} return bad code {}", location,
-                        response.getStatusLine().getStatusCode());
+                logger.info("remote synonym {} return bad code {}", location, status);
+                checkFailed();
             }
-
+        } catch (IOException e) {
+            logger.warn("check remote synonym {} failed: {}", location, e.getMessage());
+            checkFailed();
         } finally {
+            close(response);
+        }
+        return false;
+    }
+
+    /**
+     * @return true until the server confirmed or replaced the cached copy
+     * loaded first
+     */
+    @Override
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    /**
+     * @return the ETag of the loaded file, or its modification date
+     */
+    @Override
+    public synchronized String getVersion() {
+        return eTags != null ? eTags : lastModified;
+    }
+
+    private void updateValidators(CloseableHttpResponse response) {
+        lastModified = headerValue(response, LAST_MODIFIED_HEADER);
+        eTags = headerValue(response, ETAG_HEADER);
+    }
+
+    private static String headerValue(CloseableHttpResponse response, String name) {
+        Header header = response.getLastHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+        return a == null ? b == null : a.equalsIgnoreCase(b);
+    }
+
+    private static void close(CloseableHttpResponse response) {
+        if (response != null) {
             try {
-                if (response != null) {
-                    response.close();
-                }
+                response.close();
             } catch (IOException e) {
                 logger.error("failed to close http response", e);
             }
         }
-        return false;
     }
 }
@@ -0,0 +1,262 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The synonym map split in two: an open addressing hash table over the first
+ * words of all rules, and an FST of the rules with more than one input word.
+ * A table entry holds the word ids of the output of the single word rule for
+ * that word, if there is one, and whether longer rules start with it, so most
+ * tokens are decided by one probe and only the start of a multi word rule is
+ * walked in the FST.
+ *
+ * <p>
+ * Built once per snapshot from the {@link SynonymMap}, which stays the source
+ * of the output words. Keys are looked up like the FST is walked, code point
+ * by code point and lower cased if the case is ignored, so matches are
+ * exactly those of the full FST.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class SingleWordSynonyms {
+
+    private static final int HAS_OUTPUT = 1;
+
+    private static final int KEEP_ORIG = 2;
+
+    private static final int PHRASE = 4;
+
+    /**
+     * Rules with more than one input word, null if there are none
+     */
+    final FST<BytesRef> phrases;
+
+    private final boolean ignoreCase;
+
+    /**
+     * Entry + 1 per slot, 0 for an empty slot
+     */
+    private final int[] table;
+
+    private final int mask;
+
+    private final int[] hashes;
+
+    /**
+     * Key of entry {@code e} is {@code keys[keyStarts[e]..keyStarts[e+1])}
+     */
+    private final char[] keys;
+
+    private final int[] keyStarts;
+
+    private final int[] flags;
+
+    /**
+     * Output of entry {@code e} is {@code ords[outputStarts[e]..+outputLengths[e])}
+     * less the word id at {@code skips[e]}, if any. Equivalence classes are
+     * copied to the start of {@code ords} once and shared by their members.
+     */
+    private final int[] ords;
+
+    private final int[] outputStarts;
+
+    private final int[] outputLengths;
+
+    private final int[] skips;
+
+    private SingleWordSynonyms(FST<BytesRef> phrases, boolean ignoreCase, int entries, int[] hashes,
+                               char[] keys, int[] keyStarts, int[] flags, int[] ords,
+                               int[] outputStarts, int[] outputLengths, int[] skips) {
+        this.phrases = phrases;
+        this.ignoreCase = ignoreCase;
+        this.hashes = hashes;
+        this.keys = keys;
+        this.keyStarts = keyStarts;
+        this.flags = flags;
+        this.ords = ords;
+        this.outputStarts = outputStarts;
+        this.outputLengths = outputLengths;
+        this.skips = skips;
+        // at most half full
+        int size = Integer.highestOneBit(Math.max(2, entries) * 2 - 1) << 1;
+        this.table = new int[size];
+        this.mask = size - 1;
+        for (int entry = 0; entry < entries; entry++) {
+            int slot = hashes[entry] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+        }
+    }
+
+    /**
+     * @return the entry of the token or -1 if no rule starts with it
+     */
+    int find(char[] buffer, int offset, int length) {
+        int hash = hash(buffer, offset, length, ignoreCase);
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (hashes[entry] == hash && equals(entry, buffer, offset, length)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the word alone is a rule
+     */
+    boolean hasOutput(int entry) {
+        return (flags[entry] & HAS_OUTPUT) != 0;
+    }
+
+    /**
+     * @return true if rules of more than one word start with the word
+     */
+    boolean startsPhrase(int entry) {
+        return (flags[entry] & PHRASE) != 0;
+    }
+
+    boolean keepOrig(int entry) {
+        return (flags[entry] & KEEP_ORIG) != 0;
+    }
+
+    int outputCount(int entry) {
+        return skips[entry] == Integer.MAX_VALUE ? outputLengths[entry] : outputLengths[entry] - 1;
+    }
+
+    /**
+     * @return word id of the output at the index
+     */
+    int outputOrd(int entry, int index) {
+        return ords[outputStarts[entry] + (index < skips[entry] ? index : index + 1)];
+    }
+
+    private boolean equals(int entry, char[] buffer, int offset, int length) {
+        int keyUpto = keyStarts[entry];
+        int keyEnd = keyStarts[entry + 1];
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int codePoint = Character.codePointAt(buffer, i, end);
+            if (keyUpto == keyEnd || Character.codePointAt(keys, keyUpto, keyEnd)
+                    != (ignoreCase ? Character.toLowerCase(codePoint) : codePoint)) {
+                return false;
+            }
+            i += Character.charCount(codePoint);
+            keyUpto += Character.charCount(codePoint);
+        }
+        return keyUpto == keyEnd;
+    }
+
+    private static int hash(char[] buffer, int offset, int length, boolean ignoreCase) {
+        int hash = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int codePoint = Character.codePointAt(buffer, i, end);
+            hash = 31 * hash + (ignoreCase ? Character.toLowerCase(codePoint) : codePoint);
+            i += Character.charCount(codePoint);
+        }
+        // spread the low bits, the table is indexed by them
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param ignoreCase look words up case insensitively, like the filter
+     * @return null if the map has no rules
+     */
+    static SingleWordSynonyms build(SynonymMap synonymMap, boolean ignoreCase) throws IOException {
+        if (synonymMap.fst == null) {
+            return null;
+        }
+        SynonymClassMap classes = SynonymClassMap.classes(synonymMap);
+        int[] ords = classes == null ? new int[16] : Arrays.copyOf(classes.classOrds, classes.classOrds.length + 16);
+        int ordCount = classes == null ? 0 : classes.classOrds.length;
+
+        Map<String, Integer> entries = new HashMap<>();
+        char[] keys = new char[64];
+        int[] keyStarts = new int[]{0, 0};
+        int[] hashes = new int[8];
+        int[] flags = new int[8];
+        int[] outputStarts = new int[8];
+        int[] outputLengths = new int[8];
+        int[] skips = new int[8];
+
+        Builder<BytesRef> builder = new Builder<>(FST.INPUT_TYPE.BYTE4, ByteSequenceOutputs.getSingleton());
+        ByteArrayDataInput bytesReader = new ByteArrayDataInput();
+        IntsRefFSTEnum<BytesRef> rules = new IntsRefFSTEnum<>(synonymMap.fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> next;
+        while ((next = rules.next()) != null) {
+            // the input is the code points of the words, separated by
+            // SynonymMap.WORD_SEPARATOR
+            IntsRef input = next.input;
+            int firstEnd = input.offset;
+            while (firstEnd < input.offset + input.length && input.ints[firstEnd] != SynonymMap.WORD_SEPARATOR) {
+                firstEnd++;
+            }
+            String word = new String(input.ints, input.offset, firstEnd - input.offset);
+            Integer id = entries.get(word);
+            if (id == null) {
+                id = entries.size();
+                entries.put(word, id);
+                int start = keyStarts[id];
+                keys = ArrayUtil.grow(keys, start + word.length());
+                word.getChars(0, word.length(), keys, start);
+                keyStarts = ArrayUtil.grow(keyStarts, id + 2);
+                keyStarts[id + 1] = start + word.length();
+                hashes = ArrayUtil.grow(hashes, id + 1);
+                hashes[id] = hash(keys, start, word.length(), false);
+                flags = ArrayUtil.grow(flags, id + 1);
+                outputStarts = ArrayUtil.grow(outputStarts, id + 1);
+                outputLengths = ArrayUtil.grow(outputLengths, id + 1);
+                skips = ArrayUtil.grow(skips, id + 1);
+                skips[id] = Integer.MAX_VALUE;
+            }
+
+            if (firstEnd < input.offset + input.length) {
+                // the rules are enumerated in order, so are the phrases
+                flags[id] |= PHRASE;
+                builder.add(input, BytesRef.deepCopyOf(next.output));
+                continue;
+            }
+            // precompute the word ids of the output, like the filter
+            // decodes them
+            bytesReader.reset(next.output.bytes, next.output.offset, next.output.length);
+            int code = bytesReader.readVInt();
+            flags[id] |= HAS_OUTPUT | ((code & 0x1) == 0 ? KEEP_ORIG : 0);
+            int count = code >>> 1;
+            if (count == 0) {
+                int classRef = bytesReader.readVInt();
+                outputStarts[id] = classes.classStarts[classRef >>> 1];
+                outputLengths[id] = classes.classStarts[(classRef >>> 1) + 1] - outputStarts[id];
+                if ((classRef & 0x1) != 0) {
+                    skips[id] = bytesReader.readVInt();
+                }
+            } else {
+                ords = ArrayUtil.grow(ords, ordCount + count);
+                outputStarts[id] = ordCount;
+                outputLengths[id] = count;
+                for (int i = 0; i < count; i++) {
+                    ords[ordCount++] = bytesReader.readVInt();
+                }
+            }
+        }
+        return new SingleWordSynonyms(builder.finish(), ignoreCase, entries.size(), hashes, keys, keyStarts,
+                flags, Arrays.copyOf(ords, ordCount), outputStarts, outputLengths, skips);
+    }
+}
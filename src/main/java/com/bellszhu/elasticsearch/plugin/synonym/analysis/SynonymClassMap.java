@@ -0,0 +1,315 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.Util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A synonym map that stores the outputs shared by several inputs only once.
+ * With {@code expand} a group of N equivalent terms becomes N inputs that each
+ * map to the other N-1 words, which a regular map repeats in the FST output
+ * of every input. Here the words of such a group are an equivalence class:
+ * the FST output of its inputs is a count of 0 followed by the class id and
+ * the position of the input's own word in the class, which is left out. The
+ * word ids of the class are looked up in {@link #classOrds}. Filters expand
+ * the class when they emit it, so the tokens are the same as with a regular
+ * map.
+ *
+ * @author bellszhu
+ */
+final class SynonymClassMap extends SynonymMap {
+
+    /**
+     * Word ids of class {@code c} are {@code classOrds[classStarts[c]..classStarts[c+1])}
+     */
+    final int[] classStarts;
+
+    final int[] classOrds;
+
+    private SynonymClassMap(FST<BytesRef> fst, BytesRefHash words, int maxHorizontalContext,
+                            int[] classStarts, int[] classOrds) {
+        super(fst, words, maxHorizontalContext);
+        this.classStarts = classStarts;
+        this.classOrds = classOrds;
+    }
+
+    /**
+     * @return the classes of the map, null if it is a regular map
+     */
+    static SynonymClassMap classes(SynonymMap synonymMap) {
+        return synonymMap instanceof SynonymClassMap ? (SynonymClassMap) synonymMap : null;
+    }
+
+    /**
+     * @param equivalenceClasses store shared outputs once
+     * @return a builder deduplicating the outputs of each input, like the
+     * parsers do
+     */
+    static SynonymMap.Builder builder(boolean equivalenceClasses) {
+        return equivalenceClasses ? new Builder() : new SynonymMap.Builder(true);
+    }
+
+    /**
+     * Takes the same entries as {@link SynonymMap.Builder} with
+     * {@code dedup}, classes are only formed when the map is built.
+     */
+    static final class Builder extends SynonymMap.Builder {
+
+        private final Map<CharsRef, Entry> entries = new HashMap<>();
+
+        private final BytesRefHash words = new BytesRefHash();
+
+        private final BytesRefBuilder utf8Scratch = new BytesRefBuilder();
+
+        private int maxHorizontalContext;
+
+        Builder() {
+            super(true);
+        }
+
+        @Override
+        public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+            if (input.length <= 0) {
+                throw new IllegalArgumentException("input.length must be > 0 (got " + input.length + ")");
+            }
+            if (output.length <= 0) {
+                throw new IllegalArgumentException("output.length must be > 0 (got " + output.length + ")");
+            }
+            utf8Scratch.copyChars(output.chars, output.offset, output.length);
+            int ord = words.add(utf8Scratch.get());
+            if (ord < 0) {
+                ord = -ord - 1;
+            }
+            Entry entry = entries.get(input);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(CharsRef.deepCopyOf(input), entry);
+            }
+            entry.add(ord);
+            entry.includeOrig |= includeOrig;
+            maxHorizontalContext = Math.max(maxHorizontalContext, countWords(input));
+            maxHorizontalContext = Math.max(maxHorizontalContext, countWords(output));
+        }
+
+        @Override
+        public SynonymMap build() throws IOException {
+            CharsRef[] inputs = entries.keySet().toArray(new CharsRef[0]);
+            Arrays.sort(inputs, CharsRef.getUTF16SortedAsUTF8Comparator());
+
+            int[] seen = new int[words.size()];
+            Entry[] byWord = new Entry[words.size()];
+            int stamp = 0;
+            for (Map.Entry<CharsRef, Entry> entry : entries.entrySet()) {
+                entry.getValue().dedup(seen, ++stamp);
+                utf8Scratch.copyChars(entry.getKey());
+                int self = words.find(utf8Scratch.get());
+                entry.getValue().self = self;
+                if (self >= 0) {
+                    byWord[self] = entry.getValue();
+                }
+            }
+
+            // a group member's words are those of the member its list starts
+            // with plus that member's own word, less its own word; the first
+            // member itself finds the group by its own word followed by its list
+            Map<IntsRef, int[]> groups = new HashMap<>();
+            for (Entry entry : entries.values()) {
+                if (entry.ords.length > 1) {
+                    entry.findGroup(byWord);
+                    groups.computeIfAbsent(entry.group, k -> new int[]{0, -1})[0]++;
+                }
+            }
+            for (Entry entry : entries.values()) {
+                if (entry.ords.length > 1 && entry.self >= 0) {
+                    IntsRef withSelf = entry.withSelf();
+                    int[] group = withSelf == null ? null : groups.get(withSelf);
+                    if (group != null && !withSelf.equals(entry.group)) {
+                        groups.get(entry.group)[0]--;
+                        group[0]++;
+                        entry.group = withSelf;
+                        entry.skip = 0;
+                    }
+                }
+            }
+
+            org.apache.lucene.util.fst.Builder<BytesRef> builder =
+                    new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE4, ByteSequenceOutputs.getSingleton());
+            IntsRefBuilder scratchInts = new IntsRefBuilder();
+            byte[] scratch = new byte[16];
+            ByteArrayDataOutput output = new ByteArrayDataOutput();
+            int[] classStarts = new int[8];
+            int[] classOrds = new int[16];
+            int classes = 0;
+            int ords = 0;
+            for (CharsRef input : inputs) {
+                Entry entry = entries.get(input);
+                IntsRef list = entry.ords;
+                int[] group = list.length > 1 ? groups.get(entry.group) : null;
+                scratch = ArrayUtil.grow(scratch, 15 + 5 * list.length);
+                output.reset(scratch);
+                if (group != null && group[0] > 1) {
+                    if (group[1] == -1) {
+                        IntsRef members = entry.group;
+                        group[1] = classes;
+                        classStarts = ArrayUtil.grow(classStarts, classes + 2);
+                        classOrds = ArrayUtil.grow(classOrds, ords + members.length);
+                        System.arraycopy(members.ints, members.offset, classOrds, ords, members.length);
+                        classStarts[classes++] = ords;
+                        ords += members.length;
+                    }
+                    output.writeVInt(entry.includeOrig ? 0 : 1);
+                    output.writeVInt(group[1] << 1 | (entry.skip == -1 ? 0 : 1));
+                    if (entry.skip != -1) {
+                        output.writeVInt(entry.skip);
+                    }
+                } else {
+                    output.writeVInt(list.length << 1 | (entry.includeOrig ? 0 : 1));
+                    for (int i = 0; i < list.length; i++) {
+                        output.writeVInt(list.ints[list.offset + i]);
+                    }
+                }
+                // the FST keeps the output until its node is frozen
+                builder.add(Util.toUTF32(input, scratchInts),
+                        new BytesRef(Arrays.copyOf(scratch, output.getPosition())));
+            }
+            FST<BytesRef> fst = builder.finish();
+            if (classes == 0) {
+                return new SynonymMap(fst, words, maxHorizontalContext);
+            }
+            classStarts[classes] = ords;
+            return new SynonymClassMap(fst, words, maxHorizontalContext,
+                    Arrays.copyOf(classStarts, classes + 1), Arrays.copyOf(classOrds, ords));
+        }
+
+        private static int countWords(CharsRef chars) {
+            int words = 1;
+            for (int i = chars.offset; i < chars.offset + chars.length; i++) {
+                if (chars.chars[i] == SynonymMap.WORD_SEPARATOR) {
+                    words++;
+                }
+            }
+            return words;
+        }
+    }
+
+    /**
+     * Word ids of one input in the order they were added
+     */
+    private static final class Entry {
+
+        final IntsRef ords = new IntsRef(new int[2], 0, 0);
+
+        boolean includeOrig;
+
+        /**
+         * Word id of the input, -1 if no rule outputs it
+         */
+        int self = -1;
+
+        /**
+         * Words of the class this input would use, {@link #ords} with
+         * {@link #skip} left out
+         */
+        IntsRef group;
+
+        int skip = -1;
+
+        private IntsRef withSelf;
+
+        private boolean withSelfDone;
+
+        void add(int ord) {
+            ords.ints = ArrayUtil.grow(ords.ints, ords.length + 1);
+            ords.ints[ords.length++] = ord;
+        }
+
+        /**
+         * Drops repeated word ids, keeping the first
+         *
+         * @param seen  last stamp of every word id
+         * @param stamp unique to this call
+         */
+        void dedup(int[] seen, int stamp) {
+            int upto = 0;
+            for (int i = 0; i < ords.length; i++) {
+                int ord = ords.ints[i];
+                if (seen[ord] != stamp) {
+                    seen[ord] = stamp;
+                    ords.ints[upto++] = ord;
+                }
+            }
+            ords.length = upto;
+        }
+
+        /**
+         * Sets the group to the words of the member this list starts with,
+         * if leaving out this input's word gives this list, or else to the
+         * list itself.
+         */
+        void findGroup(Entry[] byWord) {
+            group = ords;
+            skip = -1;
+            Entry first = self >= 0 ? byWord[ords.ints[ords.offset]] : null;
+            if (first == null || first == this || first.ords.length != ords.length) {
+                return;
+            }
+            IntsRef candidate = first.withSelf();
+            if (candidate == null) {
+                return;
+            }
+            // the candidate has one word more, which must be this input's
+            int at = -1;
+            for (int i = 0, j = 0; i < candidate.length; i++) {
+                int ord = candidate.ints[i];
+                if (j < ords.length && ord == ords.ints[ords.offset + j]) {
+                    j++;
+                } else if (ord == self && at == -1) {
+                    at = i;
+                } else {
+                    return;
+                }
+            }
+            if (at != -1) {
+                group = candidate;
+                skip = at;
+            }
+        }
+
+        /**
+         * @return this input's word followed by its list, null if the list
+         * has it already
+         */
+        IntsRef withSelf() {
+            if (!withSelfDone) {
+                withSelfDone = true;
+                withSelf = concat();
+            }
+            return withSelf;
+        }
+
+        private IntsRef concat() {
+            int[] ints = new int[ords.length + 1];
+            ints[0] = self;
+            for (int i = 0; i < ords.length; i++) {
+                if ((ints[i + 1] = ords.ints[ords.offset + i]) == self) {
+                    return null;
+                }
+            }
+            return new IntsRef(ints, 0, ints.length);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.cli.Command;
+import org.elasticsearch.cli.ExitCodes;
+import org.elasticsearch.cli.Terminal;
+import org.elasticsearch.cli.UserException;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Command line tool turning a synonym text file into a {@link CompiledSynonymMap}
+ * that filters load without parsing. It runs outside of the node, with the
+ * jars of the plugin and of Elasticsearch, and reports on the terminal like
+ * the other Elasticsearch tools.
+ *
+ * <pre>
+ * java -cp "plugins/dynamic-synonym/*:lib/*" \
+ *     com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymCompiler \
+ *     synonym.txt synonym.fst [--format wordnet] [--expand false] [--ignore_case true] [--tokenizer standard]
+ * </pre>
+ * <p>
+ * Only the built in whitespace, standard and keyword tokenizers with default
+ * settings are available, the options must match the filter settings or the
+ * filter refuses to load the compiled file.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public class SynonymCompiler extends Command {
+
+    private static final List<String> TOKENIZERS = Arrays.asList("whitespace", "standard", "keyword");
+
+    private final OptionSpec<String> formatOption;
+
+    private final OptionSpec<Boolean> expandOption;
+
+    private final OptionSpec<Boolean> ignoreCaseOption;
+
+    private final OptionSpec<String> tokenizerOption;
+
+    private final OptionSpec<String> files;
+
+    SynonymCompiler() {
+        super("Compiles a synonym file into a file the dynamic_synonym filter loads without parsing", () -> {
+        });
+        formatOption = parser.accepts("format", "format of the rules, solr or wordnet")
+                .withRequiredArg().defaultsTo("");
+        expandOption = parser.accepts("expand", "expand equivalent synonyms, like the filter option")
+                .withRequiredArg().ofType(Boolean.class).defaultsTo(true);
+        ignoreCaseOption = parser.accepts("ignore_case", "lower case the rules, like the filter option")
+                .withRequiredArg().ofType(Boolean.class).defaultsTo(false);
+        tokenizerOption = parser.accepts("tokenizer", "whitespace, standard or keyword")
+                .withRequiredArg().defaultsTo("whitespace");
+        files = parser.nonOptions("input output");
+    }
+
+    public static void main(String[] args) throws Exception {
+        exit(new SynonymCompiler().main(args, Terminal.DEFAULT));
+    }
+
+    @Override
+    protected void execute(Terminal terminal, OptionSet options) throws Exception {
+        List<String> paths = files.values(options);
+        if (paths.size() != 2) {
+            throw new UserException(ExitCodes.USAGE, "expected an input and an output file, got " + paths);
+        }
+        Path input = Paths.get(paths.get(0));
+        Path output = Paths.get(paths.get(1));
+        String tokenizer = tokenizerOption.value(options);
+        if (!TOKENIZERS.contains(tokenizer)) {
+            throw new UserException(ExitCodes.USAGE, "unsupported tokenizer [" + tokenizer + "], expected one of "
+                    + TOKENIZERS);
+        }
+
+        long start = System.nanoTime();
+        CompiledSynonymMap.Metadata metadata = compile(input, output, formatOption.value(options),
+                expandOption.value(options), ignoreCaseOption.value(options), tokenizer);
+        terminal.println("compiled " + metadata.rules + " rules from " + input + " into " + output
+                + " (" + Files.size(output) + " bytes) in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    static CompiledSynonymMap.Metadata compile(Path input, Path output, String format, boolean expand,
+                                               boolean ignoreCase, String tokenizer) throws Exception {
+        Analyzer analyzer = analyzer(tokenizer, ignoreCase);
+        CheckedInputStream in = new CheckedInputStream(Files.newInputStream(input), new CRC32());
+        try (AbstractSynonymFile.RuleCountingReader rulesReader = new AbstractSynonymFile.RuleCountingReader(
+                new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)))) {
+            SynonymMap synonymMap = AbstractSynonymFile.getSynonymParser(rulesReader, format, expand, analyzer).build();
+            CompiledSynonymMap.Metadata metadata = new CompiledSynonymMap.Metadata(
+                    CompiledSynonymMap.analyzerFingerprint(tokenizer, Settings.EMPTY, ignoreCase),
+                    format, expand, rulesReader.rules, in.getChecksum().getValue());
+            CompiledSynonymMap.write(output, synonymMap, metadata);
+            return metadata;
+        }
+    }
+
+    private static Analyzer analyzer(String tokenizer, boolean ignoreCase) {
+        final Supplier<Tokenizer> tokenizerSupplier;
+        switch (tokenizer) {
+            case "whitespace":
+                tokenizerSupplier = WhitespaceTokenizer::new;
+                break;
+            case "standard":
+                tokenizerSupplier = StandardTokenizer::new;
+                break;
+            case "keyword":
+                tokenizerSupplier = KeywordTokenizer::new;
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported tokenizer [" + tokenizer + "], expected one of "
+                        + TOKENIZERS);
+        }
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer source = tokenizerSupplier.get();
+                TokenStream stream = ignoreCase ? new LowerCaseFilter(source) : source;
+                return new TokenStreamComponents(source, stream);
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Distribution of the durations of a step of the synonym loads, in buckets
+ * of powers of two milliseconds. Bucket {@code i} counts the durations of at
+ * most {@code 2^i} milliseconds not counted by the previous one, the last
+ * bucket the durations above {@value #MAX_BOUND_MILLIS} milliseconds.
+ *
+ * @author bellszhu
+ */
+public final class SynonymDurationHistogram implements Writeable, ToXContentObject {
+
+    static final long MAX_BOUND_MILLIS = 1L << 16;
+
+    private static final int BUCKETS = 18;
+
+    private final long[] counts;
+
+    private long sumMillis;
+
+    private long maxMillis;
+
+    SynonymDurationHistogram() {
+        this.counts = new long[BUCKETS];
+    }
+
+    private SynonymDurationHistogram(SynonymDurationHistogram other) {
+        this.counts = other.counts.clone();
+        this.sumMillis = other.sumMillis;
+        this.maxMillis = other.maxMillis;
+    }
+
+    public SynonymDurationHistogram(StreamInput in) throws IOException {
+        counts = in.readVLongArray();
+        sumMillis = in.readVLong();
+        maxMillis = in.readVLong();
+    }
+
+    /**
+     * Not thread safe, the owner guards the histogram
+     */
+    void record(long millis) {
+        int bucket = millis <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(millis - 1);
+        counts[Math.min(bucket, BUCKETS - 1)]++;
+        sumMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    SynonymDurationHistogram copy() {
+        return new SynonymDurationHistogram(this);
+    }
+
+    public long getCount() {
+        return Arrays.stream(counts).sum();
+    }
+
+    public long getSumMillis() {
+        return sumMillis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLongArray(counts);
+        out.writeVLong(sumMillis);
+        out.writeVLong(maxMillis);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("count", getCount());
+        builder.field("sum_in_millis", sumMillis);
+        builder.field("max_in_millis", maxMillis);
+        // non empty buckets by upper bound
+        builder.startObject("buckets");
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] > 0) {
+                builder.field(bucket == counts.length - 1 ? "+Inf" : Long.toString(1L << bucket), counts[bucket]);
+            }
+        }
+        builder.endObject();
+        return builder.endObject();
+    }
+}
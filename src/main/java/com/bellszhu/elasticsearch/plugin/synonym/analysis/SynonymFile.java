@@ -6,6 +6,7 @@ package com.bellszhu.elasticsearch.plugin.synonym.analysis;
 import org.apache.lucene.analysis.synonym.SynonymMap;
 
 import java.io.Reader;
+import java.nio.file.Path;
 
 /**
  * @author bellszhu
@@ -18,4 +19,49 @@ public interface SynonymFile {
 
     Reader getReader();
 
+    /**
+     * Called once the map returned by the last {@link #reloadSynonymMap()}
+     * was published, or rejected by the reload checks of the source.
+     *
+     * @param published false if the filters keep the previous map
+     */
+    default void reloadCompleted(boolean published) {
+    }
+
+    /**
+     * @return cost of the last successful load, null before the first one
+     */
+    SynonymLoadStats getLoadStats();
+
+    /**
+     * @return version of the last loaded content as its origin reports it,
+     * null if unknown
+     */
+    default String getVersion() {
+        return null;
+    }
+
+    /**
+     * @return file of the rules on the local file system, null if they are
+     * not read from one
+     */
+    default Path getPath() {
+        return null;
+    }
+
+    /**
+     * @return true if the loaded rules were read from a local copy that
+     * the origin did not confirm yet, the source is then checked soon
+     */
+    default boolean isFromCache() {
+        return false;
+    }
+
+    /**
+     * @return number of update checks that could not reach the file
+     */
+    default long getCheckFailures() {
+        return 0;
+    }
+
 }
\ No newline at end of file
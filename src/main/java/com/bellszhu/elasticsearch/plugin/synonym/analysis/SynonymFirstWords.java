@@ -0,0 +1,185 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.FST;
+
+import java.io.IOException;
+
+/**
+ * Tells cheaply whether a token may be the first word of a rule: a bit per
+ * BMP character that starts a rule, then a Bloom filter over the first words
+ * themselves. A token rejected here cannot start a match, so the filter passes
+ * it through without looking it up in the FST. False positives only cost the
+ * regular lookup.
+ *
+ * <p>
+ * Built once per snapshot by walking the FST from its root up to the first
+ * word separator of every rule, which only visits the first words.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class SynonymFirstWords {
+
+    private static final int HASHES = 3;
+
+    private static final int BITS_PER_WORD = 10;
+
+    private final boolean ignoreCase;
+
+    private final FixedBitSet firstChars;
+
+    /**
+     * True if a rule starts with a supplementary character, those tokens are
+     * only checked against the Bloom filter
+     */
+    private final boolean supplementary;
+
+    private final long[] bloom;
+
+    private final int mask;
+
+    private SynonymFirstWords(boolean ignoreCase, FixedBitSet firstChars, boolean supplementary,
+                              long[] hashes, int words) {
+        this.ignoreCase = ignoreCase;
+        this.firstChars = firstChars;
+        this.supplementary = supplementary;
+        int bits = Integer.highestOneBit(Math.max(64, Math.min(1 << 30, words * BITS_PER_WORD)) - 1) << 1;
+        this.bloom = new long[bits >>> 6];
+        this.mask = bits - 1;
+        for (int i = 0; i < words; i++) {
+            int h1 = (int) hashes[i];
+            int h2 = (int) (hashes[i] >>> 32);
+            for (int j = 0; j < HASHES; j++) {
+                int bit = (h1 + j * h2) & mask;
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * @return false if no rule starts with the token
+     */
+    boolean mayStart(char[] buffer, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int codePoint = Character.codePointAt(buffer, 0, length);
+        if (ignoreCase) {
+            codePoint = Character.toLowerCase(codePoint);
+        }
+        if (codePoint > Character.MAX_VALUE ? !supplementary : !firstChars.get(codePoint)) {
+            return false;
+        }
+        long hash = 0;
+        for (int i = 0; i < length; ) {
+            codePoint = Character.codePointAt(buffer, i, length);
+            i += Character.charCount(codePoint);
+            hash = hash * 31 + (ignoreCase ? Character.toLowerCase(codePoint) : codePoint);
+        }
+        return mightContain(mix(hash));
+    }
+
+    private boolean mightContain(long mixed) {
+        int h1 = (int) mixed;
+        int h2 = (int) (mixed >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of the polynomial hash
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @param ignoreCase fold tokens to lower case like the filter does
+     * @return null if the map has no rules
+     */
+    static SynonymFirstWords build(SynonymMap synonymMap, boolean ignoreCase) throws IOException {
+        if (synonymMap.fst == null) {
+            return null;
+        }
+        Collector collector = new Collector(synonymMap.fst);
+        collector.collect(synonymMap.fst.getFirstArc(new FST.Arc<>()));
+        return new SynonymFirstWords(ignoreCase, collector.firstChars, collector.supplementary,
+                collector.hashes, collector.words);
+    }
+
+    /**
+     * Walks the FST from its root, a word is completed by a final arc
+     * (single word rule) or followed by the word separator.
+     */
+    private static final class Collector {
+
+        private final FST<BytesRef> fst;
+        private final FST.BytesReader reader;
+        private final IntsRefBuilder word = new IntsRefBuilder();
+        private final FixedBitSet firstChars = new FixedBitSet(Character.MAX_VALUE + 1);
+        private boolean supplementary;
+        private long[] hashes = new long[16];
+        private int words;
+
+        Collector(FST<BytesRef> fst) {
+            this.fst = fst;
+            this.reader = fst.getBytesReader();
+        }
+
+        void collect(FST.Arc<BytesRef> from) throws IOException {
+            if (!FST.targetHasArcs(from)) {
+                return;
+            }
+            FST.Arc<BytesRef> arc = fst.readFirstTargetArc(from, new FST.Arc<>(), reader);
+            while (true) {
+                if (arc.label == SynonymMap.WORD_SEPARATOR) {
+                    add();
+                } else if (arc.label != FST.END_LABEL) {
+                    word.append(arc.label);
+                    if (arc.isFinal()) {
+                        add();
+                    }
+                    collect(arc);
+                    word.setLength(word.length() - 1);
+                }
+                if (arc.isLast()) {
+                    break;
+                }
+                fst.readNextArc(arc, reader);
+            }
+        }
+
+        private void add() {
+            if (word.length() == 0) {
+                return;
+            }
+            int first = word.intAt(0);
+            if (first > Character.MAX_VALUE) {
+                supplementary = true;
+            } else {
+                firstChars.set(first);
+            }
+            long hash = 0;
+            for (int i = 0; i < word.length(); i++) {
+                hash = hash * 31 + word.intAt(i);
+            }
+            hashes = ArrayUtil.grow(hashes, words + 1);
+            hashes[words++] = mix(hash);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * HTTP client shared by all remote synonym files of the node. Connections are
+ * pooled and kept alive between checks, responses may be gzip compressed.
+ *
+ * <p>
+ * Requests to a host that keeps failing are not sent for a while: after each
+ * consecutive failure the host is skipped for twice as long, from
+ * {@link #MIN_BACKOFF} up to {@link #MAX_BACKOFF}, and the first success
+ * resets it.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class SynonymHttpClient {
+
+    static final TimeValue MIN_BACKOFF = TimeValue.timeValueSeconds(5);
+    static final TimeValue MAX_BACKOFF = TimeValue.timeValueMinutes(10);
+
+    private static final RequestConfig REQUEST_CONFIG = RequestConfig.custom()
+            .setConnectionRequestTimeout(10 * 1000)
+            .setConnectTimeout(10 * 1000)
+            .setSocketTimeout(60 * 1000)
+            .build();
+
+    private static final CloseableHttpClient CLIENT = createClient();
+
+    private static final ConcurrentMap<HttpHost, Backoff> BACKOFFS = new ConcurrentHashMap<>();
+
+    /**
+     * Source of {@link System#nanoTime()} for the back off, replaced by tests
+     */
+    static volatile LongSupplier nanoTime = System::nanoTime;
+
+    private SynonymHttpClient() {
+    }
+
+    private static CloseableHttpClient createClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(32);
+        connectionManager.setDefaultMaxPerRoute(4);
+        return AccessController.doPrivileged((PrivilegedAction<CloseableHttpClient>) () ->
+                HttpClients.custom()
+                        .setConnectionManager(connectionManager)
+                        .setDefaultRequestConfig(REQUEST_CONFIG)
+                        .build());
+    }
+
+    /**
+     * Executes the request unless its host is backing off. Connection
+     * failures and server errors count as failures of the host.
+     *
+     * @throws IOException if the request failed or the host is backing off
+     */
+    static CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        HttpHost host = URIUtils.extractHost(request.getURI());
+        Backoff backoff = BACKOFFS.get(host);
+        long now = nanoTime.getAsLong();
+        if (backoff != null && now - backoff.until < 0) {
+            throw new IOException("skipping request to " + host + " for "
+                    + TimeValue.timeValueNanos(backoff.until - now) + " after " + backoff.failures
+                    + " consecutive failures");
+        }
+        CloseableHttpResponse response;
+        try {
+            response = AccessController.doPrivileged(
+                    (PrivilegedExceptionAction<CloseableHttpResponse>) () -> CLIENT.execute(request));
+        } catch (PrivilegedActionException e) {
+            failed(request);
+            throw (IOException) e.getException();
+        }
+        if (response.getStatusLine().getStatusCode() >= 500) {
+            failed(request);
+        } else {
+            BACKOFFS.remove(host);
+        }
+        return response;
+    }
+
+    /**
+     * Starts or extends the back off of the request's host
+     */
+    private static void failed(HttpUriRequest request) {
+        BACKOFFS.compute(URIUtils.extractHost(request.getURI()), (host, previous) -> {
+            int failures = previous == null ? 1 : previous.failures + 1;
+            long delay = Math.min(MAX_BACKOFF.nanos(), MIN_BACKOFF.nanos() << Math.min(failures - 1, 20));
+            return new Backoff(failures, nanoTime.getAsLong() + delay);
+        });
+    }
+
+    private static final class Backoff {
+
+        private final int failures;
+
+        /**
+         * {@link SynonymHttpClient#nanoTime} until which the host is skipped
+         */
+        private final long until;
+
+        Backoff(int failures, long until) {
+            this.failures = failures;
+            this.until = until;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synonym sources stacked on top of each other: a large base that rarely
+ * changes and small overlays that do, each one a {@link SynonymSource} with
+ * its own reloads and FST, so editing an overlay never rebuilds the base.
+ *
+ * <p>
+ * A rule of a higher layer replaces the rule with the same input in the
+ * layers below, and an overlay rule mapping its input to nothing but itself
+ * is a tombstone, it removes the input from the layers below. Filters walk
+ * all layers along the same tokens, see {@link DynamicSynonymFilter}.
+ * </p>
+ *
+ * <p>
+ * Once the layers did not change between two calls of {@link #compact()},
+ * they are merged into a single map that filters walk instead. The merged map
+ * is only used as long as every layer is still at the generation it was built
+ * from, a reload of any layer brings the layers back until the next
+ * compaction.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public final class SynonymLayers {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    /**
+     * Base first
+     */
+    private final SynonymSource[] sources;
+
+    private final boolean ignoreCase;
+
+    private volatile View view;
+
+    /**
+     * Merged map of the last compaction, null if none or outdated
+     */
+    private volatile View compacted;
+
+    /**
+     * View seen by the previous compaction check, only used by the
+     * compaction task
+     */
+    private View stable;
+
+    private int compactions;
+
+    private int refCount;
+
+    /**
+     * @param sources base first, then the overlays by increasing precedence
+     */
+    public SynonymLayers(List<SynonymSource> sources, boolean ignoreCase) {
+        this.sources = sources.toArray(new SynonymSource[0]);
+        this.ignoreCase = ignoreCase;
+        this.view = layered();
+    }
+
+    /**
+     * @return the source at the bottom, used for the stats of the filters
+     */
+    SynonymSource getBase() {
+        return sources[0];
+    }
+
+    public synchronized void incRef() {
+        refCount++;
+    }
+
+    /**
+     * @return true if this was the last reference
+     */
+    public synchronized boolean decRef() {
+        assert refCount > 0 : "synonym layers already released";
+        return --refCount == 0;
+    }
+
+    /**
+     * @return the layers to match against, the merged map if it is still
+     * current
+     */
+    View getView() {
+        View current = view;
+        if (current.isCurrent(sources)) {
+            return current;
+        }
+        View merged = compacted;
+        if (merged != null && merged.isCurrent(sources)) {
+            current = merged;
+        } else {
+            // generations only grow, an outdated merged map never applies again
+            compacted = null;
+            current = layered();
+        }
+        view = current;
+        return current;
+    }
+
+    /**
+     * Merges the layers into a single map if they did not change since the
+     * previous call and are not merged already. Called periodically by a
+     * single task.
+     *
+     * @return true if a merged map was built
+     */
+    public boolean compact() throws IOException {
+        View current = getView();
+        if (current.layers.length == 1 || current != stable) {
+            stable = current;
+            return false;
+        }
+        long start = System.nanoTime();
+        SynonymMap merged = merge(current.layers);
+        SynonymSnapshot snapshot = new SynonymSnapshot(merged, ++compactions, null, null, null, null,
+                SynonymFirstWords.build(merged, ignoreCase));
+        View next = new View(current.generations, new SynonymSnapshot[]{snapshot});
+        compacted = next;
+        view = next;
+        stable = next;
+        logger.info("compacted {} synonym layers over {} in {}ms", sources.length, sources[0].getKey(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+
+    /**
+     * @return a view walking the current snapshots of the sources, or just
+     * the base if no overlay has rules
+     */
+    private View layered() {
+        SynonymSnapshot[] layers = new SynonymSnapshot[sources.length];
+        long[] generations = new long[sources.length];
+        boolean overlays = false;
+        for (int i = 0; i < sources.length; i++) {
+            layers[i] = sources[i].getSnapshot();
+            generations[i] = layers[i].getGeneration();
+            overlays |= i > 0 && !layers[i].isEmpty();
+        }
+        return new View(generations, overlays ? layers : new SynonymSnapshot[]{layers[0]});
+    }
+
+    /**
+     * Builds the map the layers stand for: every input with the outputs of
+     * the top-most layer that has it, unless that is a tombstone.
+     */
+    static SynonymMap merge(SynonymSnapshot[] layers) throws IOException {
+        boolean equivalenceClasses = false;
+        for (SynonymSnapshot layer : layers) {
+            equivalenceClasses |= SynonymClassMap.classes(layer.getSynonymMap()) != null;
+        }
+        SynonymMap.Builder builder = SynonymClassMap.builder(equivalenceClasses);
+        // inputs decided by a higher layer
+        Set<IntsRef> decided = new HashSet<>();
+        ByteArrayDataInput bytesReader = new ByteArrayDataInput();
+        BytesRef scratchBytes = new BytesRef();
+        BytesRefBuilder scratchBuffer = new BytesRefBuilder();
+        CharsRef[] outputs = new CharsRef[0];
+        for (int layer = layers.length - 1; layer >= 0; layer--) {
+            if (layers[layer].isEmpty()) {
+                continue;
+            }
+            SynonymWords words = layers[layer].getWords();
+            SynonymClassMap classes = SynonymClassMap.classes(layers[layer].getSynonymMap());
+            IntsRefFSTEnum<BytesRef> rules = new IntsRefFSTEnum<>(layers[layer].getSynonymMap().fst);
+            IntsRefFSTEnum.InputOutput<BytesRef> next;
+            while ((next = rules.next()) != null) {
+                if (layer > 0 ? !decided.add(IntsRef.deepCopyOf(next.input)) : decided.contains(next.input)) {
+                    continue;
+                }
+                CharsRef input = new CharsRef(new String(next.input.ints, next.input.offset, next.input.length));
+                bytesReader.reset(next.output.bytes, next.output.offset, next.output.length);
+                int code = bytesReader.readVInt();
+                boolean keepOrig = (code & 0x1) == 0;
+                int count = code >>> 1;
+                int classStart = -1;
+                int skip = Integer.MAX_VALUE;
+                if (count == 0) {
+                    int classRef = bytesReader.readVInt();
+                    classStart = classes.classStarts[classRef >>> 1];
+                    count = classes.classStarts[(classRef >>> 1) + 1] - classStart;
+                    if ((classRef & 0x1) != 0) {
+                        skip = bytesReader.readVInt();
+                        count--;
+                    }
+                }
+                if (outputs.length < count) {
+                    outputs = new CharsRef[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    int ord = classStart == -1 ? bytesReader.readVInt()
+                            : classes.classOrds[classStart + (i < skip ? i : i + 1)];
+                    CharsRefBuilder output = new CharsRefBuilder();
+                    output.copyUTF8Bytes(words.get(ord, scratchBytes, scratchBuffer));
+                    outputs[i] = output.get();
+                }
+                if (layer > 0 && count == 1 && !keepOrig && outputs[0].equals(input)) {
+                    // tombstone
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    builder.add(input, outputs[i], keepOrig);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Layers matched by a filter between two resets.
+     */
+    static final class View {
+
+        /**
+         * Generations of the sources this view stands for
+         */
+        private final long[] generations;
+
+        /**
+         * Base first, a single map if nothing has to be stacked
+         */
+        private final SynonymSnapshot[] layers;
+
+        private View(long[] generations, SynonymSnapshot[] layers) {
+            this.generations = generations;
+            this.layers = layers;
+        }
+
+        SynonymSnapshot[] getLayers() {
+            return layers;
+        }
+
+        private boolean isCurrent(SynonymSource[] sources) {
+            for (int i = 0; i < sources.length; i++) {
+                if (sources[i].getSnapshot().getGeneration() != generations[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Cost of one load of a synonym file.
+ *
+ * @author bellszhu
+ */
+public final class SynonymLoadStats {
+
+    private final long timestamp;
+
+    private final long rules;
+
+    private final long invalidRules;
+
+    private final long bytes;
+
+    private final long parseMillis;
+
+    private final long buildMillis;
+
+    private final long fstRamBytes;
+
+    SynonymLoadStats(long timestamp, long rules, long invalidRules, long bytes, long parseMillis,
+                     long buildMillis, long fstRamBytes) {
+        this.timestamp = timestamp;
+        this.rules = rules;
+        this.invalidRules = invalidRules;
+        this.bytes = bytes;
+        this.parseMillis = parseMillis;
+        this.buildMillis = buildMillis;
+        this.fstRamBytes = fstRamBytes;
+    }
+
+    /**
+     * @return epoch millis at which the load finished
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return number of rule lines read, blank and comment lines excluded
+     */
+    public long getRules() {
+        return rules;
+    }
+
+    /**
+     * @return number of rules skipped as invalid, included in {@link #getRules()}
+     */
+    public long getInvalidRules() {
+        return invalidRules;
+    }
+
+    /**
+     * @return number of bytes read from the file or the http response
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return time spent reading and analyzing the rules
+     */
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    /**
+     * @return time spent compiling the FST
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    public long getFstRamBytes() {
+        return fstRamBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "rules [" + rules + "], invalid [" + invalidRules + "], read [" + new ByteSizeValue(bytes)
+                + "], parse [" + TimeValue.timeValueMillis(parseMillis)
+                + "], build [" + TimeValue.timeValueMillis(buildMillis)
+                + "], fst [" + new ByteSizeValue(fstRamBytes) + "]";
+    }
+}
@@ -0,0 +1,49 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How {@link DynamicSynonymFilter} looks up the rules starting at a token.
+ *
+ * @author bellszhu
+ */
+public enum SynonymMatcher {
+
+    /**
+     * Walks the synonym FST character by character
+     */
+    FST,
+
+    /**
+     * Resolves each token to the id of a rule word first, see {@link WordIdFst}
+     */
+    WORD_ID,
+
+    /**
+     * Reads every token once, see {@link AhoCorasickSynonyms}
+     */
+    AHO_CORASICK,
+
+    /**
+     * Looks the first word up in a hash table, see {@link SingleWordSynonyms}
+     */
+    HASH;
+
+    /**
+     * @param name value of the {@code matcher} setting
+     */
+    public static SynonymMatcher fromString(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown synonym matcher [" + name + "], expected one of "
+                    + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
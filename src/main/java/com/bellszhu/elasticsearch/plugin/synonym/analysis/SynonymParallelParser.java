@@ -0,0 +1,143 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parses large synonym files on several threads. Analyzing the rules is most
+ * of the cost of a load, so the rules are read in chunks that are analyzed
+ * in parallel on the parse executor, each into a list of entries, and the
+ * entries are added to a single builder in file order. The resulting map is
+ * identical to the one of a sequential parse.
+ *
+ * <p>
+ * Chunks always hold whole rules, a wordnet synset is never split. At most
+ * two chunks per thread are analyzed or waiting to be merged at a time, so
+ * a large file does not flood the executor's queue.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public final class SynonymParallelParser {
+
+    static final int CHUNK_RULES = 2048;
+
+    private final ExecutorService executor;
+
+    private final int threads;
+
+    /**
+     * @param threads number of threads of the executor
+     */
+    public SynonymParallelParser(ExecutorService executor, int threads) {
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    /**
+     * @param errors             invalid rules are skipped while it allows,
+     *                           shared by all chunks
+     * @param equivalenceClasses build a {@link SynonymClassMap}
+     * @return a builder holding the entries of all rules, ready to build
+     */
+    SynonymMap.Builder parse(Reader rulesReader, String format, boolean expand, Analyzer analyzer,
+                             SynonymRuleErrors errors, boolean equivalenceClasses)
+            throws IOException, ParseException {
+        SynonymMap.Builder builder = SynonymClassMap.builder(equivalenceClasses);
+        SynonymRuleCache.RuleSplitter splitter = SynonymRuleCache.splitter(new BufferedReader(rulesReader), format);
+        Deque<Future<List<SynonymRuleCache.Entry>>> pending = new ArrayDeque<>();
+        try {
+            Chunk chunk;
+            while ((chunk = Chunk.read(splitter)) != null) {
+                Chunk rules = chunk;
+                pending.add(executor.submit(() -> rules.parse(format, expand, analyzer, errors)));
+                if (pending.size() >= 2 * threads) {
+                    merge(builder, pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                merge(builder, pending.poll());
+            }
+        } finally {
+            for (Future<?> future : pending) {
+                future.cancel(false);
+            }
+        }
+        return builder;
+    }
+
+    private static void merge(SynonymMap.Builder builder, Future<List<SynonymRuleCache.Entry>> chunk)
+            throws IOException, ParseException {
+        List<SynonymRuleCache.Entry> entries;
+        try {
+            entries = chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while parsing synonyms", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("parse synonyms failed", e.getCause());
+        }
+        for (SynonymRuleCache.Entry entry : entries) {
+            builder.add(entry.input, entry.output, entry.includeOrig);
+        }
+    }
+
+    /**
+     * Consecutive rules of the file and the lines they end on
+     */
+    private static final class Chunk {
+
+        private final List<String> rules = new ArrayList<>(CHUNK_RULES);
+
+        private final int[] lineNumbers = new int[CHUNK_RULES];
+
+        /**
+         * @return the next rules, null at the end of the input
+         */
+        static Chunk read(SynonymRuleCache.RuleSplitter splitter) throws IOException {
+            Chunk chunk = new Chunk();
+            String rule;
+            while (chunk.rules.size() < CHUNK_RULES && (rule = splitter.next()) != null) {
+                chunk.lineNumbers[chunk.rules.size()] = splitter.lineNumber();
+                chunk.rules.add(rule);
+            }
+            return chunk.rules.isEmpty() ? null : chunk;
+        }
+
+        List<SynonymRuleCache.Entry> parse(String format, boolean expand, Analyzer analyzer,
+                                           SynonymRuleErrors errors) throws IOException, ParseException {
+            List<SynonymRuleCache.Entry> entries = new ArrayList<>(rules.size() * 2);
+            SynonymMap.Parser parser = SynonymRuleCache.newRecordingParser(format, expand, analyzer, entries);
+            for (int i = 0; i < rules.size(); i++) {
+                int mark = entries.size();
+                try {
+                    parser.parse(new StringReader(rules.get(i)));
+                } catch (ParseException e) {
+                    entries.subList(mark, entries.size()).clear();
+                    errors.invalid(rules.get(i), lineNumbers[i], e);
+                }
+            }
+            return entries;
+        }
+    }
+}
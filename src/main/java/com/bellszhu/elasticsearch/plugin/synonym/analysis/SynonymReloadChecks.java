@@ -0,0 +1,75 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+/**
+ * Sanity checks a reloaded map has to pass before it replaces the current
+ * one, so a truncated or half uploaded file does not go live. Rejected maps
+ * are dropped and the source keeps serving its last good map.
+ *
+ * <p>
+ * Filters sharing a source may configure different checks, the strictest of
+ * each is applied.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public final class SynonymReloadChecks {
+
+    public static final SynonymReloadChecks NONE = new SynonymReloadChecks(0, Double.POSITIVE_INFINITY);
+
+    private final long minRules;
+
+    private final double maxRuleChange;
+
+    /**
+     * @param minRules      fewest valid rules a reload may have
+     * @param maxRuleChange largest change of the number of valid rules
+     *                      relative to the current map, 0.5 for 50%
+     */
+    public SynonymReloadChecks(long minRules, double maxRuleChange) {
+        if (minRules < 0) {
+            throw new IllegalArgumentException("min_rules must not be negative, got [" + minRules + "]");
+        }
+        if (!(maxRuleChange >= 0)) {
+            throw new IllegalArgumentException("max_rule_change must not be negative, got [" + maxRuleChange + "]");
+        }
+        this.minRules = minRules;
+        this.maxRuleChange = maxRuleChange;
+    }
+
+    /**
+     * @return the stricter of both checks
+     */
+    SynonymReloadChecks merge(SynonymReloadChecks other) {
+        return new SynonymReloadChecks(Math.max(minRules, other.minRules),
+                Math.min(maxRuleChange, other.maxRuleChange));
+    }
+
+    /**
+     * @param current load of the map in use, null if unknown
+     * @param next    load of the reloaded map, null if unknown
+     * @throws IllegalArgumentException if the reloaded map must not be used
+     */
+    void check(SynonymLoadStats current, SynonymLoadStats next) {
+        if (next == null) {
+            return;
+        }
+        long rules = next.getRules() - next.getInvalidRules();
+        if (rules < minRules) {
+            throw new IllegalArgumentException("reloaded synonyms have [" + rules
+                    + "] rules, less than min_rules [" + minRules + "]");
+        }
+        if (current == null) {
+            return;
+        }
+        long currentRules = current.getRules() - current.getInvalidRules();
+        if (currentRules > 0 && Math.abs(rules - currentRules) > maxRuleChange * currentRules) {
+            throw new IllegalArgumentException("reloaded synonyms have [" + rules + "] rules instead of ["
+                    + currentRules + "], more than max_rule_change [" + maxRuleChange + "] apart");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "min_rules [" + minRules + "], max_rule_change [" + maxRuleChange + "]";
+    }
+}
@@ -0,0 +1,240 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.common.hash.MessageDigests;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Copies of remote synonym files under the data path of the node, with the
+ * {@code ETag} and {@code Last-Modified} validators they were served with.
+ * A restarted node loads a remote source from its copy instead of waiting
+ * for the synonym server, and its first check is a conditional GET that only
+ * downloads the file if it changed meanwhile.
+ *
+ * <p>
+ * The body of a download is copied to a temporary file as it is parsed and
+ * only replaces the copy once the whole file was parsed and its map passed
+ * the reload checks. The content is moved into place before the validators,
+ * so a crash in between leaves new content with old validators, which the
+ * next check just downloads again. Files without validators are not kept, a check could
+ * never tell whether their copy is outdated.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public final class SynonymRemoteCache {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    private final Path dir;
+
+    public SynonymRemoteCache(Path dir) {
+        this.dir = dir;
+        // copies in progress when the node stopped
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> temps = Files.newDirectoryStream(dir, "*.tmp")) {
+                for (Path temp : temps) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException e) {
+                logger.warn(new ParameterizedMessage("clean up synonym cache {} failed", dir), e);
+            }
+        }
+    }
+
+    /**
+     * @return the copy of the file, null if there is none
+     */
+    Entry get(String location) {
+        String name = name(location);
+        Path metadata = dir.resolve(name + ".properties");
+        Path content = dir.resolve(name + ".txt");
+        if (!Files.exists(metadata) || !Files.exists(content)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(metadata, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            logger.warn(new ParameterizedMessage("read cached synonym {} failed, ignoring it", location), e);
+            return null;
+        }
+        if (!location.equals(properties.getProperty("location"))) {
+            return null;
+        }
+        Entry entry = new Entry(content, properties.getProperty("etag"),
+                properties.getProperty("last_modified"), properties.getProperty("charset", "UTF-8"));
+        return entry.eTag == null && entry.lastModified == null ? null : entry;
+    }
+
+    /**
+     * @param body downloaded content of the file
+     * @return the body, copied to a temporary file as it is read
+     */
+    Pending store(String location, String eTag, String lastModified, String charset,
+                  InputStream body) throws IOException {
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, name(location), ".tmp");
+        return new Pending(body, Files.newOutputStream(temp), temp,
+                new Entry(dir.resolve(name(location) + ".txt"), eTag, lastModified, charset), location);
+    }
+
+    private static String name(String location) {
+        return MessageDigests.toHexString(MessageDigests.sha256().digest(location.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * A copy of a remote file
+     */
+    static final class Entry {
+
+        final Path content;
+
+        /**
+         * Validators the file was served with, at least one is set
+         */
+        final String eTag;
+
+        final String lastModified;
+
+        final String charset;
+
+        private Entry(Path content, String eTag, String lastModified, String charset) {
+            this.content = content;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.charset = charset;
+        }
+    }
+
+    /**
+     * A download being copied, kept by {@link #commit()} once parsed or
+     * dropped by {@link #discard()}.
+     */
+    final class Pending extends FilterInputStream {
+
+        private final OutputStream copy;
+
+        private final Path temp;
+
+        private final Entry entry;
+
+        private final String location;
+
+        private boolean complete;
+
+        private Pending(InputStream in, OutputStream copy, Path temp, Entry entry, String location) {
+            super(in);
+            this.copy = copy;
+            this.temp = temp;
+            this.entry = entry;
+            this.location = location;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                complete = true;
+            } else {
+                copy.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // every byte has to reach the copy
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(0, read);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                copy.close();
+            }
+        }
+
+        /**
+         * Replaces the copy of the file if the whole body was read, never
+         * fails the load.
+         */
+        void commit() {
+            if (!complete) {
+                discard();
+                return;
+            }
+            try {
+                copy.close();
+                Files.move(temp, entry.content, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Properties properties = new Properties();
+                properties.setProperty("location", location);
+                if (entry.eTag != null) {
+                    properties.setProperty("etag", entry.eTag);
+                }
+                if (entry.lastModified != null) {
+                    properties.setProperty("last_modified", entry.lastModified);
+                }
+                properties.setProperty("charset", entry.charset);
+                String name = entry.content.getFileName().toString();
+                Path metadata = dir.resolve(name.substring(0, name.length() - ".txt".length()) + ".properties");
+                Path tempMetadata = Files.createTempFile(dir, name, ".tmp");
+                try {
+                    try (Writer writer = Files.newBufferedWriter(tempMetadata, StandardCharsets.UTF_8)) {
+                        properties.store(writer, null);
+                    }
+                    Files.move(tempMetadata, metadata, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempMetadata);
+                }
+                logger.debug("cached remote synonym {} in {}", location, entry.content);
+            } catch (IOException e) {
+                logger.warn(new ParameterizedMessage("cache remote synonym {} failed", location), e);
+                discard();
+            }
+        }
+
+        /**
+         * Drops the temporary copy
+         */
+        void discard() {
+            try {
+                copy.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                logger.warn(new ParameterizedMessage("delete temporary copy {} of remote synonym {} failed",
+                        temp, location), e);
+            }
+        }
+    }
+}
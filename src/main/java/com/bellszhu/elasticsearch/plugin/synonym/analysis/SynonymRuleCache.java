@@ -0,0 +1,289 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
+import org.apache.lucene.util.CharsRef;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds synonym maps for the delta reload mode. The analyzed entries of every
+ * rule are kept between loads, keyed by a hash of the rule text, so a reload
+ * only runs the analyzer over rules that were added or changed and then
+ * compiles the FST from the cached entries.
+ *
+ * <p>
+ * A rule is a line for the solr format and all consecutive lines of one synset
+ * for the wordnet format. Entries are added in file order, so the resulting map
+ * is identical to the one built by a full reparse.
+ * </p>
+ *
+ * @author bellszhu
+ */
+class SynonymRuleCache {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    private final String format;
+
+    private final boolean expand;
+
+    private final Analyzer analyzer;
+
+    private final boolean equivalenceClasses;
+
+    /**
+     * Entries of the rules seen by the last successful load
+     */
+    private Map<RuleHash, Entry[]> rules = new HashMap<>();
+
+    SynonymRuleCache(String format, boolean expand, Analyzer analyzer, boolean equivalenceClasses) {
+        this.format = format;
+        this.expand = expand;
+        this.analyzer = analyzer;
+        this.equivalenceClasses = equivalenceClasses;
+    }
+
+    /**
+     * @param errors invalid rules are skipped while it allows
+     * @return a builder holding the entries of all rules, ready to build
+     */
+    synchronized SynonymMap.Builder parse(Reader rulesReader, SynonymRuleErrors errors)
+            throws IOException, ParseException {
+        Map<RuleHash, Entry[]> next = new HashMap<>(rules.size());
+        SynonymMap.Builder builder = SynonymClassMap.builder(equivalenceClasses);
+        List<Entry> recorded = new ArrayList<>();
+        SynonymMap.Parser parser = newRecordingParser(format, expand, analyzer, recorded);
+        int analyzedRules = 0;
+
+        RuleSplitter splitter = splitter(new BufferedReader(rulesReader), format);
+        String rule;
+        while ((rule = splitter.next()) != null) {
+            RuleHash hash = RuleHash.of(rule);
+            Entry[] entries = next.get(hash);
+            if (entries == null) {
+                entries = rules.get(hash);
+            }
+            if (entries == null) {
+                recorded.clear();
+                try {
+                    parser.parse(new StringReader(rule));
+                } catch (ParseException e) {
+                    errors.invalid(rule, splitter.lineNumber(), e);
+                    continue;
+                }
+                entries = recorded.toArray(new Entry[0]);
+                analyzedRules++;
+            }
+            next.put(hash, entries);
+            for (Entry entry : entries) {
+                builder.add(entry.input, entry.output, entry.includeOrig);
+            }
+        }
+
+        logger.debug("delta synonym parse: {} rules, {} analyzed", next.size(), analyzedRules);
+        rules = next;
+        return builder;
+    }
+
+    /**
+     * @return a parser that appends the entries of the parsed rules to the
+     * list instead of building a map
+     */
+    static SynonymMap.Parser newRecordingParser(String format, boolean expand, Analyzer analyzer,
+                                                List<Entry> recorded) {
+        if ("wordnet".equalsIgnoreCase(format)) {
+            return new WordnetSynonymParser(true, expand, analyzer) {
+                @Override
+                public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+                    recorded.add(new Entry(input, output, includeOrig));
+                }
+            };
+        }
+        return new SolrSynonymParser(true, expand, analyzer) {
+            @Override
+            public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+                recorded.add(new Entry(input, output, includeOrig));
+            }
+        };
+    }
+
+    /**
+     * @return a parser that adds the entries of the parsed rules to another
+     * builder
+     */
+    static SynonymMap.Parser newParser(String format, boolean expand, Analyzer analyzer,
+                                       SynonymMap.Builder target) {
+        if ("wordnet".equalsIgnoreCase(format)) {
+            return new WordnetSynonymParser(true, expand, analyzer) {
+                @Override
+                public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+                    target.add(input, output, includeOrig);
+                }
+            };
+        }
+        return new SolrSynonymParser(true, expand, analyzer) {
+            @Override
+            public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+                target.add(input, output, includeOrig);
+            }
+        };
+    }
+
+    /**
+     * One analyzed input/output pair as handed to {@link SynonymMap.Builder#add}
+     */
+    static final class Entry {
+        final CharsRef input;
+        final CharsRef output;
+        final boolean includeOrig;
+
+        Entry(CharsRef input, CharsRef output, boolean includeOrig) {
+            this.input = CharsRef.deepCopyOf(input);
+            this.output = CharsRef.deepCopyOf(output);
+            this.includeOrig = includeOrig;
+        }
+    }
+
+    /**
+     * 128 bit murmur3 hash of a rule, so the rule text itself need not be kept
+     */
+    private static final class RuleHash {
+        final long h1;
+        final long h2;
+
+        private RuleHash(long h1, long h2) {
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        static RuleHash of(String rule) {
+            byte[] bytes = rule.getBytes(StandardCharsets.UTF_8);
+            MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128());
+            return new RuleHash(hash.h1, hash.h2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RuleHash that = (RuleHash) o;
+            return h1 == that.h1 && h2 == that.h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(h1);
+        }
+    }
+
+    /**
+     * @return splitter of the rules of the given format
+     */
+    static RuleSplitter splitter(BufferedReader reader, String format) {
+        return "wordnet".equalsIgnoreCase(format) ? new WordnetRuleSplitter(reader) : new SolrRuleSplitter(reader);
+    }
+
+    abstract static class RuleSplitter {
+        final BufferedReader reader;
+        int lineNumber;
+
+        RuleSplitter(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        String readLine() throws IOException {
+            String line = reader.readLine();
+            if (line != null) {
+                lineNumber++;
+            }
+            return line;
+        }
+
+        int lineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * @return the next rule, null at the end of the input
+         */
+        abstract String next() throws IOException;
+    }
+
+    /**
+     * One rule per line, skipping the blank and comment lines that
+     * {@link SolrSynonymParser} ignores
+     */
+    private static final class SolrRuleSplitter extends RuleSplitter {
+
+        SolrRuleSplitter(BufferedReader reader) {
+            super(reader);
+        }
+
+        @Override
+        String next() throws IOException {
+            String line;
+            while ((line = readLine()) != null) {
+                if (line.length() > 0 && line.charAt(0) != '#') {
+                    return line;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Consecutive lines sharing a synset id, grouped the same way as
+     * {@link WordnetSynonymParser} does
+     */
+    private static final class WordnetRuleSplitter extends RuleSplitter {
+
+        private String pending;
+
+        WordnetRuleSplitter(BufferedReader reader) {
+            super(reader);
+        }
+
+        private static String synSetId(String line) {
+            return line.length() >= 11 ? line.substring(2, 11) : line;
+        }
+
+        @Override
+        String next() throws IOException {
+            String first = pending != null ? pending : readLine();
+            pending = null;
+            if (first == null) {
+                return null;
+            }
+            String synSetId = synSetId(first);
+            StringBuilder rule = new StringBuilder(first);
+            String line;
+            while ((line = readLine()) != null) {
+                if (!synSetId(line).equals(synSetId)) {
+                    pending = line;
+                    break;
+                }
+                rule.append('\n').append(line);
+            }
+            return rule.toString();
+        }
+    }
+}
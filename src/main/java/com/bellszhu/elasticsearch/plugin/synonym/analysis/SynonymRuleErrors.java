@@ -0,0 +1,54 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.text.ParseException;
+
+/**
+ * Invalid rules of one load. Up to {@code max_invalid_rules} of them are
+ * logged and left out of the map, one more fails the load. Safe to share
+ * between the threads of a parallel parse.
+ *
+ * @author bellszhu
+ */
+final class SynonymRuleErrors {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    private final int budget;
+
+    private final String location;
+
+    private int count;
+
+    SynonymRuleErrors(int budget, String location) {
+        this.budget = budget;
+        this.location = location;
+    }
+
+    /**
+     * Skips the rule, or fails if the budget is used up.
+     *
+     * @param lineNumber line of the file the rule ends on
+     * @param cause      error of the parser
+     */
+    synchronized void invalid(String rule, int lineNumber, Exception cause) throws ParseException {
+        ParseException e = new ParseException("Invalid synonym rule at line " + lineNumber + ": " + rule, lineNumber);
+        e.initCause(cause);
+        if (++count > budget) {
+            if (budget > 0) {
+                ParseException exceeded = new ParseException("more than [" + budget
+                        + "] invalid synonym rules, last: " + e.getMessage(), lineNumber);
+                exceeded.initCause(e);
+                throw exceeded;
+            }
+            throw e;
+        }
+        logger.warn("skip invalid synonym rule in {} at line {}: {}", location, lineNumber, rule);
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,107 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+
+/**
+ * Immutable view of a loaded synonym map. A new snapshot is published for
+ * every reload and filters only switch to it when they are reset, so a token
+ * stream is always analyzed against a single generation.
+ *
+ * @author bellszhu
+ */
+public final class SynonymSnapshot {
+
+    private final SynonymMap synonymMap;
+
+    private final long generation;
+
+    private final SynonymWords words;
+
+    private final SynonymLoadStats loadStats;
+
+    private final WordIdFst wordIds;
+
+    private final AhoCorasickSynonyms ahoCorasick;
+
+    private final SingleWordSynonyms singleWords;
+
+    private final SynonymFirstWords firstWords;
+
+    SynonymSnapshot(SynonymMap synonymMap, long generation, SynonymLoadStats loadStats) {
+        this(synonymMap, generation, loadStats, null, null, null, null);
+    }
+
+    SynonymSnapshot(SynonymMap synonymMap, long generation, SynonymLoadStats loadStats,
+                    WordIdFst wordIds, AhoCorasickSynonyms ahoCorasick, SingleWordSynonyms singleWords,
+                    SynonymFirstWords firstWords) {
+        this.synonymMap = synonymMap;
+        this.wordIds = wordIds;
+        this.ahoCorasick = ahoCorasick;
+        this.singleWords = singleWords;
+        this.firstWords = firstWords;
+        this.words = synonymMap == null ? null : OffHeapSynonymMap.words(synonymMap);
+        this.generation = generation;
+        this.loadStats = loadStats;
+    }
+
+    public SynonymMap getSynonymMap() {
+        return synonymMap;
+    }
+
+    /**
+     * @return output words of the map, wherever they are stored
+     */
+    SynonymWords getWords() {
+        return words;
+    }
+
+    /**
+     * @return the map relabelled with word ids, null to match characters
+     */
+    WordIdFst getWordIds() {
+        return wordIds;
+    }
+
+    /**
+     * @return automaton over the rule words, null to match with an FST
+     */
+    AhoCorasickSynonyms getAhoCorasick() {
+        return ahoCorasick;
+    }
+
+    /**
+     * @return hash table of the first words, null to match with an FST
+     */
+    SingleWordSynonyms getSingleWords() {
+        return singleWords;
+    }
+
+    /**
+     * @return filter of the tokens that may start a rule, null to try every
+     * token
+     */
+    SynonymFirstWords getFirstWords() {
+        return firstWords;
+    }
+
+    /**
+     * @return number of reloads since the source was loaded, starting at 0
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return cost of the load that produced this snapshot
+     */
+    public SynonymLoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    /**
+     * @return true if there are no rules, filters just pass tokens through
+     */
+    public boolean isEmpty() {
+        return synonymMap == null || synonymMap.fst == null;
+    }
+}
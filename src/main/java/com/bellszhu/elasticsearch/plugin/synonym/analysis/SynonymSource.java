@@ -0,0 +1,294 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A synonym file shared by every filter factory on the node that has the same
+ * {@link SynonymSourceKey}. The map is built once, checked for updates by a
+ * single monitor task of the synonym service and reference counted by the
+ * factories using it.
+ *
+ * <p>
+ * Reloads never touch live filters: a new {@link SynonymSnapshot} is built
+ * completely, checked against the {@link SynonymReloadChecks}, then published
+ * through a volatile reference and each filter picks it up on its next reset.
+ * A reload that fails or is rejected keeps the current snapshot and is retried
+ * even if the file does not change again, after {@link #MIN_RETRY} and twice
+ * as long after every further failure, up to {@link #MAX_RETRY}.
+ * </p>
+ *
+ * @author bellszhu
+ */
+public class SynonymSource implements Runnable {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    static final TimeValue MIN_RETRY = TimeValue.timeValueSeconds(5);
+    static final TimeValue MAX_RETRY = TimeValue.timeValueMinutes(10);
+
+    private final SynonymSourceKey key;
+
+    private final SynonymFile synonymFile;
+
+    private volatile SynonymSnapshot snapshot;
+
+    /**
+     * Serializes the monitor and reloads requested through the API
+     */
+    private final Object reloadLock = new Object();
+
+    private int refCount;
+
+    private volatile SynonymReloadChecks checks = SynonymReloadChecks.NONE;
+
+    /**
+     * Consecutive failed reloads, guarded by the reload lock
+     */
+    private int failedReloads;
+
+    /**
+     * Whether the last reload failed, {@link #retryAt} is valid then
+     */
+    private volatile boolean retrying;
+
+    /**
+     * {@link System#nanoTime()} from which the failed reload is retried
+     */
+    private volatile long retryAt;
+
+    /**
+     * Check and reload history, guarded by itself
+     */
+    private final History history = new History();
+
+    /**
+     * Count the tokens of one stream in this many, 0 to not count
+     */
+    private volatile int tokenSampling;
+
+    private final LongAdder tokens = new LongAdder();
+
+    private final LongAdder synonyms = new LongAdder();
+
+    public SynonymSource(SynonymSourceKey key, SynonymFile synonymFile) {
+        this.key = key;
+        this.synonymFile = synonymFile;
+        this.snapshot = snapshot(synonymFile.reloadSynonymMap(), 0);
+        synonymFile.reloadCompleted(true);
+    }
+
+    public SynonymSourceKey getKey() {
+        return key;
+    }
+
+    public SynonymSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return true if the map was loaded from a local copy of the file that
+     * was not checked against its origin yet
+     */
+    public boolean isFromCache() {
+        return synonymFile.isFromCache();
+    }
+
+    public synchronized void incRef() {
+        refCount++;
+    }
+
+    /**
+     * @return true if this was the last reference
+     */
+    public synchronized boolean decRef() {
+        assert refCount > 0 : "synonym source " + key + " already released";
+        return --refCount == 0;
+    }
+
+    /**
+     * Applies the checks on top of those of the other filters using this
+     * source, keeping the strictest.
+     */
+    public synchronized void addChecks(SynonymReloadChecks checks) {
+        this.checks = this.checks.merge(checks);
+    }
+
+    /**
+     * Reloads the map if the file changed since the last load, or if a failed
+     * reload is due to be retried. Failures are logged, the current map stays.
+     */
+    @Override
+    public void run() {
+        synchronized (reloadLock) {
+            boolean changed = synonymFile.isNeedReloadSynonymMap();
+            history.checked();
+            if (changed || (retrying && System.nanoTime() - retryAt >= 0)) {
+                try {
+                    publish();
+                } catch (RuntimeException e) {
+                    logger.error(new ParameterizedMessage("reload synonym {} failed, keeping generation {}, retrying in {}",
+                            key, snapshot.getGeneration(), getRetryDelay()), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reloads the map now, whether or not the file changed.
+     *
+     * @return the snapshot with the reloaded map
+     */
+    public SynonymSnapshot reload() {
+        synchronized (reloadLock) {
+            // refreshes what the file compares against, so the monitor does
+            // not load the same change again
+            synonymFile.isNeedReloadSynonymMap();
+            history.checked();
+            publish();
+            return snapshot;
+        }
+    }
+
+    /**
+     * @return time until a failed reload is retried, null if the last reload
+     * succeeded
+     */
+    public TimeValue getRetryDelay() {
+        if (!retrying) {
+            return null;
+        }
+        return TimeValue.timeValueNanos(Math.max(0, retryAt - System.nanoTime()));
+    }
+
+    private void publish() {
+        SynonymSnapshot next;
+        try {
+            SynonymMap synonymMap = synonymFile.reloadSynonymMap();
+            try {
+                checks.check(snapshot.getLoadStats(), synonymFile.getLoadStats());
+                next = snapshot(synonymMap, snapshot.getGeneration() + 1);
+            } catch (RuntimeException e) {
+                synonymFile.reloadCompleted(false);
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            history.failed(e);
+            failedReloads++;
+            retryAt = System.nanoTime()
+                    + Math.min(MAX_RETRY.nanos(), MIN_RETRY.nanos() << Math.min(failedReloads - 1, 20));
+            retrying = true;
+            throw e;
+        }
+        snapshot = next;
+        synonymFile.reloadCompleted(true);
+        failedReloads = 0;
+        retrying = false;
+        history.reloaded(snapshot.getLoadStats());
+        logger.info("success reload synonym {}, generation {}", key, snapshot.getGeneration());
+    }
+
+    /**
+     * @param tokenSampling count the tokens of one stream in this many, 0 to
+     *                      not count
+     */
+    public void setTokenSampling(int tokenSampling) {
+        this.tokenSampling = tokenSampling;
+    }
+
+    int getTokenSampling() {
+        return tokenSampling;
+    }
+
+    /**
+     * Adds the counts of a sampled stream, scaled by the sampling
+     */
+    void addSampledTokens(long tokens, long synonyms) {
+        this.tokens.add(tokens * tokenSampling);
+        this.synonyms.add(synonyms * tokenSampling);
+    }
+
+    public SynonymSourceStats stats() {
+        int filters;
+        synchronized (this) {
+            filters = refCount;
+        }
+        SynonymSnapshot current = snapshot;
+        synchronized (history) {
+            return new SynonymSourceStats(key.toString(), current.getGeneration(), synonymFile.getVersion(),
+                    filters, current.getLoadStats(), history.checks, history.lastCheck,
+                    synonymFile.getCheckFailures(), history.reloads, history.lastReload,
+                    history.failures, history.lastFailure, history.lastError,
+                    history.parseTime.copy(), history.buildTime.copy(),
+                    tokenSampling, tokens.sum(), synonyms.sum());
+        }
+    }
+
+    private SynonymSnapshot snapshot(SynonymMap synonymMap, long generation) {
+        WordIdFst wordIds = null;
+        AhoCorasickSynonyms ahoCorasick = null;
+        SingleWordSynonyms singleWords = null;
+        try {
+            if (key.getMatcher() == SynonymMatcher.WORD_ID) {
+                wordIds = WordIdFst.build(synonymMap, key.isIgnoreCase());
+            } else if (key.getMatcher() == SynonymMatcher.AHO_CORASICK) {
+                ahoCorasick = AhoCorasickSynonyms.build(synonymMap, key.isIgnoreCase());
+            } else if (key.getMatcher() == SynonymMatcher.HASH) {
+                singleWords = SingleWordSynonyms.build(synonymMap, key.isIgnoreCase());
+            }
+        } catch (IOException e) {
+            logger.warn(new ParameterizedMessage("build {} matcher for synonym {} failed, matching characters instead",
+                    key.getMatcher(), key), e);
+        }
+        SynonymFirstWords firstWords = null;
+        // the hash table rejects tokens starting no rule by itself
+        if (singleWords == null) {
+            try {
+                firstWords = SynonymFirstWords.build(synonymMap, key.isIgnoreCase());
+            } catch (IOException e) {
+                logger.warn(new ParameterizedMessage("build first words of synonym {} failed, trying every token", key), e);
+            }
+        }
+        return new SynonymSnapshot(synonymMap, generation, synonymFile.getLoadStats(),
+                wordIds, ahoCorasick, singleWords, firstWords);
+    }
+
+    private static final class History {
+
+        private long checks;
+        private long lastCheck = -1;
+        private long reloads;
+        private long lastReload = -1;
+        private long failures;
+        private long lastFailure = -1;
+        private String lastError;
+        private final SynonymDurationHistogram parseTime = new SynonymDurationHistogram();
+        private final SynonymDurationHistogram buildTime = new SynonymDurationHistogram();
+
+        synchronized void checked() {
+            checks++;
+            lastCheck = System.currentTimeMillis();
+        }
+
+        synchronized void reloaded(SynonymLoadStats loadStats) {
+            reloads++;
+            lastReload = System.currentTimeMillis();
+            if (loadStats != null) {
+                parseTime.record(loadStats.getParseMillis());
+                buildTime.record(loadStats.getBuildMillis());
+            }
+        }
+
+        synchronized void failed(Exception e) {
+            failures++;
+            lastFailure = System.currentTimeMillis();
+            lastError = e.getCause() != null ? e.getMessage() + ": " + e.getCause().getMessage() : e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Objects;
+
+/**
+ * Identity of a synonym source on a node. Two filter definitions with equal
+ * keys build exactly the same {@link org.apache.lucene.analysis.synonym.SynonymMap},
+ * so they can share one copy of it.
+ *
+ * @author bellszhu
+ */
+public final class SynonymSourceKey {
+
+    private final String location;
+
+    private final String format;
+
+    private final boolean expand;
+
+    private final boolean ignoreCase;
+
+    private final String tokenizer;
+
+    /**
+     * Settings of the tokenizer, a custom tokenizer of the same name may be
+     * configured differently in two indices
+     */
+    private final Settings tokenizerSettings;
+
+    private final boolean deltaReload;
+
+    private final boolean offHeap;
+
+    private final SynonymMatcher matcher;
+
+    /**
+     * Decides which rules end up in the map when some are invalid
+     */
+    private final int maxInvalidRules;
+
+    private final boolean equivalenceClasses;
+
+    public SynonymSourceKey(String location, String format, boolean expand,
+                            boolean ignoreCase, String tokenizer, Settings tokenizerSettings,
+                            boolean deltaReload, boolean offHeap, SynonymMatcher matcher,
+                            int maxInvalidRules, boolean equivalenceClasses) {
+        this.location = location;
+        this.format = format;
+        this.expand = expand;
+        this.ignoreCase = ignoreCase;
+        this.tokenizer = tokenizer;
+        this.tokenizerSettings = tokenizerSettings;
+        this.deltaReload = deltaReload;
+        this.offHeap = offHeap;
+        this.matcher = matcher;
+        this.maxInvalidRules = maxInvalidRules;
+        this.equivalenceClasses = equivalenceClasses;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    SynonymMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * @return identity of the analysis used to parse the rules, as recorded
+     * in compiled synonym maps
+     */
+    String analyzerFingerprint() {
+        return CompiledSynonymMap.analyzerFingerprint(tokenizer, tokenizerSettings, ignoreCase);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        SynonymSourceKey that = (SynonymSourceKey) o;
+        return expand == that.expand
+                && ignoreCase == that.ignoreCase
+                && deltaReload == that.deltaReload
+                && offHeap == that.offHeap
+                && matcher == that.matcher
+                && maxInvalidRules == that.maxInvalidRules
+                && equivalenceClasses == that.equivalenceClasses
+                && location.equals(that.location)
+                && format.equals(that.format)
+                && tokenizer.equals(that.tokenizer)
+                && tokenizerSettings.equals(that.tokenizerSettings);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(location, format, expand, ignoreCase, tokenizer, tokenizerSettings, deltaReload, offHeap, matcher,
+                maxInvalidRules, equivalenceClasses);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + location + ", format=" + format + ", expand=" + expand
+                + ", ignore_case=" + ignoreCase + ", tokenizer=" + tokenizer + ", delta_reload=" + deltaReload
+                + ", off_heap=" + offHeap + ", matcher=" + matcher + ", max_invalid_rules=" + maxInvalidRules
+                + ", equivalence_classes=" + equivalenceClasses + "]";
+    }
+}
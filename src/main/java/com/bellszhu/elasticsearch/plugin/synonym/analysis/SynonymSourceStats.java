@@ -0,0 +1,228 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * State and history of one synonym source on a node, as reported by the
+ * stats API. Timestamps are epoch millis, -1 if it never happened.
+ *
+ * @author bellszhu
+ */
+public final class SynonymSourceStats implements Writeable, ToXContentObject {
+
+    private final String source;
+    private final long generation;
+    private final String version;
+    private final int filters;
+    private final long rules;
+    private final long invalidRules;
+    private final long bytes;
+    private final long fstRamBytes;
+    private final long checks;
+    private final long lastCheck;
+    private final long checkFailures;
+    private final long reloads;
+    private final long lastReload;
+    private final long failures;
+    private final long lastFailure;
+    private final String lastError;
+    private final SynonymDurationHistogram parseTime;
+    private final SynonymDurationHistogram buildTime;
+    private final int tokenSampling;
+    private final long tokens;
+    private final long synonyms;
+
+    SynonymSourceStats(String source, long generation, String version, int filters,
+                       SynonymLoadStats loadStats, long checks, long lastCheck, long checkFailures,
+                       long reloads, long lastReload, long failures, long lastFailure, String lastError,
+                       SynonymDurationHistogram parseTime, SynonymDurationHistogram buildTime,
+                       int tokenSampling, long tokens, long synonyms) {
+        this.source = source;
+        this.generation = generation;
+        this.version = version;
+        this.filters = filters;
+        this.rules = loadStats == null ? 0 : loadStats.getRules();
+        this.invalidRules = loadStats == null ? 0 : loadStats.getInvalidRules();
+        this.bytes = loadStats == null ? 0 : loadStats.getBytes();
+        this.fstRamBytes = loadStats == null ? 0 : loadStats.getFstRamBytes();
+        this.checks = checks;
+        this.lastCheck = lastCheck;
+        this.checkFailures = checkFailures;
+        this.reloads = reloads;
+        this.lastReload = lastReload;
+        this.failures = failures;
+        this.lastFailure = lastFailure;
+        this.lastError = lastError;
+        this.parseTime = parseTime;
+        this.buildTime = buildTime;
+        this.tokenSampling = tokenSampling;
+        this.tokens = tokens;
+        this.synonyms = synonyms;
+    }
+
+    public SynonymSourceStats(StreamInput in) throws IOException {
+        source = in.readString();
+        generation = in.readVLong();
+        version = in.readOptionalString();
+        filters = in.readVInt();
+        rules = in.readVLong();
+        invalidRules = in.readVLong();
+        bytes = in.readVLong();
+        fstRamBytes = in.readVLong();
+        checks = in.readVLong();
+        lastCheck = in.readLong();
+        checkFailures = in.readVLong();
+        reloads = in.readVLong();
+        lastReload = in.readLong();
+        failures = in.readVLong();
+        lastFailure = in.readLong();
+        lastError = in.readOptionalString();
+        parseTime = new SynonymDurationHistogram(in);
+        buildTime = new SynonymDurationHistogram(in);
+        tokenSampling = in.readVInt();
+        tokens = in.readVLong();
+        synonyms = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(source);
+        out.writeVLong(generation);
+        out.writeOptionalString(version);
+        out.writeVInt(filters);
+        out.writeVLong(rules);
+        out.writeVLong(invalidRules);
+        out.writeVLong(bytes);
+        out.writeVLong(fstRamBytes);
+        out.writeVLong(checks);
+        out.writeLong(lastCheck);
+        out.writeVLong(checkFailures);
+        out.writeVLong(reloads);
+        out.writeLong(lastReload);
+        out.writeVLong(failures);
+        out.writeLong(lastFailure);
+        out.writeOptionalString(lastError);
+        parseTime.writeTo(out);
+        buildTime.writeTo(out);
+        out.writeVInt(tokenSampling);
+        out.writeVLong(tokens);
+        out.writeVLong(synonyms);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return version of the loaded file as its origin reports it (ETag,
+     * modification time or set version), null if unknown
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return number of filter definitions of the indices on the node that
+     * use the source
+     */
+    public int getFilters() {
+        return filters;
+    }
+
+    public long getRules() {
+        return rules;
+    }
+
+    public long getInvalidRules() {
+        return invalidRules;
+    }
+
+    public long getFstRamBytes() {
+        return fstRamBytes;
+    }
+
+    public long getLastCheck() {
+        return lastCheck;
+    }
+
+    public long getLastReload() {
+        return lastReload;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public SynonymDurationHistogram getParseTime() {
+        return parseTime;
+    }
+
+    public SynonymDurationHistogram getBuildTime() {
+        return buildTime;
+    }
+
+    /**
+     * @return estimated number of tokens produced by the filters, 0 unless
+     * token sampling is enabled
+     */
+    public long getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return estimated number of synonyms emitted by the filters, 0 unless
+     * token sampling is enabled
+     */
+    public long getSynonyms() {
+        return synonyms;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("source", source);
+        builder.field("generation", generation);
+        if (version != null) {
+            builder.field("version", version);
+        }
+        builder.field("filters", filters);
+        builder.field("rules", rules);
+        builder.field("invalid_rules", invalidRules);
+        builder.field("loaded_bytes", bytes);
+        builder.field("fst_ram_bytes", fstRamBytes);
+        builder.field("checks", checks);
+        if (lastCheck != -1) {
+            builder.timeField("last_check_in_millis", "last_check", lastCheck);
+        }
+        builder.field("check_failures", checkFailures);
+        builder.field("reloads", reloads);
+        if (lastReload != -1) {
+            builder.timeField("last_reload_in_millis", "last_reload", lastReload);
+        }
+        builder.field("failures", failures);
+        if (lastFailure != -1) {
+            builder.timeField("last_failure_in_millis", "last_failure", lastFailure);
+            builder.field("last_error", lastError);
+        }
+        builder.field("parse_time", parseTime);
+        builder.field("build_time", buildTime);
+        if (tokenSampling > 0) {
+            builder.startObject("tokens");
+            builder.field("sampling", tokenSampling);
+            builder.field("processed", tokens);
+            builder.field("synonyms", synonyms);
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+}
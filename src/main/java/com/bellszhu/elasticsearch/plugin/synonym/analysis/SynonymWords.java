@@ -0,0 +1,93 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+
+/**
+ * Output words of a synonym map, looked up by the ids stored in the FST
+ * outputs. Either the {@link BytesRefHash} of a heap map or a table read
+ * from a memory mapped compiled file.
+ *
+ * @author bellszhu
+ */
+abstract class SynonymWords {
+
+    abstract int size();
+
+    /**
+     * @param id      word id
+     * @param scratch reference that may be pointed at shared heap bytes, which
+     *                must not be written to
+     * @param buffer  private buffer the word may be copied into
+     * @return the UTF-8 bytes of the word
+     */
+    abstract BytesRef get(int id, BytesRef scratch, BytesRefBuilder buffer) throws IOException;
+
+    static SynonymWords onHeap(BytesRefHash words) {
+        return new OnHeap(words);
+    }
+
+    /**
+     * @param offsets {@code size + 1} longs, the start of each word in bytes
+     *                followed by the total length
+     * @param bytes   the concatenated words
+     */
+    static SynonymWords offHeap(int size, RandomAccessInput offsets, RandomAccessInput bytes) {
+        return new OffHeap(size, offsets, bytes);
+    }
+
+    private static final class OnHeap extends SynonymWords {
+
+        private final BytesRefHash words;
+
+        OnHeap(BytesRefHash words) {
+            this.words = words;
+        }
+
+        @Override
+        int size() {
+            return words.size();
+        }
+
+        @Override
+        BytesRef get(int id, BytesRef scratch, BytesRefBuilder buffer) {
+            return words.get(id, scratch);
+        }
+    }
+
+    private static final class OffHeap extends SynonymWords {
+
+        private final int size;
+
+        private final RandomAccessInput offsets;
+
+        private final RandomAccessInput bytes;
+
+        OffHeap(int size, RandomAccessInput offsets, RandomAccessInput bytes) {
+            this.size = size;
+            this.offsets = offsets;
+            this.bytes = bytes;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        BytesRef get(int id, BytesRef scratch, BytesRefBuilder buffer) throws IOException {
+            long start = offsets.readLong((long) id * Long.BYTES);
+            int length = (int) (offsets.readLong((long) (id + 1) * Long.BYTES) - start);
+            buffer.grow(length);
+            for (int i = 0; i < length; i++) {
+                buffer.setByteAt(i, bytes.readByte(start + i));
+            }
+            buffer.setLength(length);
+            return buffer.get();
+        }
+    }
+}
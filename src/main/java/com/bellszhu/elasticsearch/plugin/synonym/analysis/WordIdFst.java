@@ -0,0 +1,121 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The synonym FST relabelled with word ids: every distinct word of the rule
+ * inputs gets an id and each arc consumes a whole token instead of a single
+ * character. A token that is not a rule word is rejected by one hash lookup,
+ * without walking the FST.
+ *
+ * <p>
+ * Built once per snapshot from the {@link SynonymMap}, which stays the source
+ * of the output words. The outputs of the rules are unchanged, so matches are
+ * exactly those of the character FST.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class WordIdFst {
+
+    final FST<BytesRef> fst;
+
+    private final CharArrayMap<Integer> vocabulary;
+
+    private WordIdFst(FST<BytesRef> fst, CharArrayMap<Integer> vocabulary) {
+        this.fst = fst;
+        this.vocabulary = vocabulary;
+    }
+
+    /**
+     * @return id of the token or -1 if no rule input contains it
+     */
+    int wordId(char[] buffer, int offset, int length) {
+        Integer id = vocabulary.get(buffer, offset, length);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param ignoreCase look words up case insensitively, like the filter
+     * @return null if the map has no rules or two rule inputs only differ by
+     * case although the lookup ignores it
+     */
+    static WordIdFst build(SynonymMap synonymMap, boolean ignoreCase) throws IOException {
+        if (synonymMap.fst == null) {
+            return null;
+        }
+        CharArrayMap<Integer> vocabulary = new CharArrayMap<>(1024, ignoreCase);
+        List<IntsRef> inputs = new ArrayList<>();
+        List<BytesRef> outputs = new ArrayList<>();
+        forEachRule(synonymMap, vocabulary, (input, output) -> {
+            inputs.add(input);
+            outputs.add(output);
+        });
+
+        Integer[] order = new Integer[inputs.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> inputs.get(a).compareTo(inputs.get(b)));
+
+        Builder<BytesRef> builder = new Builder<>(FST.INPUT_TYPE.BYTE4, ByteSequenceOutputs.getSingleton());
+        IntsRef previous = null;
+        for (int i : order) {
+            IntsRef input = inputs.get(i);
+            if (input.equals(previous)) {
+                return null;
+            }
+            builder.add(input, outputs.get(i));
+            previous = input;
+        }
+        return new WordIdFst(builder.finish(), vocabulary);
+    }
+
+    /**
+     * Splits the inputs of all rules of the map into words, assigning ids to
+     * new words in the order they are seen.
+     *
+     * @param rule receives a copy of the word ids of each rule input and its output
+     */
+    static void forEachRule(SynonymMap synonymMap, CharArrayMap<Integer> vocabulary,
+                            BiConsumer<IntsRef, BytesRef> rule) throws IOException {
+        IntsRefFSTEnum<BytesRef> rules = new IntsRefFSTEnum<>(synonymMap.fst);
+        IntsRefFSTEnum.InputOutput<BytesRef> next;
+        IntsRefBuilder ids = new IntsRefBuilder();
+        while ((next = rules.next()) != null) {
+            // the input is the code points of the words, separated by
+            // SynonymMap.WORD_SEPARATOR
+            IntsRef codePoints = next.input;
+            ids.clear();
+            int start = codePoints.offset;
+            int end = codePoints.offset + codePoints.length;
+            for (int i = start; i <= end; i++) {
+                if (i == end || codePoints.ints[i] == SynonymMap.WORD_SEPARATOR) {
+                    String word = new String(codePoints.ints, start, i - start);
+                    Integer id = vocabulary.get(word);
+                    if (id == null) {
+                        id = vocabulary.size();
+                        vocabulary.put(word, id);
+                    }
+                    ids.append(id);
+                    start = i + 1;
+                }
+            }
+            rule.accept(ids.toIntsRef(), BytesRef.deepCopyOf(next.output));
+        }
+    }
+}
@@ -1,17 +1,395 @@
 package com.bellszhu.elasticsearch.plugin.synonym.service;
 
 import com.bellszhu.elasticsearch.plugin.DynamicSynonymPlugin;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymFile;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymLayers;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymParallelParser;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymReloadChecks;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymRemoteCache;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSource;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSourceKey;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSourceStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 
 public class DynamicSynonymAnalysisService extends AbstractLifecycleComponent {
 
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    /**
+     * Bounded executor the synonym sources are checked and reloaded on
+     */
+    public static final String THREAD_POOL_NAME = "dynamic_synonym";
+
+    /**
+     * Executor the rules of large files are analyzed on in parallel, with a
+     * single thread files are parsed by the reloading thread itself
+     */
+    public static final String PARSE_THREAD_POOL_NAME = "dynamic_synonym_parse";
+
+    /**
+     * Fraction of the interval by which each check is randomly moved, so
+     * sources with the same interval do not hit the synonym server together
+     */
+    public static final Setting<Double> RELOAD_JITTER_SETTING =
+            Setting.doubleSetting("dynamic_synonym.reload_jitter", 0.1, 0.0, Setting.Property.NodeScope);
+
+    /**
+     * Count the tokens of one analyzed stream in this many for the stats,
+     * 0 disables counting
+     */
+    public static final Setting<Integer> TOKEN_STATS_SAMPLING_SETTING =
+            Setting.intSetting("dynamic_synonym.token_stats_sampling", 0, 0, Setting.Property.NodeScope);
+
+    /**
+     * Check local synonym files as soon as their directory changes, on top
+     * of the periodic checks
+     */
+    public static final Setting<Boolean> WATCH_FILES_SETTING =
+            Setting.boolSetting("dynamic_synonym.watch_files", false, Setting.Property.NodeScope);
+
+    /**
+     * Quiet time after the last change of a watched directory before the
+     * files are checked, so a file is not loaded half written
+     */
+    public static final Setting<TimeValue> WATCH_DEBOUNCE_SETTING =
+            Setting.timeSetting("dynamic_synonym.watch_debounce", TimeValue.timeValueMillis(500),
+                    TimeValue.timeValueMillis(1), Setting.Property.NodeScope);
+
+    /**
+     * Keep the last downloaded copy of remote synonym files under the data
+     * path, so a restarted node loads them without the synonym server
+     */
+    public static final Setting<Boolean> REMOTE_CACHE_SETTING =
+            Setting.boolSetting("dynamic_synonym.remote_cache", true, Setting.Property.NodeScope);
+
+    private final ThreadPool threadPool;
+
+    private final Client client;
+
+    private final double jitter;
+
+    private final int tokenSampling;
+
+    private final SynonymParallelParser parallelParser;
+
+    /**
+     * Null unless watching is enabled
+     */
+    private final SynonymFileWatcher watcher;
+
+    private final TimeValue watchDebounce;
+
+    /**
+     * Null if disabled or the node has no data path
+     */
+    private final SynonymRemoteCache remoteCache;
+
+    /**
+     * Synonym sources shared by all indices of this node
+     */
+    private final Map<SynonymSourceKey, Monitor> sources = new HashMap<>();
+
+    /**
+     * First loads in progress, outside of the lock, by key. Other indices
+     * asking for the same source wait for them.
+     */
+    private final Map<SynonymSourceKey, CompletableFuture<Void>> loading = new HashMap<>();
+
+    /**
+     * References held by each index, by the identity of its settings
+     */
+    private final Map<IndexRefs, IndexRefs> indices = new HashMap<>();
+
+    /**
+     * Settings of indices that were garbage collected without being removed
+     */
+    private final ReferenceQueue<IndexSettings> collected = new ReferenceQueue<>();
+
+    /**
+     * Stacked sources shared by all indices of this node, by the keys of
+     * their sources
+     */
+    private final Map<List<SynonymSourceKey>, Compaction> layers = new HashMap<>();
+
     @Inject
-    public DynamicSynonymAnalysisService(final AnalysisRegistry analysisRegistry,
+    public DynamicSynonymAnalysisService(final Settings settings,
+                                         final ThreadPool threadPool,
+                                         final Client client,
+                                         final AnalysisRegistry analysisRegistry,
                                          final DynamicSynonymPlugin.PluginComponent pluginComponent) {
         super();
+        this.threadPool = threadPool;
+        this.client = client;
+        this.jitter = Math.min(RELOAD_JITTER_SETTING.get(settings), 1.0);
+        this.tokenSampling = TOKEN_STATS_SAMPLING_SETTING.get(settings);
+        int parseThreads = threadPool.info(PARSE_THREAD_POOL_NAME).getMax();
+        this.parallelParser = parseThreads > 1
+                ? new SynonymParallelParser(threadPool.executor(PARSE_THREAD_POOL_NAME), parseThreads)
+                : null;
+        this.watcher = WATCH_FILES_SETTING.get(settings)
+                ? new SynonymFileWatcher(EsExecutors.daemonThreadFactory(settings, "dynamic_synonym_watcher"))
+                : null;
+        this.watchDebounce = WATCH_DEBOUNCE_SETTING.get(settings);
+        Path dataPath = pluginComponent.getDataPath();
+        this.remoteCache = REMOTE_CACHE_SETTING.get(settings) && dataPath != null
+                ? new SynonymRemoteCache(dataPath.resolve("dynamic_synonym"))
+                : null;
         pluginComponent.setAnalysisRegistry(analysisRegistry);
+        pluginComponent.setSynonymService(this);
+    }
+
+    /**
+     * @return client for sources stored in the cluster
+     */
+    public Client client() {
+        return client;
+    }
+
+    /**
+     * @return parser analyzing the rules on the parse thread pool, null if
+     * it has a single thread
+     */
+    public SynonymParallelParser parallelParser() {
+        return parallelParser;
+    }
+
+    /**
+     * @return local copies of remote synonym files, null if they are not kept
+     */
+    public SynonymRemoteCache remoteCache() {
+        return remoteCache;
+    }
+
+    /**
+     * Returns the shared source for the given key, loading it with the
+     * supplied synonym file if no index on this node uses it yet. The
+     * source is checked for updates every {@code interval} seconds, or more
+     * often if another index asks for a shorter interval, and its reloads have
+     * to pass the given checks as well as those of the other indices.
+     *
+     * <p>
+     * The first load may download or parse a large file, it runs outside of
+     * the lock so indices using other sources are not held up. Indices asking
+     * for a source being loaded wait for that load, and try it themselves if
+     * it failed.
+     * </p>
+     */
+    public SynonymSource acquire(IndexSettings indexSettings, SynonymSourceKey key,
+                                 int interval, SynonymReloadChecks checks,
+                                 Supplier<SynonymFile> synonymFile) {
+        CompletableFuture<Void> load = null;
+        while (load == null) {
+            CompletableFuture<Void> pending;
+            synchronized (this) {
+                releaseCollected();
+                Monitor monitor = sources.get(key);
+                if (monitor != null) {
+                    return register(indexSettings, monitor, interval, checks);
+                }
+                pending = loading.get(key);
+                if (pending == null) {
+                    load = new CompletableFuture<>();
+                    loading.put(key, load);
+                    break;
+                }
+            }
+            try {
+                pending.join();
+            } catch (CompletionException | CancellationException e) {
+                // failed for the index that loaded it, try again
+            }
+            // the source may have been unloaded again meanwhile, look it up
+        }
+
+        SynonymFile file;
+        Monitor monitor;
+        try {
+            file = synonymFile.get();
+            monitor = new Monitor(new SynonymSource(key, file));
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        SynonymSource source;
+        synchronized (this) {
+            loading.remove(key);
+            monitor.source.setTokenSampling(tokenSampling);
+            sources.put(key, monitor);
+            logger.info("load synonym source {}", key);
+            if (watcher != null && file.getPath() != null) {
+                monitor.watch(file.getPath());
+            }
+            source = register(indexSettings, monitor, interval, checks);
+        }
+        load.complete(null);
+        return source;
+    }
+
+    private SynonymSource register(IndexSettings indexSettings, Monitor monitor, int interval,
+                                   SynonymReloadChecks checks) {
+        monitor.source.incRef();
+        monitor.source.addChecks(checks);
+        monitor.schedule(interval);
+        refs(indexSettings).sources.add(monitor.source);
+        return monitor.source;
+    }
+
+    /**
+     * Returns the shared stack of the given sources, which the index must
+     * have acquired before. The layers are compacted every {@code compactInterval}
+     * seconds if they did not change in between, or more often if another
+     * index asks for a shorter interval, 0 to not compact.
+     *
+     * @param sources base first, then the overlays by increasing precedence
+     */
+    public synchronized SynonymLayers acquireLayers(IndexSettings indexSettings, List<SynonymSource> sources,
+                                                    boolean ignoreCase, int compactInterval) {
+        List<SynonymSourceKey> keys = new ArrayList<>(sources.size());
+        for (SynonymSource source : sources) {
+            keys.add(source.getKey());
+        }
+        Compaction compaction = layers.get(keys);
+        if (compaction == null) {
+            compaction = new Compaction(keys, new SynonymLayers(sources, ignoreCase));
+            layers.put(keys, compaction);
+        }
+        compaction.layers.incRef();
+        compaction.schedule(compactInterval);
+        refs(indexSettings).layers.add(compaction.layers);
+        return compaction.layers;
+    }
+
+    /**
+     * Drops all references held by an index, sources nobody uses anymore are
+     * unloaded.
+     */
+    public synchronized void release(IndexSettings indexSettings) {
+        releaseCollected();
+        IndexRefs refs = indices.remove(new IndexRefs(indexSettings, null));
+        if (refs != null) {
+            release(refs);
+        }
+    }
+
+    private IndexRefs refs(IndexSettings indexSettings) {
+        IndexRefs refs = indices.get(new IndexRefs(indexSettings, null));
+        if (refs == null) {
+            refs = new IndexRefs(indexSettings, collected);
+            indices.put(refs, refs);
+        }
+        return refs;
+    }
+
+    /**
+     * Releases the references of index services that were closed without
+     * being removed, like those built to verify or upgrade index metadata.
+     * No event reports their close, their settings becoming unreachable does.
+     */
+    private void releaseCollected() {
+        Object collectedRef;
+        while ((collectedRef = collected.poll()) != null) {
+            IndexRefs refs = (IndexRefs) collectedRef;
+            // removed already if the index was removed first
+            if (indices.remove(refs) != null) {
+                logger.debug("release synonym sources of closed index {}", refs.index);
+                release(refs);
+            }
+        }
+    }
+
+    private void release(IndexRefs refs) {
+        for (SynonymLayers stack : refs.layers) {
+            if (stack.decRef()) {
+                layers.values().removeIf(compaction -> {
+                    if (compaction.layers == stack) {
+                        compaction.cancel();
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+        for (SynonymSource source : refs.sources) {
+            if (source.decRef()) {
+                sources.remove(source.getKey()).cancel();
+                logger.info("unload synonym source {}", source.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param index    index name or wildcard pattern, null for all indices
+     * @param location synonyms path as configured, null for all sources
+     * @return the sources used by the matching indices on this node
+     */
+    public synchronized List<SynonymSource> getSources(String index, String location) {
+        releaseCollected();
+        Set<SynonymSource> matching = new LinkedHashSet<>();
+        for (IndexRefs refs : indices.keySet()) {
+            if (index != null && !Regex.simpleMatch(index, refs.index.getName())) {
+                continue;
+            }
+            for (SynonymSource source : refs.sources) {
+                if (location == null || location.equals(source.getKey().getLocation())) {
+                    matching.add(source);
+                }
+            }
+        }
+        return new ArrayList<>(matching);
+    }
+
+    /**
+     * @return stats of every source loaded on this node
+     */
+    public List<SynonymSourceStats> getStats() {
+        List<SynonymSource> loaded;
+        synchronized (this) {
+            releaseCollected();
+            loaded = new ArrayList<>(sources.size());
+            for (Monitor monitor : sources.values()) {
+                loaded.add(monitor.source);
+            }
+        }
+        List<SynonymSourceStats> stats = new ArrayList<>(loaded.size());
+        for (SynonymSource source : loaded) {
+            stats.add(source.stats());
+        }
+        return stats;
     }
 
     @Override
@@ -25,8 +403,265 @@ public class DynamicSynonymAnalysisService extends AbstractLifecycleComponent {
     }
 
     @Override
-    protected void doClose() {
-        // nothing
+    protected synchronized void doClose() {
+        for (Monitor monitor : sources.values()) {
+            monitor.cancel();
+        }
+        for (Compaction compaction : layers.values()) {
+            compaction.cancel();
+        }
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                logger.warn("close synonym file watcher error!", e);
+            }
+        }
+    }
+
+    /**
+     * @return a delay of {@code interval} seconds moved by up to the jitter
+     */
+    private TimeValue jittered(int interval) {
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return TimeValue.timeValueMillis(Math.max(1, Math.round(interval * 1000 * factor)));
+    }
+
+    /**
+     * Periodic update check of one source. Each run schedules the next one
+     * when it completes, so a source is never checked twice concurrently and
+     * a slow reload postpones only its own next check. A change reported by
+     * the file watcher moves the next check forward to the debounce delay,
+     * every further change pushes it back again. All state is guarded by the
+     * service.
+     */
+    private final class Monitor extends AbstractRunnable {
+
+        private final SynonymSource source;
+
+        private int interval = Integer.MAX_VALUE;
+
+        private Scheduler.Cancellable scheduled;
+
+        private boolean cancelled;
+
+        /**
+         * Watched file, null if not watched
+         */
+        private Path watched;
+
+        /**
+         * Whether the watcher reported a change while a check was running
+         */
+        private boolean changedWhileRunning;
+
+        private final Runnable changeListener = this::changed;
+
+        Monitor(SynonymSource source) {
+            this.source = source;
+        }
+
+        void watch(Path file) {
+            try {
+                watcher.watch(file, changeListener);
+                watched = file;
+            } catch (IOException e) {
+                logger.warn(new ParameterizedMessage("cannot watch synonym file {}, checking it every interval only", file), e);
+            }
+        }
+
+        /**
+         * Called by the watcher when the directory of the file changed
+         */
+        private void changed() {
+            synchronized (DynamicSynonymAnalysisService.this) {
+                if (cancelled) {
+                    return;
+                }
+                if (scheduled != null && scheduled.cancel()) {
+                    scheduled = threadPool.schedule(this, watchDebounce, THREAD_POOL_NAME);
+                } else {
+                    changedWhileRunning = true;
+                }
+            }
+        }
+
+        /**
+         * Starts checking, or checks sooner if the interval is shorter than
+         * the current one
+         */
+        void schedule(int interval) {
+            if (interval >= this.interval) {
+                return;
+            }
+            this.interval = interval;
+            if (scheduled == null && (source.getSnapshot().isEmpty() || source.isFromCache())) {
+                // sources loaded asynchronously are filled by their first
+                // check, cached copies are checked against their origin soon
+                scheduled = threadPool.schedule(this, TimeValue.timeValueSeconds(1), THREAD_POOL_NAME);
+            } else if (scheduled == null || scheduled.cancel()) {
+                // a check that already left the scheduler schedules the next
+                // one with the new interval
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Schedules the next check after the interval, or sooner if a failed
+         * reload is to be retried before
+         */
+        private void scheduleNext() {
+            TimeValue delay = jittered(interval);
+            TimeValue retryDelay = source.getRetryDelay();
+            if (retryDelay != null && retryDelay.nanos() < delay.nanos()) {
+                delay = TimeValue.timeValueMillis(Math.max(1, retryDelay.millis()));
+            }
+            scheduled = threadPool.schedule(this, delay, THREAD_POOL_NAME);
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (watched != null) {
+                watcher.unwatch(watched, changeListener);
+                watched = null;
+            }
+            if (scheduled != null) {
+                scheduled.cancel();
+                scheduled = null;
+            }
+        }
+
+        @Override
+        protected void doRun() {
+            synchronized (DynamicSynonymAnalysisService.this) {
+                // may unload this very source
+                releaseCollected();
+                if (cancelled) {
+                    return;
+                }
+            }
+            source.run();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            logger.error(new ParameterizedMessage("check synonym source {} error!", source.getKey()), e);
+        }
+
+        @Override
+        public void onRejection(Exception e) {
+            logger.warn("check of synonym source {} rejected, retrying after the next interval", source.getKey());
+        }
+
+        @Override
+        public void onAfter() {
+            synchronized (DynamicSynonymAnalysisService.this) {
+                if (cancelled) {
+                    return;
+                }
+                if (changedWhileRunning) {
+                    changedWhileRunning = false;
+                    scheduled = threadPool.schedule(this, watchDebounce, THREAD_POOL_NAME);
+                } else {
+                    scheduleNext();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sources and stacks referenced by one index, released when the index is
+     * removed from the node or once its settings were garbage collected.
+     * Equal to the references of the same settings instance.
+     */
+    private static final class IndexRefs extends WeakReference<IndexSettings> {
+
+        private final Index index;
+
+        private final int hash;
+
+        private final List<SynonymSource> sources = new ArrayList<>();
+
+        private final List<SynonymLayers> layers = new ArrayList<>();
+
+        IndexRefs(IndexSettings indexSettings, ReferenceQueue<IndexSettings> queue) {
+            super(indexSettings, queue);
+            this.index = indexSettings.getIndex();
+            this.hash = System.identityHashCode(indexSettings);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof IndexRefs)) {
+                return false;
+            }
+            IndexSettings indexSettings = get();
+            return indexSettings != null && indexSettings == ((IndexRefs) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Periodic compaction of one stack of sources, on the same thread pool
+     * as the checks. All state is guarded by the service.
+     */
+    private final class Compaction extends AbstractRunnable {
+
+        private final List<SynonymSourceKey> keys;
+
+        private final SynonymLayers layers;
+
+        /**
+         * 0 while not compacting
+         */
+        private int interval;
+
+        private Scheduler.Cancellable scheduled;
+
+        Compaction(List<SynonymSourceKey> keys, SynonymLayers layers) {
+            this.keys = keys;
+            this.layers = layers;
+        }
+
+        /**
+         * Starts compacting, or compacts more often if the interval is
+         * shorter than the current one
+         */
+        void schedule(int interval) {
+            if (interval <= 0 || (this.interval > 0 && interval >= this.interval)) {
+                return;
+            }
+            this.interval = interval;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+            scheduled = threadPool.scheduleWithFixedDelay(this, TimeValue.timeValueSeconds(interval),
+                    THREAD_POOL_NAME);
+        }
+
+        void cancel() {
+            if (scheduled != null) {
+                scheduled.cancel();
+                scheduled = null;
+            }
+        }
+
+        @Override
+        protected void doRun() throws IOException {
+            layers.compact();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            logger.error(new ParameterizedMessage("compact synonym layers {} error!", keys), e);
+        }
     }
 
 }
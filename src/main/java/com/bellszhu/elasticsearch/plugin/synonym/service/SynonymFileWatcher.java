@@ -0,0 +1,142 @@
+package com.bellszhu.elasticsearch.plugin.synonym.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Watches the directories of local synonym files with a single
+ * {@link WatchService} thread for the whole node. Every event in a watched
+ * directory notifies all listeners of that directory, whatever file it names:
+ * an update may arrive as a write, as a rename into place or as a swapped
+ * symlink, and the listeners compare the content anyway.
+ *
+ * <p>
+ * Listeners run on the watcher thread and must return quickly.
+ * </p>
+ *
+ * @author bellszhu
+ */
+final class SynonymFileWatcher implements Closeable {
+
+    private static Logger logger = LogManager.getLogger("dynamic-synonym");
+
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Started with the first watched directory
+     */
+    private WatchService watchService;
+
+    private final Map<Path, Directory> directories = new HashMap<>();
+
+    private final Map<WatchKey, Directory> keys = new HashMap<>();
+
+    private boolean closed;
+
+    SynonymFileWatcher(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Notifies the listener of every change in the directory of the file.
+     */
+    synchronized void watch(Path file, Runnable listener) throws IOException {
+        if (closed) {
+            return;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Directory directory = directories.get(dir);
+        if (directory == null) {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = threadFactory.newThread(this::run);
+                thread.start();
+            }
+            directory = new Directory(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+            directories.put(dir, directory);
+            keys.put(directory.key, directory);
+            logger.info("watching synonym directory {}", dir);
+        }
+        directory.listeners.add(listener);
+    }
+
+    synchronized void unwatch(Path file, Runnable listener) {
+        Path dir = file.toAbsolutePath().getParent();
+        Directory directory = directories.get(dir);
+        if (directory == null || !directory.listeners.remove(listener) || !directory.listeners.isEmpty()) {
+            return;
+        }
+        directory.key.cancel();
+        directories.remove(dir);
+        keys.remove(directory.key);
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // overflows notify as well, only the fact that something changed matters
+            key.pollEvents();
+            List<Runnable> listeners;
+            synchronized (this) {
+                Directory directory = keys.get(key);
+                listeners = directory == null ? null : new ArrayList<>(directory.listeners);
+            }
+            if (listeners != null) {
+                for (Runnable listener : listeners) {
+                    try {
+                        listener.run();
+                    } catch (RuntimeException e) {
+                        logger.warn("notify synonym file change error!", e);
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        directories.clear();
+        keys.clear();
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private static final class Directory {
+
+        private final WatchKey key;
+
+        private final List<Runnable> listeners = new ArrayList<>();
+
+        Directory(WatchKey key) {
+            this.key = key;
+        }
+    }
+}
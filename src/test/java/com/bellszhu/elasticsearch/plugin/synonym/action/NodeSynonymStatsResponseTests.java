@@ -0,0 +1,149 @@
+package com.bellszhu.elasticsearch.plugin.synonym.action;
+
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymFile;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymLoadStats;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymMatcher;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSource;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSourceKey;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSourceStats;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NodeSynonymStatsResponseTests {
+
+    private final DiscoveryNode node = new DiscoveryNode("node-1",
+            new TransportAddress(InetAddress.getLoopbackAddress(), 9300), Version.CURRENT);
+
+    @Test
+    public void testSerialization() throws IOException {
+        RulesFile file = new RulesFile("a, b\nc => d\n");
+        SynonymSource source = new SynonymSource(new SynonymSourceKey("synonym.txt", "", true, false,
+                "whitespace", Settings.EMPTY, false, false, SynonymMatcher.FST, 0, false), file);
+        file.rules = "a, b\n";
+        source.reload();
+        // a failed reload fills the error fields
+        file.rules = "a => b => c\n";
+        try {
+            source.reload();
+        } catch (RuntimeException e) {
+            // recorded by the source
+        }
+        SynonymSourceStats stats = source.stats();
+        assertEquals(1, stats.getGeneration());
+        assertEquals(1, stats.getFailures());
+
+        NodeSynonymStatsResponse response = new NodeSynonymStatsResponse(node, Arrays.asList(stats,
+                new SynonymSource(new SynonymSourceKey("other.txt", "wordnet", false, true, "keyword",
+                        Settings.EMPTY, true, false, SynonymMatcher.FST, 3, false),
+                        new RulesFile("x, y\n")).stats()));
+        NodeSynonymStatsResponse read = new NodeSynonymStatsResponse();
+        read.readFrom(roundTrip(response));
+
+        assertEquals(node, read.getNode());
+        assertEquals(2, read.getSources().size());
+        SynonymSourceStats readStats = read.getSources().get(0);
+        assertEquals(stats.getSource(), readStats.getSource());
+        assertEquals(stats.getGeneration(), readStats.getGeneration());
+        assertEquals(stats.getRules(), readStats.getRules());
+        assertEquals(stats.getLastReload(), readStats.getLastReload());
+        assertEquals(stats.getFailures(), readStats.getFailures());
+        assertEquals(stats.getParseTime().getCount(), readStats.getParseTime().getCount());
+        assertEquals(json(response), json(read));
+    }
+
+    @Test
+    public void testEmptySerialization() throws IOException {
+        NodeSynonymStatsResponse response = new NodeSynonymStatsResponse(node, Collections.emptyList());
+        NodeSynonymStatsResponse read = new NodeSynonymStatsResponse();
+        read.readFrom(roundTrip(response));
+        assertEquals(node, read.getNode());
+        assertEquals(Collections.emptyList(), read.getSources());
+    }
+
+    @Test
+    public void testNodeRequestSerialization() throws IOException {
+        TransportSynonymStatsAction.NodeRequest request = new TransportSynonymStatsAction.NodeRequest("node-1",
+                new SynonymStatsRequest("node-1", "node-2"));
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        TransportSynonymStatsAction.NodeRequest read = new TransportSynonymStatsAction.NodeRequest();
+        read.readFrom(out.bytes().streamInput());
+
+        BytesStreamOutput again = new BytesStreamOutput();
+        read.writeTo(again);
+        assertArrayEquals(out.bytes().toBytesRef().bytes, again.bytes().toBytesRef().bytes);
+    }
+
+    private static StreamInput roundTrip(NodeSynonymStatsResponse response) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        return out.bytes().streamInput();
+    }
+
+    private static String json(NodeSynonymStatsResponse response) throws IOException {
+        XContentBuilder builder = JsonXContent.contentBuilder().startObject();
+        response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        return Strings.toString(builder.endObject());
+    }
+
+    /**
+     * Solr rules held in memory
+     */
+    private static final class RulesFile implements SynonymFile {
+
+        private String rules;
+
+        RulesFile(String rules) {
+            this.rules = rules;
+        }
+
+        @Override
+        public SynonymMap reloadSynonymMap() {
+            try {
+                SolrSynonymParser parser = new SolrSynonymParser(true, true, new WhitespaceAnalyzer());
+                parser.parse(new StringReader(rules));
+                return parser.build();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("could not parse [" + rules + "]", e);
+            }
+        }
+
+        @Override
+        public boolean isNeedReloadSynonymMap() {
+            return false;
+        }
+
+        @Override
+        public Reader getReader() {
+            return new StringReader(rules);
+        }
+
+        @Override
+        public SynonymLoadStats getLoadStats() {
+            return null;
+        }
+    }
+}
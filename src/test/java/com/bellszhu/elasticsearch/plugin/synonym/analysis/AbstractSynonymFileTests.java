@@ -0,0 +1,46 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+public class AbstractSynonymFileTests {
+
+    @Test
+    public void testCountsRulesOnly() throws IOException {
+        assertEquals(3, countRules("a, b\nc => d\r\n  e, f\n"));
+        assertEquals(1, countRules("# comment\n  # indented comment\n\t#tab\na, b"));
+        assertEquals(1, countRules("\n   \n\t\r\n \r\na, b\n\n"));
+        assertEquals(0, countRules(""));
+    }
+
+    @Test
+    public void testCountsAcrossReads() throws IOException {
+        String text = "  # comment\n  a, b\n\t\n c => d\n";
+        try (AbstractSynonymFile.RuleCountingReader reader =
+                     new AbstractSynonymFile.RuleCountingReader(new StringReader(text))) {
+            // one character at a time and in chunks splitting the lines
+            reader.read();
+            reader.read();
+            char[] buffer = new char[5];
+            while (reader.read(buffer, 1, 3) != -1) {
+                // counted as read
+            }
+            assertEquals(2, reader.rules);
+        }
+    }
+
+    private static long countRules(String text) throws IOException {
+        try (AbstractSynonymFile.RuleCountingReader reader =
+                     new AbstractSynonymFile.RuleCountingReader(new StringReader(text))) {
+            char[] buffer = new char[1024];
+            while (reader.read(buffer, 0, buffer.length) != -1) {
+                // counted as read
+            }
+            return reader.rules;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares every matcher, with and without equivalence classes, to Lucene's
+ * {@link SynonymFilter} on random rules and inputs.
+ */
+public class DynamicSynonymFilterTests {
+
+    private static final String[] WORDS = {"a", "b", "c", "a", "b", "d", "Foo", "bar", "x"};
+
+    static final Analyzer WHITESPACE = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            return new TokenStreamComponents(tokenizer, tokenizer);
+        }
+    };
+
+    private final long seed = Long.getLong("tests.seed", System.nanoTime());
+
+    private final Random random = new Random(seed);
+
+    @Test
+    public void testMatchesSynonymFilter() throws Exception {
+        for (int iteration = 0; iteration < 300; iteration++) {
+            boolean expand = random.nextInt(4) != 0;
+            boolean ignoreCase = random.nextBoolean();
+            boolean singleWords = random.nextInt(4) == 0;
+            String rules = rules(random, expand, ignoreCase, singleWords);
+            String[] texts = new String[10];
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = phrase(random, 1 + random.nextInt(14));
+            }
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            Filter expected = new Filter(tokenizer, new SynonymFilter(tokenizer, map(rules, expand), ignoreCase));
+            for (SynonymMatcher matcher : SynonymMatcher.values()) {
+                for (boolean equivalenceClasses : new boolean[]{false, true}) {
+                    RulesFile file = new RulesFile(rules, expand, equivalenceClasses);
+                    SynonymSource source = source(file, expand, ignoreCase, matcher, equivalenceClasses);
+                    if (singleWords) {
+                        assertMatcherBuilt(source, matcher);
+                    }
+                    // one filter for all texts, reused like an analyzer does
+                    Tokenizer input = new WhitespaceTokenizer();
+                    Filter actual = new Filter(input, new DynamicSynonymFilter(input, source, ignoreCase));
+                    for (String text : texts) {
+                        String message = message(matcher, equivalenceClasses, expand, ignoreCase, rules, text);
+                        if (random.nextInt(5) == 0) {
+                            int tokens = random.nextInt(4);
+                            assertEquals(message, expected.run(text, tokens), actual.run(text, tokens));
+                        }
+                        assertEquals(message, expected.run(text, -1), actual.run(text, -1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesSynonymFilterAcrossReloads() throws Exception {
+        for (int iteration = 0; iteration < 50; iteration++) {
+            boolean expand = random.nextInt(4) != 0;
+            boolean ignoreCase = random.nextBoolean();
+            SynonymMatcher matcher = SynonymMatcher.values()[random.nextInt(SynonymMatcher.values().length)];
+            boolean equivalenceClasses = random.nextBoolean();
+            RulesFile file = new RulesFile(rules(random, expand, ignoreCase, false), expand, equivalenceClasses);
+            SynonymSource source = source(file, expand, ignoreCase, matcher, equivalenceClasses);
+            Tokenizer input = new WhitespaceTokenizer();
+            Filter actual = new Filter(input, new DynamicSynonymFilter(input, source, ignoreCase));
+            for (int reload = 0; reload < 5; reload++) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                Filter expected = new Filter(tokenizer, new SynonymFilter(tokenizer, map(file.rules, expand),
+                        ignoreCase));
+                for (int i = 0; i < 10; i++) {
+                    String text = phrase(random, 1 + random.nextInt(14));
+                    assertEquals(message(matcher, equivalenceClasses, expand, ignoreCase, file.rules, text),
+                            expected.run(text, -1), actual.run(text, -1));
+                }
+                file.rules = rules(random, expand, ignoreCase, random.nextBoolean());
+                file.changed = true;
+                long generation = source.getSnapshot().getGeneration();
+                source.run();
+                assertEquals(generation + 1, source.getSnapshot().getGeneration());
+            }
+        }
+    }
+
+    /**
+     * @return random rules over a few words, overlapping and with multi-word
+     * inputs unless single words are asked for
+     */
+    static String rules(Random random, boolean expand, boolean ignoreCase, boolean singleWords) {
+        StringBuilder rules = new StringBuilder();
+        int count = 1 + random.nextInt(12);
+        for (int i = 0; i < count; i++) {
+            if (random.nextBoolean()) {
+                rules.append(phrase(random, singleWords ? 1 : 1 + random.nextInt(5)))
+                        .append(" => ")
+                        .append(phrase(random, 1 + random.nextInt(3)));
+            } else {
+                int words = 2 + random.nextInt(expand ? 5 : 3);
+                for (int j = 0; j < words; j++) {
+                    if (j > 0) {
+                        rules.append(", ");
+                    }
+                    rules.append(phrase(random, singleWords ? 1 : 1 + random.nextInt(3)));
+                }
+            }
+            rules.append('\n');
+        }
+        // the rules of a case insensitive filter have to be lower case
+        return ignoreCase ? rules.toString().toLowerCase(Locale.ROOT) : rules.toString();
+    }
+
+    static String phrase(Random random, int words) {
+        StringBuilder phrase = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                phrase.append(' ');
+            }
+            phrase.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return phrase.toString();
+    }
+
+    private String message(SynonymMatcher matcher, boolean equivalenceClasses, boolean expand, boolean ignoreCase,
+                           String rules, String text) {
+        return "seed " + seed + ", matcher " + matcher + ", equivalence_classes " + equivalenceClasses
+                + ", expand " + expand + ", ignore_case " + ignoreCase + ", text [" + text + "], rules:\n" + rules;
+    }
+
+    private static SynonymMap map(String rules, boolean expand) throws Exception {
+        return AbstractSynonymFile.getSynonymParser(new StringReader(rules), "", expand, WHITESPACE).build();
+    }
+
+    private static SynonymSource source(SynonymFile file, boolean expand, boolean ignoreCase,
+                                        SynonymMatcher matcher, boolean equivalenceClasses) {
+        return new SynonymSource(new SynonymSourceKey("synonym.txt", "", expand, ignoreCase, "whitespace",
+                Settings.EMPTY, false, false, matcher, 0, equivalenceClasses), file);
+    }
+
+    private static void assertMatcherBuilt(SynonymSource source, SynonymMatcher matcher) {
+        SynonymSnapshot snapshot = source.getSnapshot();
+        if (matcher == SynonymMatcher.WORD_ID) {
+            assertNotNull(snapshot.getWordIds());
+        } else if (matcher == SynonymMatcher.AHO_CORASICK) {
+            assertNotNull(snapshot.getAhoCorasick());
+        } else if (matcher == SynonymMatcher.HASH) {
+            assertNotNull(snapshot.getSingleWords());
+        }
+    }
+
+    /**
+     * A filter over a whitespace tokenizer, reset for every text
+     */
+    static final class Filter {
+
+        private final Tokenizer tokenizer;
+
+        private final TokenStream stream;
+
+        private final CharTermAttribute term;
+
+        private final PositionIncrementAttribute positionIncrement;
+
+        private final PositionLengthAttribute positionLength;
+
+        private final OffsetAttribute offset;
+
+        private final TypeAttribute type;
+
+        Filter(Tokenizer tokenizer, TokenStream stream) {
+            this.tokenizer = tokenizer;
+            this.stream = stream;
+            this.term = stream.addAttribute(CharTermAttribute.class);
+            this.positionIncrement = stream.addAttribute(PositionIncrementAttribute.class);
+            this.positionLength = stream.addAttribute(PositionLengthAttribute.class);
+            this.offset = stream.addAttribute(OffsetAttribute.class);
+            this.type = stream.addAttribute(TypeAttribute.class);
+        }
+
+        /**
+         * @param tokens stop after this many tokens, -1 to read them all
+         */
+        String run(String text, int tokens) throws IOException {
+            StringBuilder out = new StringBuilder();
+            tokenizer.setReader(new StringReader(text));
+            stream.reset();
+            while (tokens-- != 0 && stream.incrementToken()) {
+                out.append(term).append('/').append(positionIncrement.getPositionIncrement())
+                        .append('/').append(positionLength.getPositionLength())
+                        .append('/').append(offset.startOffset()).append('-').append(offset.endOffset())
+                        .append('/').append(type.type()).append(' ');
+            }
+            stream.end();
+            out.append("end ").append(offset.endOffset()).append('/')
+                    .append(positionIncrement.getPositionIncrement());
+            stream.close();
+            return out.toString();
+        }
+    }
+
+    /**
+     * Rules held in memory, parsed like the rules of a synonym file
+     */
+    static final class RulesFile implements SynonymFile {
+
+        private final boolean expand;
+
+        private final boolean equivalenceClasses;
+
+        String rules;
+
+        boolean changed;
+
+        RulesFile(String rules, boolean expand, boolean equivalenceClasses) {
+            this.rules = rules;
+            this.expand = expand;
+            this.equivalenceClasses = equivalenceClasses;
+        }
+
+        @Override
+        public SynonymMap reloadSynonymMap() {
+            try {
+                return AbstractSynonymFile.getSynonymParser(getReader(), "", expand, WHITESPACE,
+                        equivalenceClasses).build();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("could not parse synonyms", e);
+            }
+        }
+
+        @Override
+        public boolean isNeedReloadSynonymMap() {
+            boolean needReload = changed;
+            changed = false;
+            return needReload;
+        }
+
+        @Override
+        public Reader getReader() {
+            return new StringReader(rules);
+        }
+
+        @Override
+        public SynonymLoadStats getLoadStats() {
+            return null;
+        }
+    }
+}
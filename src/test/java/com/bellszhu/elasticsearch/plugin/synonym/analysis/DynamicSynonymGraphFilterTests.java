@@ -0,0 +1,178 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import com.bellszhu.elasticsearch.plugin.DynamicSynonymPlugin;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymFilterTests.Filter;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymFilterTests.RulesFile;
+import com.bellszhu.elasticsearch.plugin.synonym.service.DynamicSynonymAnalysisService;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymFilterTests.phrase;
+import static com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymFilterTests.rules;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the graph filter to Lucene's {@link SynonymGraphFilter} on random
+ * rules and inputs.
+ */
+public class DynamicSynonymGraphFilterTests {
+
+    private final long seed = Long.getLong("tests.seed", System.nanoTime());
+
+    private final Random random = new Random(seed);
+
+    @Test
+    public void testMatchesSynonymGraphFilter() throws Exception {
+        for (int iteration = 0; iteration < 300; iteration++) {
+            boolean expand = random.nextInt(4) != 0;
+            boolean ignoreCase = random.nextBoolean();
+            String rules = rules(random, expand, ignoreCase, random.nextInt(4) == 0);
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            Filter expected = new Filter(tokenizer, new SynonymGraphFilter(tokenizer, map(rules, expand),
+                    ignoreCase));
+            SynonymSource source = source(new RulesFile(rules, expand, false), expand, ignoreCase);
+            // one filter for all texts, reused like an analyzer does
+            Tokenizer input = new WhitespaceTokenizer();
+            Filter actual = new Filter(input, new DynamicSynonymGraphFilter(input, source, ignoreCase));
+            for (int i = 0; i < 10; i++) {
+                String text = phrase(random, 1 + random.nextInt(14));
+                String message = "seed " + seed + ", expand " + expand + ", ignore_case " + ignoreCase
+                        + ", text [" + text + "], rules:\n" + rules;
+                if (random.nextInt(5) == 0) {
+                    int tokens = random.nextInt(4);
+                    assertEquals(message, expected.run(text, tokens), actual.run(text, tokens));
+                }
+                assertEquals(message, expected.run(text, -1), actual.run(text, -1));
+            }
+        }
+    }
+
+    @Test
+    public void testSwitchesSnapshotOnReset() throws Exception {
+        RulesFile file = new RulesFile("a => b\n", true, false);
+        SynonymSource source = source(file, true, false);
+        Tokenizer input = new WhitespaceTokenizer();
+        DynamicSynonymGraphFilter filter = new DynamicSynonymGraphFilter(input, source, false);
+        CharTermAttribute term = filter.addAttribute(CharTermAttribute.class);
+
+        input.setReader(new StringReader("a a"));
+        filter.reset();
+        assertTrue(filter.incrementToken());
+        assertEquals("b", term.toString());
+        reload(source, file, "a => c\n");
+        // the stream keeps the map it started with
+        assertTrue(filter.incrementToken());
+        assertEquals("b", term.toString());
+        filter.end();
+        filter.close();
+
+        Filter reused = new Filter(input, filter);
+        assertEquals("c/1/1/0-1/SYNONYM c/1/1/2-3/SYNONYM end 3/0", reused.run("a a", -1));
+        reload(source, file, "");
+        assertEquals("a/1/1/0-1/word a/1/1/2-3/word end 3/0", reused.run("a a", -1));
+        reload(source, file, "a, x y\n");
+        assertEquals("x/1/1/0-1/SYNONYM a/0/2/0-1/word y/1/1/0-1/SYNONYM end 1/0", reused.run("a", -1));
+    }
+
+    @Test
+    public void testFactoryCreatesGraphFilter() throws Exception {
+        Path home = Files.createTempDirectory("dynamic-synonym");
+        Settings nodeSettings = Settings.builder().put("node.name", "test").put("path.home", home).build();
+        Environment env = new Environment(nodeSettings, Files.createDirectories(home.resolve("config")));
+        Files.write(env.configFile().resolve("synonym.txt"),
+                "a, x y\n".getBytes(StandardCharsets.UTF_8));
+        AnalysisRegistry analysisRegistry = new AnalysisModule(env, Collections.emptyList()).getAnalysisRegistry();
+        ThreadPool threadPool = new ThreadPool(nodeSettings,
+                new DynamicSynonymPlugin().getExecutorBuilders(nodeSettings).toArray(new ExecutorBuilder[0]));
+        DynamicSynonymAnalysisService service = new DynamicSynonymAnalysisService(nodeSettings, threadPool, null,
+                analysisRegistry, new DynamicSynonymPlugin.PluginComponent());
+        try {
+            Settings settings = Settings.builder()
+                    .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                    .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                    .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                    .build();
+            IndexSettings indexSettings = new IndexSettings(IndexMetaData.builder("test").settings(settings).build(),
+                    Settings.EMPTY);
+            Settings filter = Settings.builder()
+                    .put("synonyms_path", "synonym.txt")
+                    .put("tokenizer", "standard")
+                    .build();
+            DynamicSynonymGraphTokenFilterFactory factory = new DynamicSynonymGraphTokenFilterFactory(
+                    indexSettings, env, "synonym", filter, analysisRegistry, service);
+            Tokenizer input = new WhitespaceTokenizer();
+            assertEquals("x/1/1/0-1/SYNONYM a/0/2/0-1/word y/1/1/0-1/SYNONYM end 1/0",
+                    new Filter(input, factory.create(input)).run("a", -1));
+
+            expectUnsupported(env, indexSettings, analysisRegistry, service,
+                    Settings.builder().put(filter).put("off_heap", true).build(), "`off_heap`");
+            for (SynonymMatcher matcher : SynonymMatcher.values()) {
+                if (matcher != SynonymMatcher.FST) {
+                    expectUnsupported(env, indexSettings, analysisRegistry, service,
+                            Settings.builder().put(filter).put("matcher", matcher.toString()).build(),
+                            "matcher [" + matcher + "]");
+                }
+            }
+            expectUnsupported(env, indexSettings, analysisRegistry, service,
+                    Settings.builder().put(filter).put("equivalence_classes", true).build(),
+                    "`equivalence_classes`");
+            expectUnsupported(env, indexSettings, analysisRegistry, service,
+                    Settings.builder().put(filter).putList("overlays", "synonym.txt").build(), "`overlays`");
+        } finally {
+            service.close();
+            ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void expectUnsupported(Environment env, IndexSettings indexSettings,
+                                          AnalysisRegistry analysisRegistry, DynamicSynonymAnalysisService service,
+                                          Settings filter, String option) throws IOException {
+        try {
+            new DynamicSynonymGraphTokenFilterFactory(indexSettings, env, "synonym", filter, analysisRegistry,
+                    service);
+            fail(option + " should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("dynamic_synonym_graph does not support " + option, e.getMessage());
+        }
+    }
+
+    private static void reload(SynonymSource source, RulesFile file, String rules) {
+        file.rules = rules;
+        file.changed = true;
+        source.run();
+    }
+
+    private static SynonymMap map(String rules, boolean expand) throws Exception {
+        return AbstractSynonymFile.getSynonymParser(new StringReader(rules), "", expand,
+                DynamicSynonymFilterTests.WHITESPACE).build();
+    }
+
+    private static SynonymSource source(SynonymFile file, boolean expand, boolean ignoreCase) {
+        return new SynonymSource(new SynonymSourceKey("synonym.txt", "", expand, ignoreCase, "whitespace",
+                Settings.EMPTY, false, false, SynonymMatcher.FST, 0, false), file);
+    }
+}
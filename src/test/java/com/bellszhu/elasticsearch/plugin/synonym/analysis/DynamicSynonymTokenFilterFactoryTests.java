@@ -0,0 +1,165 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import com.bellszhu.elasticsearch.plugin.DynamicSynonymPlugin;
+import com.bellszhu.elasticsearch.plugin.synonym.service.DynamicSynonymAnalysisService;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DynamicSynonymTokenFilterFactoryTests {
+
+    private Path home;
+
+    private Environment env;
+
+    private AnalysisRegistry analysisRegistry;
+
+    private ThreadPool threadPool;
+
+    private DynamicSynonymAnalysisService service;
+
+    @Before
+    public void setUp() throws IOException {
+        home = Files.createTempDirectory("dynamic-synonym");
+        Settings nodeSettings = Settings.builder().put("node.name", "test").put("path.home", home).build();
+        env = new Environment(nodeSettings, Files.createDirectories(home.resolve("config")));
+        analysisRegistry = new AnalysisModule(env, Collections.emptyList()).getAnalysisRegistry();
+        threadPool = new ThreadPool(nodeSettings,
+                new DynamicSynonymPlugin().getExecutorBuilders(nodeSettings).toArray(new ExecutorBuilder[0]));
+        service = new DynamicSynonymAnalysisService(nodeSettings, threadPool, null, analysisRegistry,
+                new DynamicSynonymPlugin.PluginComponent());
+    }
+
+    @After
+    public void tearDown() {
+        service.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLoadsCompiledFile() throws Exception {
+        compile("standard", true);
+        DynamicSynonymTokenFilterFactory factory = factory(Settings.EMPTY, Settings.builder()
+                .put("synonyms_path", "synonym.fst")
+                .put("tokenizer", "standard")
+                .put("ignore_case", true)
+                .build());
+        assertEquals(Collections.singletonList("baz"), analyze(factory, "Foo bar"));
+        assertEquals(5, factory.synonymSource.getSnapshot().getLoadStats().getRules());
+        assertTrue(analyze(factory, "a").containsAll(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void testLoadsCompiledFileOffHeap() throws Exception {
+        compile("standard", true);
+        DynamicSynonymTokenFilterFactory factory = factory(Settings.EMPTY, Settings.builder()
+                .put("synonyms_path", "synonym.fst")
+                .put("tokenizer", "standard")
+                .put("ignore_case", true)
+                .put("off_heap", true)
+                .build());
+        assertTrue(factory.synonymSource.getSnapshot().getSynonymMap() instanceof OffHeapSynonymMap);
+        assertEquals(Collections.singletonList("baz"), analyze(factory, "foo Bar"));
+        assertEquals(Arrays.asList("cat", "kitten"), analyze(factory, "cat"));
+    }
+
+    @Test
+    public void testRejectsCompiledFileOfOtherAnalysis() throws Exception {
+        compile("standard", true);
+        expectIncompatible(Settings.EMPTY, Settings.builder()
+                .put("synonyms_path", "synonym.fst")
+                .put("tokenizer", "standard")
+                .put("ignore_case", false)
+                .build());
+        expectIncompatible(Settings.builder()
+                .put("index.analysis.tokenizer.short.type", "standard")
+                .put("index.analysis.tokenizer.short.max_token_length", 5)
+                .build(), Settings.builder()
+                .put("synonyms_path", "synonym.fst")
+                .put("tokenizer", "short")
+                .put("ignore_case", true)
+                .build());
+    }
+
+    private void expectIncompatible(Settings analysis, Settings filter) throws IOException {
+        try {
+            factory(analysis, filter);
+            fail("a compiled file of another analysis chain should not load");
+        } catch (IllegalArgumentException e) {
+            Throwable cause = e;
+            while (cause != null && !String.valueOf(cause.getMessage()).contains("were built with analyzer")) {
+                cause = cause.getCause();
+            }
+            assertTrue(e.getMessage(), cause != null);
+        }
+    }
+
+    private void compile(String tokenizer, boolean ignoreCase) throws Exception {
+        Path input = env.configFile().resolve("synonym.txt");
+        Files.write(input, ("# comment\n"
+                + "a, b\n"
+                + "foo bar => baz\n"
+                + "\n"
+                + "Cat, kitten\n"
+                + "x => y\n"
+                + "  z => w\n").getBytes(StandardCharsets.UTF_8));
+        SynonymCompiler.compile(input, env.configFile().resolve("synonym.fst"), "", true, ignoreCase, tokenizer);
+    }
+
+    private DynamicSynonymTokenFilterFactory factory(Settings analysis, Settings filter) throws IOException {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .put(analysis)
+                .build();
+        IndexSettings indexSettings = new IndexSettings(IndexMetaData.builder("test").settings(settings).build(),
+                Settings.EMPTY);
+        return new DynamicSynonymTokenFilterFactory(indexSettings, env, "synonym", filter, analysisRegistry,
+                service);
+    }
+
+    private static List<String> analyze(DynamicSynonymTokenFilterFactory factory, String text) throws IOException {
+        Tokenizer tokenizer = new StandardTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        List<String> terms = new ArrayList<>();
+        try (TokenStream stream = factory.create(new LowerCaseFilter(tokenizer))) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(term.toString());
+            }
+            stream.end();
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,225 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexSynonymFileTests {
+
+    private ThreadPool threadPool;
+
+    private FakeClient client;
+
+    private IndexSynonymFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        Path home = Files.createTempDirectory("dynamic-synonym");
+        Settings settings = Settings.builder().put("node.name", "test").put("path.home", home).build();
+        threadPool = new ThreadPool(settings);
+        client = new FakeClient(settings, threadPool);
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, tokenizer);
+            }
+        };
+        file = new IndexSynonymFile(client, new Environment(settings, home), analyzer, true, "", "index:test",
+                false, false, 0, null, false, "fingerprint");
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFetchesChangedRules() throws IOException {
+        assertFalse(file.isNeedReloadSynonymMap());
+
+        client.write("1", 1, "a, b", false);
+        client.write("2", 2, "c, d", false);
+        assertTrue(file.isNeedReloadSynonymMap());
+        assertEquals(Arrays.asList("a, b", "c, d"), lines(file.getReader()));
+        assertEquals("2", file.getVersion());
+
+        client.write("1", 3, "a, b, e", false);
+        client.write("2", 4, null, true);
+        assertTrue(file.isNeedReloadSynonymMap());
+        assertEquals(Collections.singletonList("a, b, e"), lines(file.getReader()));
+        assertEquals("4", file.getVersion());
+    }
+
+    @Test
+    public void testRulesFetchedAgainAreNotChanges() {
+        client.write("1", 1, "a, b", false);
+        client.write("2", 2, null, true);
+        assertTrue(file.isNeedReloadSynonymMap());
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertFalse(file.isNeedReloadSynonymMap());
+    }
+
+    @Test
+    public void testPicksUpRulesVisibleOutOfOrder() throws IOException {
+        client.write("1", 1, "a, b", false);
+        client.write("3", 3, "e, f", false);
+        assertTrue(file.isNeedReloadSynonymMap());
+        assertEquals("3", file.getVersion());
+
+        // written before version 3 but refreshed after it was fetched
+        client.write("2", 2, "c, d", false);
+        assertTrue(file.isNeedReloadSynonymMap());
+        assertEquals(Arrays.asList("a, b", "c, d", "e, f"), lines(file.getReader()));
+        assertEquals("3", file.getVersion());
+    }
+
+    @Test
+    public void testStreamsRules() throws IOException {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String rule = "wörd" + i + ", synonym" + i;
+            client.write(String.format("%05d", i), i, rule, false);
+            expected.add(rule);
+        }
+        assertTrue(file.isNeedReloadSynonymMap());
+        assertEquals(expected, lines(file.getReader()));
+
+        SynonymMap synonymMap = file.reloadSynonymMap();
+        assertEquals(5000, file.getLoadStats().getRules());
+        assertTrue(synonymMap.fst != null);
+    }
+
+    private static List<String> lines(Reader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(reader)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Answers searches from the documents written so far, all of them visible
+     */
+    private static final class FakeClient extends AbstractClient {
+
+        private final List<Object[]> docs = new ArrayList<>();
+
+        FakeClient(Settings settings, ThreadPool threadPool) {
+            super(settings, threadPool);
+        }
+
+        void write(String id, long version, String rule, boolean deleted) {
+            docs.removeIf(doc -> doc[0].equals(id));
+            docs.add(new Object[]{id, version, rule, deleted});
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse> void doExecute(
+                Action<Response> action, Request request, ActionListener<Response> listener) {
+            if (action == SearchAction.INSTANCE) {
+                long from = minVersion(((SearchRequest) request).source().query());
+                List<SearchHit> hits = new ArrayList<>();
+                docs.stream()
+                        .filter(doc -> (long) doc[1] > from)
+                        .sorted(Comparator.comparingLong(doc -> (long) doc[1]))
+                        .forEach(doc -> hits.add(hit(doc)));
+                listener.onResponse((Response) response(hits));
+            } else if (action == SearchScrollAction.INSTANCE) {
+                listener.onResponse((Response) response(Collections.emptyList()));
+            } else if (action == ClearScrollAction.INSTANCE) {
+                listener.onResponse((Response) new ClearScrollResponse(true, 1));
+            } else {
+                throw new UnsupportedOperationException(action.name());
+            }
+        }
+
+        private static long minVersion(QueryBuilder query) {
+            for (QueryBuilder filter : ((BoolQueryBuilder) query).filter()) {
+                if (filter instanceof RangeQueryBuilder) {
+                    return ((Number) ((RangeQueryBuilder) filter).from()).longValue();
+                }
+            }
+            throw new AssertionError("no version range in " + query);
+        }
+
+        private static SearchHit hit(Object[] doc) {
+            try {
+                XContentBuilder source = XContentFactory.jsonBuilder().startObject()
+                        .field("set", "test")
+                        .field("rule", doc[2])
+                        .field("version", doc[1])
+                        .field("deleted", doc[3])
+                        .endObject();
+                return new SearchHit(0, (String) doc[0], new Text("_doc"), Collections.emptyMap())
+                        .sourceRef(BytesReference.bytes(source));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static SearchResponse response(List<SearchHit> hits) {
+            SearchHits searchHits = new SearchHits(hits.toArray(new SearchHit[0]),
+                    new TotalHits(hits.size(), TotalHits.Relation.EQUAL_TO), 1f);
+            return new SearchResponse(new InternalSearchResponse(searchHits, null, null, null, false, null, 1),
+                    "scroll", 1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalSynonymFileTests {
+
+    private Path path;
+
+    private LocalSynonymFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        Path home = Files.createTempDirectory("dynamic-synonym");
+        Settings settings = Settings.builder().put("node.name", "test").put("path.home", home).build();
+        Environment env = new Environment(settings, Files.createDirectories(home.resolve("config")));
+        path = env.configFile().resolve("synonym.txt");
+        write("a, b", 1000);
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, tokenizer);
+            }
+        };
+        file = new LocalSynonymFile(env, analyzer, true, "", "synonym.txt", false, false, 0, null, false,
+                "fingerprint");
+    }
+
+    @Test
+    public void testTouchedFileIsNotReloaded() throws IOException {
+        assertFalse(file.isNeedReloadSynonymMap());
+        write("a, b", 2000);
+        assertFalse(file.isNeedReloadSynonymMap());
+        write("a, c", 2000);
+        assertFalse(file.isNeedReloadSynonymMap());
+        write("a, c", 3000);
+        assertTrue(file.isNeedReloadSynonymMap());
+    }
+
+    @Test
+    public void testFailedReadIsCheckedAgain() throws IOException {
+        // a directory passes the modification time check but cannot be read
+        Files.delete(path);
+        Files.createDirectory(path);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(2000));
+        assertFalse(file.isNeedReloadSynonymMap());
+
+        Files.delete(path);
+        write("a, c", 2000);
+        assertTrue(file.isNeedReloadSynonymMap());
+    }
+
+    private void write(String rules, long modified) throws IOException {
+        Files.write(path, rules.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+    }
+}
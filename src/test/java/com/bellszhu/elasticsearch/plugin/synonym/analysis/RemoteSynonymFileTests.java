@@ -0,0 +1,302 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteSynonymFileTests {
+
+    private static final String RULES = "a, b\nc, d\ne, f\ng, h\n";
+
+    private static final String MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private HttpServer server;
+
+    private String location;
+
+    private Environment env;
+
+    private SynonymRemoteCache cache;
+
+    private final AtomicLong nanoTime = new AtomicLong();
+
+    private volatile String body = RULES;
+
+    private volatile String eTag = "\"v1\"";
+
+    private volatile String lastModified = MODIFIED;
+
+    /**
+     * Status to answer every request with instead of serving the file, 0 to
+     * serve it, -1 to drop the connection
+     */
+    private volatile int failure;
+
+    /**
+     * Whether to send the file even if the conditions of the request hold
+     */
+    private volatile boolean ignoreConditions;
+
+    /**
+     * If-None-Match and If-Modified-Since of every request served
+     */
+    private final List<String[]> requests = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/synonym.txt", this::serve);
+        server.start();
+        location = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/synonym.txt";
+        Path home = Files.createTempDirectory("dynamic-synonym");
+        env = new Environment(Settings.builder().put("path.home", home).build(), home.resolve("config"));
+        cache = new SynonymRemoteCache(home.resolve("cache"));
+        nanoTime.set(System.nanoTime());
+        SynonymHttpClient.nanoTime = nanoTime::get;
+    }
+
+    @After
+    public void tearDown() {
+        SynonymHttpClient.nanoTime = System::nanoTime;
+        server.stop(0);
+    }
+
+    @Test
+    public void testConditionalGet() {
+        RemoteSynonymFile file = file(null);
+        file.reloadSynonymMap();
+        assertEquals(1, requests.size());
+        assertEquals("\"v1\"", file.getVersion());
+
+        // a 304 for the validators of the last load
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(2, requests.size());
+        assertEquals("\"v1\"", requests.get(1)[0]);
+        assertEquals(MODIFIED, requests.get(1)[1]);
+
+        // the response of the check is loaded, no second request
+        body = RULES + "i, j\n";
+        eTag = "\"v2\"";
+        assertTrue(file.isNeedReloadSynonymMap());
+        file.reloadSynonymMap();
+        assertEquals(3, requests.size());
+        assertEquals(5, file.getLoadStats().getRules());
+        assertEquals("\"v2\"", file.getVersion());
+
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals("\"v2\"", requests.get(3)[0]);
+        assertEquals(0, file.getCheckFailures());
+    }
+
+    @Test
+    public void testConditionalGetOnLastModified() {
+        eTag = null;
+        RemoteSynonymFile file = file(null);
+        file.reloadSynonymMap();
+        assertEquals(MODIFIED, file.getVersion());
+
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertNull(requests.get(1)[0]);
+        assertEquals(MODIFIED, requests.get(1)[1]);
+
+        lastModified = "Thu, 22 Oct 2015 07:28:00 GMT";
+        assertTrue(file.isNeedReloadSynonymMap());
+        file.reloadSynonymMap();
+        assertEquals(lastModified, file.getVersion());
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(lastModified, requests.get(3)[1]);
+    }
+
+    @Test
+    public void testServerIgnoringConditions() {
+        RemoteSynonymFile file = file(null);
+        file.reloadSynonymMap();
+        // answers with the whole file, but the validators did not change
+        requests.clear();
+        ignoreConditions = true;
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testBacksOffAfterServerErrors() {
+        RemoteSynonymFile file = file(null);
+        file.reloadSynonymMap();
+        failure = 503;
+        int served = requests.size();
+
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(++served, requests.size());
+        assertEquals(1, file.getCheckFailures());
+
+        // skipped for 5s
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(2, file.getCheckFailures());
+        advance(4);
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(served, requests.size());
+        advance(1);
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(++served, requests.size());
+
+        // then for 10s
+        advance(9);
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(served, requests.size());
+        advance(1);
+        failure = 0;
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(++served, requests.size());
+
+        // a success starts over
+        failure = 500;
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(++served, requests.size());
+        advance(5);
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(++served, requests.size());
+        assertEquals(7, file.getCheckFailures());
+    }
+
+    @Test
+    public void testBacksOffAfterConnectionFailures() {
+        RemoteSynonymFile file = file(null);
+        file.reloadSynonymMap();
+        failure = -1;
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(1, file.getCheckFailures());
+        int served = requests.size();
+
+        advance(4);
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(served, requests.size());
+        assertEquals(2, file.getCheckFailures());
+
+        failure = 0;
+        advance(1);
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(served + 1, requests.size());
+
+        // the back off of the host was reset
+        failure = -1;
+        assertFalse(file.isNeedReloadSynonymMap());
+        served = requests.size();
+        advance(5);
+        failure = 0;
+        assertFalse(file.isNeedReloadSynonymMap());
+        assertEquals(served + 1, requests.size());
+        assertEquals(3, file.getCheckFailures());
+    }
+
+    @Test
+    public void testRejectedDownloadIsNotCached() throws IOException {
+        SynonymSource source = source(file(cache));
+        source.addChecks(new SynonymReloadChecks(0, 0.5));
+        assertCached("\"v1\"", RULES);
+
+        // a truncated upload
+        body = "a, b\n";
+        eTag = "\"v2\"";
+        source.run();
+        assertEquals(0, source.getSnapshot().getGeneration());
+        assertEquals(4, source.getSnapshot().getLoadStats().getRules());
+        assertCached("\"v1\"", RULES);
+
+        // a restart serves the last published rules
+        RemoteSynonymFile restarted = file(cache);
+        SynonymSource restartedSource = source(restarted);
+        assertTrue(restarted.isFromCache());
+        assertEquals(4, restartedSource.getSnapshot().getLoadStats().getRules());
+
+        String fixed = RULES + "i, j\n";
+        body = fixed;
+        eTag = "\"v3\"";
+        source.run();
+        assertEquals(1, source.getSnapshot().getGeneration());
+        assertCached("\"v3\"", fixed);
+    }
+
+    private void advance(long seconds) {
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    private void assertCached(String eTag, String rules) throws IOException {
+        SynonymRemoteCache.Entry entry = cache.get(location);
+        assertNotNull(entry);
+        assertEquals(eTag, entry.eTag);
+        assertEquals(rules, new String(Files.readAllBytes(entry.content), StandardCharsets.UTF_8));
+        try (Stream<Path> files = Files.list(entry.content.getParent())) {
+            assertFalse("temporary copies left", files.anyMatch(path -> path.toString().endsWith(".tmp")));
+        }
+    }
+
+    private RemoteSynonymFile file(SynonymRemoteCache cache) {
+        return new RemoteSynonymFile(env, DynamicSynonymFilterTests.WHITESPACE, true, "", location, false, false,
+                0, null, false, "fingerprint", cache);
+    }
+
+    private SynonymSource source(SynonymFile file) {
+        return new SynonymSource(new SynonymSourceKey(location, "", true, false, "whitespace", Settings.EMPTY,
+                false, false, SynonymMatcher.FST, 0, false), file);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        requests.add(new String[]{ifNoneMatch, ifModifiedSince});
+        if (failure == -1) {
+            // the server closes the connection without answering
+            throw new IOException("dropped");
+        }
+        if (failure > 0) {
+            exchange.sendResponseHeaders(failure, -1);
+            exchange.close();
+            return;
+        }
+        String currentETag = eTag;
+        String currentLastModified = lastModified;
+        if (currentETag != null) {
+            exchange.getResponseHeaders().set("ETag", currentETag);
+        }
+        if (currentLastModified != null) {
+            exchange.getResponseHeaders().set("Last-Modified", currentLastModified);
+        }
+        boolean unchanged = currentETag != null ? currentETag.equals(ifNoneMatch)
+                : currentLastModified != null && currentLastModified.equals(ifModifiedSince);
+        if (unchanged && !ignoreConditions) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
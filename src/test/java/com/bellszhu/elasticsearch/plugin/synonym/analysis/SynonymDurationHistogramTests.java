@@ -0,0 +1,59 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class SynonymDurationHistogramTests {
+
+    @Test
+    public void testBuckets() {
+        SynonymDurationHistogram histogram = new SynonymDurationHistogram();
+        assertEquals("{\"count\":0,\"sum_in_millis\":0,\"max_in_millis\":0,\"buckets\":{}}",
+                Strings.toString(histogram));
+
+        for (long millis : new long[]{0, 1, 2, 3, 4, 5}) {
+            histogram.record(millis);
+        }
+        assertEquals("{\"count\":6,\"sum_in_millis\":15,\"max_in_millis\":5,"
+                + "\"buckets\":{\"1\":2,\"2\":1,\"4\":2,\"8\":1}}", Strings.toString(histogram));
+
+        histogram = new SynonymDurationHistogram();
+        histogram.record(SynonymDurationHistogram.MAX_BOUND_MILLIS);
+        histogram.record(SynonymDurationHistogram.MAX_BOUND_MILLIS + 1);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals("{\"count\":3,\"sum_in_millis\":" + (Long.MAX_VALUE / 2 + 2 * 65536 + 1)
+                + ",\"max_in_millis\":" + Long.MAX_VALUE / 2
+                + ",\"buckets\":{\"65536\":1,\"+Inf\":2}}", Strings.toString(histogram));
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        SynonymDurationHistogram histogram = new SynonymDurationHistogram();
+        histogram.record(7);
+        SynonymDurationHistogram copy = histogram.copy();
+        histogram.record(100);
+        assertEquals(1, copy.getCount());
+        assertEquals(7, copy.getMaxMillis());
+        assertEquals(2, histogram.getCount());
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        SynonymDurationHistogram histogram = new SynonymDurationHistogram();
+        for (long millis : new long[]{0, 3, 900, 70000}) {
+            histogram.record(millis);
+        }
+        BytesStreamOutput out = new BytesStreamOutput();
+        histogram.writeTo(out);
+        SynonymDurationHistogram read = new SynonymDurationHistogram(out.bytes().streamInput());
+        assertEquals(histogram.getCount(), read.getCount());
+        assertEquals(histogram.getSumMillis(), read.getSumMillis());
+        assertEquals(histogram.getMaxMillis(), read.getMaxMillis());
+        assertEquals(Strings.toString(histogram), Strings.toString(read));
+    }
+}
@@ -0,0 +1,203 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymFilterTests.Filter;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.DynamicSynonymFilterTests.RulesFile;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.CharsRef;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares random stacks of layers, walked together and compacted, to Lucene's
+ * {@link SynonymFilter} over the rules the stack stands for.
+ */
+public class SynonymLayersTests {
+
+    private static final String[] WORDS = {"a", "b", "c", "a", "b", "d", "Foo", "bar", "x"};
+
+    private final long seed = Long.getLong("tests.seed", System.nanoTime());
+
+    private final Random random = new Random(seed);
+
+    @Test
+    public void testMatchesMergedRules() throws Exception {
+        for (int iteration = 0; iteration < 300; iteration++) {
+            boolean expand = random.nextInt(4) != 0;
+            boolean ignoreCase = random.nextBoolean();
+            boolean equivalenceClasses = random.nextBoolean();
+            List<RulesFile> files = new ArrayList<>();
+            List<SynonymSource> sources = new ArrayList<>();
+            int count = 1 + random.nextInt(4);
+            for (int layer = 0; layer < count; layer++) {
+                RulesFile file = new RulesFile(rules(layer, expand, ignoreCase), expand, equivalenceClasses);
+                files.add(file);
+                sources.add(new SynonymSource(new SynonymSourceKey("layer" + layer, "", expand, ignoreCase,
+                        "whitespace", Settings.EMPTY, false, false, SynonymMatcher.FST, 0, equivalenceClasses),
+                        file));
+            }
+            SynonymLayers layers = new SynonymLayers(sources, ignoreCase);
+            Tokenizer input = new WhitespaceTokenizer();
+            Filter actual = new Filter(input, new DynamicSynonymFilter(input, layers, ignoreCase));
+            String state = "layered";
+
+            for (int round = 0; round < 4; round++) {
+                boolean stacked = layers.getView().getLayers().length > 1;
+                SynonymMap merged = merged(files, expand);
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                // SynonymFilter rejects a map without rules
+                Filter expected = new Filter(tokenizer, merged.fst == null ? tokenizer
+                        : new SynonymFilter(tokenizer, merged, ignoreCase));
+                for (int i = 0; i < 10; i++) {
+                    String text = phrase(1 + random.nextInt(14));
+                    assertEquals(message(state, files, ignoreCase, text), expected.run(text, -1),
+                            actual.run(text, -1));
+                }
+
+                if (random.nextBoolean()) {
+                    // the first call only notes the view
+                    assertFalse(layers.compact());
+                    assertEquals(stacked, layers.compact());
+                    assertEquals(1, layers.getView().getLayers().length);
+                    state = "compacted";
+                } else {
+                    int layer = random.nextInt(files.size());
+                    files.get(layer).rules = rules(layer, expand, ignoreCase);
+                    files.get(layer).changed = true;
+                    sources.get(layer).run();
+                    state = "reloaded layer " + layer;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTombstoneRemovesInputOfLowerLayers() throws Exception {
+        RulesFile base = new RulesFile("a b => c\na => d\nx, y\n", true, false);
+        RulesFile overlay = new RulesFile("a b => a b\nx => z\n", true, false);
+        List<SynonymSource> sources = new ArrayList<>();
+        sources.add(new SynonymSource(new SynonymSourceKey("base", "", true, false, "whitespace",
+                Settings.EMPTY, false, false, SynonymMatcher.FST, 0, false), base));
+        sources.add(new SynonymSource(new SynonymSourceKey("overlay", "", true, false, "whitespace",
+                Settings.EMPTY, false, false, SynonymMatcher.FST, 0, false), overlay));
+        SynonymLayers layers = new SynonymLayers(sources, false);
+        Tokenizer input = new WhitespaceTokenizer();
+        Filter filter = new Filter(input, new DynamicSynonymFilter(input, layers, false));
+
+        String layered = filter.run("a b x y", -1);
+        assertTrue(layered, layered.startsWith("d/1/1/0-1/SYNONYM b/1/1/2-3/word z/1/1/4-5/SYNONYM "
+                + "y/1/1/6-7/word x/0/1/6-7/SYNONYM "));
+        assertFalse(layers.compact());
+        assertTrue(layers.compact());
+        assertEquals(layered, filter.run("a b x y", -1));
+    }
+
+    /**
+     * @param layer overlays get fewer rules, some of them tombstones or
+     *              replacing inputs of the layers below
+     */
+    private String rules(int layer, boolean expand, boolean ignoreCase) {
+        StringBuilder rules = new StringBuilder();
+        int count = random.nextInt(layer == 0 ? 12 : 5);
+        for (int i = 0; i < count; i++) {
+            String input = phrase(1 + random.nextInt(4));
+            if (layer > 0 && random.nextInt(3) == 0) {
+                rules.append(input).append(" => ").append(input);
+            } else if (random.nextBoolean()) {
+                rules.append(input).append(" => ").append(phrase(1 + random.nextInt(3)));
+            } else {
+                rules.append(input);
+                int words = 1 + random.nextInt(expand ? 4 : 2);
+                for (int j = 0; j < words; j++) {
+                    rules.append(", ").append(phrase(1 + random.nextInt(3)));
+                }
+            }
+            rules.append('\n');
+        }
+        return ignoreCase ? rules.toString().toLowerCase(Locale.ROOT) : rules.toString();
+    }
+
+    private String phrase(int words) {
+        StringBuilder phrase = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                phrase.append(' ');
+            }
+            phrase.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return phrase.toString();
+    }
+
+    private String message(String state, List<RulesFile> files, boolean ignoreCase, String text) {
+        StringBuilder message = new StringBuilder("seed ").append(seed).append(", ").append(state)
+                .append(", ignore_case ").append(ignoreCase).append(", text [").append(text).append(']');
+        for (int layer = 0; layer < files.size(); layer++) {
+            message.append("\nlayer ").append(layer).append(":\n").append(files.get(layer).rules);
+        }
+        return message.toString();
+    }
+
+    /**
+     * Builds the map of the stack from the parsed rules: each input keeps the
+     * outputs of the top-most layer that has it, and is dropped if an overlay
+     * maps it to itself alone.
+     */
+    private static SynonymMap merged(List<RulesFile> files, boolean expand) throws Exception {
+        Map<String, Rule> merged = new LinkedHashMap<>();
+        for (int layer = 0; layer < files.size(); layer++) {
+            for (Map.Entry<String, Rule> rule : parse(files.get(layer).rules, expand).entrySet()) {
+                Rule outputs = rule.getValue();
+                if (layer > 0 && outputs.outputs.size() == 1 && !outputs.keepOrig
+                        && outputs.outputs.contains(rule.getKey())) {
+                    merged.remove(rule.getKey());
+                } else {
+                    merged.put(rule.getKey(), outputs);
+                }
+            }
+        }
+        SynonymMap.Builder builder = new SynonymMap.Builder(true);
+        for (Map.Entry<String, Rule> rule : merged.entrySet()) {
+            for (String output : rule.getValue().outputs) {
+                builder.add(new CharsRef(rule.getKey()), new CharsRef(output), rule.getValue().keepOrig);
+            }
+        }
+        return builder.build();
+    }
+
+    private static Map<String, Rule> parse(String rules, boolean expand) throws Exception {
+        Map<String, Rule> parsed = new LinkedHashMap<>();
+        new SolrSynonymParser(true, expand, DynamicSynonymFilterTests.WHITESPACE) {
+            @Override
+            public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+                Rule rule = parsed.computeIfAbsent(input.toString(), key -> new Rule());
+                rule.outputs.add(output.toString());
+                rule.keepOrig |= includeOrig;
+            }
+        }.parse(new StringReader(rules));
+        return parsed;
+    }
+
+    private static final class Rule {
+
+        private final Set<String> outputs = new LinkedHashSet<>();
+
+        private boolean keepOrig;
+    }
+}
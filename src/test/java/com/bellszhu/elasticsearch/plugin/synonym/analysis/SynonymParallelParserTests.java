@@ -0,0 +1,214 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares parallel parses of random files to sequential ones.
+ */
+public class SynonymParallelParserTests {
+
+    private final long seed = Long.getLong("tests.seed", System.nanoTime());
+
+    private final Random random = new Random(seed);
+
+    private final int threads = 1 + random.nextInt(4);
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSolrMatchesSequentialParse() throws Exception {
+        for (int iteration = 0; iteration < 12; iteration++) {
+            assertSameMap("solr", solr(rules()));
+        }
+    }
+
+    @Test
+    public void testWordnetMatchesSequentialParse() throws Exception {
+        for (int iteration = 0; iteration < 12; iteration++) {
+            assertSameMap("wordnet", wordnet(rules()));
+        }
+    }
+
+    /**
+     * @return number of rules, sometimes more than fit in the chunks one
+     * thread may have in flight
+     */
+    private int rules() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return 1 + random.nextInt(100);
+            case 1:
+                return 1 + random.nextInt(SynonymParallelParser.CHUNK_RULES * 2);
+            default:
+                return SynonymParallelParser.CHUNK_RULES * 2 * threads
+                        + random.nextInt(SynonymParallelParser.CHUNK_RULES * 3);
+        }
+    }
+
+    private void assertSameMap(String format, Rules rules) throws Exception {
+        boolean expand = random.nextBoolean();
+        boolean equivalenceClasses = random.nextBoolean();
+        int budget = rules.invalid == 0 ? random.nextInt(3)
+                : random.nextBoolean() ? rules.invalid + random.nextInt(3) : random.nextInt(rules.invalid);
+        String message = "seed " + seed + ", threads " + threads + ", format " + format + ", rules "
+                + rules.count + ", invalid " + rules.invalid + ", max_invalid_rules " + budget + ", expand "
+                + expand + ", equivalence_classes " + equivalenceClasses;
+
+        SynonymRuleErrors sequentialErrors = new SynonymRuleErrors(budget, "synonym.txt");
+        SynonymMap sequential = null;
+        try {
+            sequential = AbstractSynonymFile.getSynonymParser(new StringReader(rules.text), format, expand,
+                    DynamicSynonymFilterTests.WHITESPACE, sequentialErrors, equivalenceClasses).build();
+        } catch (ParseException e) {
+            // compared below
+        }
+        SynonymRuleErrors parallelErrors = new SynonymRuleErrors(budget, "synonym.txt");
+        SynonymMap parallel = null;
+        try {
+            parallel = new SynonymParallelParser(executor, threads).parse(new StringReader(rules.text), format,
+                    expand, DynamicSynonymFilterTests.WHITESPACE, parallelErrors, equivalenceClasses).build();
+        } catch (ParseException e) {
+            // compared below
+        }
+
+        if (rules.invalid > budget) {
+            assertNull(message, sequential);
+            assertNull(message, parallel);
+            return;
+        }
+        if (sequential == null || parallel == null) {
+            fail(message + ", sequential failed " + (sequential == null) + ", parallel failed "
+                    + (parallel == null));
+        }
+        assertEquals(message, rules.invalid, sequentialErrors.getCount());
+        assertEquals(message, rules.invalid, parallelErrors.getCount());
+        assertSameMap(message, sequential, parallel);
+    }
+
+    /**
+     * Asserts both maps have the same FST bytes, words and equivalence classes
+     */
+    static void assertSameMap(String message, SynonymMap expected, SynonymMap actual) throws IOException {
+        assertEquals(message, expected.maxHorizontalContext, actual.maxHorizontalContext);
+        assertArrayEquals(message, fst(expected), fst(actual));
+        assertEquals(message, expected.words.size(), actual.words.size());
+        BytesRef expectedWord = new BytesRef();
+        BytesRef actualWord = new BytesRef();
+        for (int id = 0; id < expected.words.size(); id++) {
+            assertEquals(message, expected.words.get(id, expectedWord), actual.words.get(id, actualWord));
+        }
+        SynonymClassMap expectedClasses = SynonymClassMap.classes(expected);
+        SynonymClassMap actualClasses = SynonymClassMap.classes(actual);
+        assertEquals(message, expectedClasses == null, actualClasses == null);
+        if (expectedClasses != null) {
+            assertArrayEquals(message, expectedClasses.classStarts, actualClasses.classStarts);
+            assertArrayEquals(message, expectedClasses.classOrds, actualClasses.classOrds);
+        }
+    }
+
+    private Rules solr(int count) {
+        Rules rules = new Rules(count);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(10) == 0) {
+                text.append("# comment ").append(i).append('\n');
+            }
+            if (random.nextInt(50) == 0) {
+                // more than one explicit mapping
+                text.append(phrase()).append(" => ").append(phrase()).append(" => ").append(phrase());
+                rules.invalid++;
+            } else if (random.nextBoolean()) {
+                text.append(phrase()).append(" => ").append(phrase());
+                for (int j = random.nextInt(3); j > 0; j--) {
+                    text.append(", ").append(phrase());
+                }
+            } else {
+                text.append(phrase());
+                for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                    text.append(", ").append(phrase());
+                }
+            }
+            text.append('\n');
+        }
+        rules.text = text.toString();
+        return rules;
+    }
+
+    private Rules wordnet(int count) {
+        Rules rules = new Rules(count);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int synset = 100000001 + i;
+            int words = 1 + random.nextInt(4);
+            boolean invalid = random.nextInt(50) == 0;
+            rules.invalid += invalid ? 1 : 0;
+            for (int j = 1; j <= words; j++) {
+                // a term analyzed to nothing
+                String word = invalid && j == words ? "" : phrase();
+                text.append("s(").append(synset).append(',').append(j).append(",'").append(word)
+                        .append("',n,1,0).\n");
+            }
+        }
+        rules.text = text.toString();
+        return rules;
+    }
+
+    private String phrase() {
+        StringBuilder phrase = new StringBuilder("w").append(random.nextInt(1000));
+        for (int i = random.nextInt(4) == 0 ? 1 + random.nextInt(2) : 0; i > 0; i--) {
+            phrase.append(" w").append(random.nextInt(1000));
+        }
+        return phrase.toString();
+    }
+
+    private static byte[] fst(SynonymMap map) throws IOException {
+        if (map.fst == null) {
+            return new byte[0];
+        }
+        ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        map.fst.save(out);
+        return out.toArrayCopy();
+    }
+
+    private static final class Rules {
+
+        private final int count;
+
+        private int invalid;
+
+        private String text;
+
+        Rules(int count) {
+            this.count = count;
+        }
+    }
+}
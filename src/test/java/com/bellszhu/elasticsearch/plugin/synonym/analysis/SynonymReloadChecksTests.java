@@ -0,0 +1,85 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SynonymReloadChecksTests {
+
+    @Test
+    public void testMinRules() {
+        SynonymReloadChecks checks = new SynonymReloadChecks(5, Double.POSITIVE_INFINITY);
+        checks.check(null, stats(5, 0));
+        expectRejected(checks, null, stats(4, 0));
+        // invalid rules do not count
+        expectRejected(checks, stats(10, 0), stats(6, 2));
+        // nothing to compare to
+        checks.check(stats(10, 0), null);
+    }
+
+    @Test
+    public void testMaxRuleChange() {
+        SynonymReloadChecks checks = new SynonymReloadChecks(0, 0.5);
+        checks.check(stats(10, 0), stats(5, 0));
+        checks.check(stats(10, 0), stats(15, 0));
+        expectRejected(checks, stats(10, 0), stats(4, 0));
+        expectRejected(checks, stats(10, 0), stats(16, 0));
+        expectRejected(checks, stats(12, 2), stats(16, 0));
+        // any size may follow an empty map
+        checks.check(stats(0, 0), stats(1000, 0));
+        checks.check(stats(3, 3), stats(1000, 0));
+    }
+
+    @Test
+    public void testMergeKeepsStricterLimits() {
+        SynonymReloadChecks merged = new SynonymReloadChecks(5, 0.1)
+                .merge(new SynonymReloadChecks(2, 0.5));
+        assertEquals("min_rules [5], max_rule_change [0.1]", merged.toString());
+        assertEquals(merged.toString(), new SynonymReloadChecks(2, 0.5)
+                .merge(new SynonymReloadChecks(5, 0.1)).toString());
+        expectRejected(merged, null, stats(4, 0));
+        expectRejected(merged, stats(10, 0), stats(12, 0));
+
+        // limits from different filters
+        merged = SynonymReloadChecks.NONE.merge(new SynonymReloadChecks(5, Double.POSITIVE_INFINITY))
+                .merge(new SynonymReloadChecks(0, 0.2));
+        assertEquals("min_rules [5], max_rule_change [0.2]", merged.toString());
+        merged.check(stats(10, 0), stats(12, 0));
+        expectRejected(merged, stats(10, 0), stats(13, 0));
+        expectRejected(merged, null, stats(4, 0));
+    }
+
+    @Test
+    public void testRejectsInvalidLimits() {
+        for (double maxRuleChange : new double[]{-0.1, Double.NaN}) {
+            try {
+                new SynonymReloadChecks(0, maxRuleChange);
+                fail("max_rule_change " + maxRuleChange + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("max_rule_change"));
+            }
+        }
+        try {
+            new SynonymReloadChecks(-1, 0.5);
+            fail("negative min_rules should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("min_rules"));
+        }
+    }
+
+    private static void expectRejected(SynonymReloadChecks checks, SynonymLoadStats current,
+                                       SynonymLoadStats next) {
+        try {
+            checks.check(current, next);
+            fail(checks + " should reject " + next + " after " + current);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static SynonymLoadStats stats(long rules, long invalidRules) {
+        return new SynonymLoadStats(0, rules, invalidRules, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,150 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymParallelParserTests.assertSameMap;
+
+/**
+ * Edits random files over several delta reloads and compares each map to a
+ * full parse of the edited file.
+ */
+public class SynonymRuleCacheTests {
+
+    private final long seed = Long.getLong("tests.seed", System.nanoTime());
+
+    private final Random random = new Random(seed);
+
+    @Test
+    public void testSolrMatchesFullParse() throws Exception {
+        for (int iteration = 0; iteration < 50; iteration++) {
+            assertDeltaReloads("solr");
+        }
+    }
+
+    @Test
+    public void testWordnetMatchesFullParse() throws Exception {
+        for (int iteration = 0; iteration < 50; iteration++) {
+            assertDeltaReloads("wordnet");
+        }
+    }
+
+    private void assertDeltaReloads(String format) throws Exception {
+        boolean expand = random.nextBoolean();
+        boolean equivalenceClasses = random.nextBoolean();
+        SynonymRuleCache cache = new SynonymRuleCache(format, expand, DynamicSynonymFilterTests.WHITESPACE,
+                equivalenceClasses);
+        List<String> rules = new ArrayList<>();
+        for (int i = random.nextInt(50); i > 0; i--) {
+            rules.add(rule(format));
+        }
+        List<String> edits = new ArrayList<>();
+        for (int reload = 0; reload < 8; reload++) {
+            String text = render(format, rules);
+            String message = "seed " + seed + ", format " + format + ", expand " + expand
+                    + ", equivalence_classes " + equivalenceClasses + ", edits " + edits + ", file:\n" + text;
+            SynonymMap delta = cache.parse(new StringReader(text), new SynonymRuleErrors(0, "synonym.txt")).build();
+            assertSameMap(message, full(format, expand, equivalenceClasses, text), delta);
+
+            edits.clear();
+            for (int i = 1 + random.nextInt(5); i > 0; i--) {
+                edits.add(edit(format, rules));
+            }
+        }
+    }
+
+    /**
+     * Applies a random edit to the rules
+     *
+     * @return the kind of edit
+     */
+    private String edit(String format, List<String> rules) {
+        int kind = rules.isEmpty() ? 0 : random.nextInt(5);
+        switch (kind) {
+            case 0:
+                rules.add(random.nextInt(rules.size() + 1), rule(format));
+                return "add";
+            case 1:
+                rules.set(random.nextInt(rules.size()), rule(format));
+                return "edit";
+            case 2:
+                rules.remove(random.nextInt(rules.size()));
+                return "delete";
+            case 3:
+                Collections.shuffle(rules, random);
+                return "reorder";
+            default:
+                rules.add(random.nextInt(rules.size() + 1), rules.get(random.nextInt(rules.size())));
+                return "duplicate";
+        }
+    }
+
+    /**
+     * @return a solr line, or the words of a wordnet synset separated by
+     * commas
+     */
+    private String rule(String format) {
+        StringBuilder rule = new StringBuilder(phrase());
+        if ("solr".equals(format) && random.nextBoolean()) {
+            rule.append(" => ").append(phrase());
+        } else {
+            for (int i = random.nextInt(4); i > 0; i--) {
+                rule.append(", ").append(phrase());
+            }
+        }
+        return rule.toString();
+    }
+
+    private String phrase() {
+        StringBuilder phrase = new StringBuilder("w").append(random.nextInt(30));
+        for (int i = random.nextInt(4) == 0 ? 1 : 0; i > 0; i--) {
+            phrase.append(" w").append(random.nextInt(30));
+        }
+        return phrase.toString();
+    }
+
+    private String render(String format, List<String> rules) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < rules.size(); i++) {
+            if ("solr".equals(format)) {
+                if (random.nextInt(10) == 0) {
+                    text.append("# comment\n");
+                }
+                text.append(rules.get(i)).append('\n');
+            } else {
+                // synsets keep their id, so an unchanged one is the same rule
+                String id = Integer.toString(100000000 + (rules.get(i).hashCode() & 0xFFFFFF));
+                String[] words = rules.get(i).split(", ");
+                for (int j = 0; j < words.length; j++) {
+                    text.append("s(").append(id).append(',').append(j + 1).append(",'").append(words[j])
+                            .append("',n,1,0).\n");
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private static SynonymMap full(String format, boolean expand, boolean equivalenceClasses, String text)
+            throws Exception {
+        if (equivalenceClasses) {
+            return AbstractSynonymFile.getSynonymParser(new StringReader(text), format, expand,
+                    DynamicSynonymFilterTests.WHITESPACE, true).build();
+        }
+        if ("wordnet".equals(format)) {
+            WordnetSynonymParser parser = new WordnetSynonymParser(true, expand, DynamicSynonymFilterTests.WHITESPACE);
+            parser.parse(new StringReader(text));
+            return parser.build();
+        }
+        SolrSynonymParser parser = new SolrSynonymParser(true, expand, DynamicSynonymFilterTests.WHITESPACE);
+        parser.parse(new StringReader(text));
+        return parser.build();
+    }
+}
@@ -0,0 +1,177 @@
+package com.bellszhu.elasticsearch.plugin.synonym.analysis;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.CharsRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SynonymSourceTests {
+
+    @Test
+    public void testRejectedReloadKeepsSnapshot() {
+        CountingFile file = new CountingFile(10);
+        SynonymSource source = source(file);
+        source.addChecks(new SynonymReloadChecks(5, 0.5));
+        SynonymSnapshot first = source.getSnapshot();
+
+        // below min_rules
+        file.update(3);
+        source.run();
+        assertSame(first, source.getSnapshot());
+        assertEquals(0, source.getSnapshot().getGeneration());
+        assertFalse(file.published);
+        assertTrue(source.getRetryDelay() != null);
+        assertEquals(1, source.stats().getFailures());
+
+        // more than max_rule_change apart
+        file.update(16);
+        source.run();
+        assertSame(first, source.getSnapshot());
+        assertFalse(file.published);
+
+        file.update(14);
+        source.run();
+        assertEquals(1, source.getSnapshot().getGeneration());
+        assertEquals(14, source.getSnapshot().getLoadStats().getRules());
+        assertTrue(file.published);
+        assertNull(source.getRetryDelay());
+    }
+
+    @Test
+    public void testFailedReloadKeepsSnapshot() {
+        CountingFile file = new CountingFile(10);
+        SynonymSource source = source(file);
+        SynonymSnapshot first = source.getSnapshot();
+        file.failing = true;
+        file.changed = true;
+        source.run();
+        assertSame(first, source.getSnapshot());
+        assertEquals(10, source.getSnapshot().getLoadStats().getRules());
+        assertTrue(source.getRetryDelay() != null);
+    }
+
+    @Test
+    public void testRetryBacksOff() {
+        CountingFile file = new CountingFile(10);
+        SynonymSource source = source(file);
+        file.failing = true;
+        long expected = SynonymSource.MIN_RETRY.millis();
+        for (int failures = 1; failures <= 12; failures++) {
+            try {
+                source.reload();
+                fail("the reload should fail");
+            } catch (IllegalArgumentException e) {
+                assertEquals("unreachable", e.getMessage());
+            }
+            TimeValue delay = source.getRetryDelay();
+            assertTrue(failures + " failures: " + delay, delay.millis() <= expected);
+            assertTrue(failures + " failures: " + delay, delay.millis() > expected - 1000);
+            expected = Math.min(expected * 2, SynonymSource.MAX_RETRY.millis());
+        }
+        assertEquals(TimeValue.timeValueMinutes(10).millis(), expected);
+
+        // not retried before the delay if the file did not change
+        int loads = file.loads;
+        source.run();
+        assertEquals(loads, file.loads);
+
+        file.failing = false;
+        file.update(12);
+        source.run();
+        assertEquals(1, source.getSnapshot().getGeneration());
+        assertNull(source.getRetryDelay());
+
+        // the next failure starts over
+        file.failing = true;
+        file.changed = true;
+        source.run();
+        assertTrue(source.getRetryDelay().millis() <= SynonymSource.MIN_RETRY.millis());
+    }
+
+    private static SynonymSource source(SynonymFile file) {
+        return new SynonymSource(new SynonymSourceKey("synonym.txt", "", true, false, "whitespace",
+                Settings.EMPTY, false, false, SynonymMatcher.FST, 0, false), file);
+    }
+
+    /**
+     * A file with a given number of rules
+     */
+    private static final class CountingFile implements SynonymFile {
+
+        private int rules;
+
+        private boolean changed;
+
+        private boolean failing;
+
+        private int loads;
+
+        private SynonymLoadStats loadStats;
+
+        /**
+         * Whether the last load was published
+         */
+        private boolean published;
+
+        CountingFile(int rules) {
+            this.rules = rules;
+        }
+
+        void update(int rules) {
+            this.rules = rules;
+            this.changed = true;
+        }
+
+        @Override
+        public SynonymMap reloadSynonymMap() {
+            loads++;
+            if (failing) {
+                throw new IllegalArgumentException("unreachable");
+            }
+            SynonymMap.Builder builder = new SynonymMap.Builder(true);
+            for (int i = 0; i < rules; i++) {
+                builder.add(new CharsRef("w" + i), new CharsRef("v" + i), true);
+            }
+            loadStats = new SynonymLoadStats(System.currentTimeMillis(), rules, 0, 0, 0, 0, 0);
+            try {
+                return builder.build();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean isNeedReloadSynonymMap() {
+            boolean needReload = changed;
+            changed = false;
+            return needReload;
+        }
+
+        @Override
+        public Reader getReader() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SynonymLoadStats getLoadStats() {
+            return loadStats;
+        }
+
+        @Override
+        public void reloadCompleted(boolean published) {
+            this.published = published;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.bellszhu.elasticsearch.plugin.synonym.service;
+
+import com.bellszhu.elasticsearch.plugin.DynamicSynonymPlugin;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymFile;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymLoadStats;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymMatcher;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymReloadChecks;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSource;
+import com.bellszhu.elasticsearch.plugin.synonym.analysis.SynonymSourceKey;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DynamicSynonymAnalysisServiceTests {
+
+    private ThreadPool threadPool;
+
+    private DynamicSynonymAnalysisService service;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        Settings settings = Settings.builder().put("node.name", "test").build();
+        threadPool = new ThreadPool(settings,
+                new DynamicSynonymPlugin().getExecutorBuilders(settings).toArray(new ExecutorBuilder[0]));
+        service = new DynamicSynonymAnalysisService(settings, threadPool, null, null,
+                new DynamicSynonymPlugin.PluginComponent());
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        service.close();
+        executor.shutdownNow();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSlowLoadDoesNotBlockOtherSources() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        Future<SynonymSource> slow = executor.submit(() -> service.acquire(indexSettings("slow"), key("slow"), 60,
+                SynonymReloadChecks.NONE, () -> new BlockingFile(loading, proceed, new AtomicInteger())));
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        Future<SynonymSource> fast = executor.submit(() -> service.acquire(indexSettings("fast"), key("fast"), 60,
+                SynonymReloadChecks.NONE, () -> new BlockingFile(null, null, new AtomicInteger())));
+        fast.get(10, TimeUnit.SECONDS);
+        assertFalse(slow.isDone());
+
+        proceed.countDown();
+        slow.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testConcurrentAcquiresLoadOnce() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        IndexSettings first = indexSettings("first");
+        IndexSettings second = indexSettings("second");
+        Future<SynonymSource> loader = executor.submit(() -> service.acquire(first, key("shared"), 60,
+                SynonymReloadChecks.NONE, () -> new BlockingFile(loading, proceed, loads)));
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        Future<SynonymSource> waiter = executor.submit(() -> service.acquire(second, key("shared"), 60,
+                SynonymReloadChecks.NONE, () -> new BlockingFile(null, null, loads)));
+        Thread.sleep(100);
+        assertFalse(waiter.isDone());
+
+        proceed.countDown();
+        assertSame(loader.get(10, TimeUnit.SECONDS), waiter.get(10, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(1, service.getSources("second", null).size());
+    }
+
+    @Test
+    public void testFailedLoadIsRetriedByNextIndex() throws Exception {
+        try {
+            service.acquire(indexSettings("broken"), key("flaky"), 60, SynonymReloadChecks.NONE, () -> {
+                throw new IllegalArgumentException("unreachable");
+            });
+            fail("the load should fail");
+        } catch (IllegalArgumentException e) {
+            assertEquals("unreachable", e.getMessage());
+        }
+        AtomicInteger loads = new AtomicInteger();
+        service.acquire(indexSettings("retry"), key("flaky"), 60, SynonymReloadChecks.NONE,
+                () -> new BlockingFile(null, null, loads));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testReleasesIndicesClosedWithoutRemoval() throws Exception {
+        acquireAndDrop("verification");
+        assertEquals(1, service.getSources(null, null).size());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!service.getSources(null, null).isEmpty() && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(service.getSources(null, null).isEmpty());
+    }
+
+    @Test
+    public void testReleaseUnloadsUnusedSources() {
+        IndexSettings first = indexSettings("first");
+        IndexSettings second = indexSettings("second");
+        AtomicInteger loads = new AtomicInteger();
+        service.acquire(first, key("shared"), 60, SynonymReloadChecks.NONE, () -> new BlockingFile(null, null, loads));
+        service.acquire(second, key("shared"), 60, SynonymReloadChecks.NONE, () -> new BlockingFile(null, null, loads));
+        service.release(first);
+        assertEquals(1, service.getSources(null, null).size());
+        service.release(second);
+        assertTrue(service.getSources(null, null).isEmpty());
+
+        service.acquire(first, key("shared"), 60, SynonymReloadChecks.NONE, () -> new BlockingFile(null, null, loads));
+        assertEquals(2, loads.get());
+    }
+
+    private void acquireAndDrop(String index) {
+        service.acquire(indexSettings(index), key(index), 60, SynonymReloadChecks.NONE,
+                () -> new BlockingFile(null, null, new AtomicInteger()));
+    }
+
+    private static SynonymSourceKey key(String location) {
+        return new SynonymSourceKey(location, "", true, false, "whitespace", Settings.EMPTY, false, false,
+                SynonymMatcher.FST, 0, false);
+    }
+
+    private static IndexSettings indexSettings(String index) {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                .build();
+        return new IndexSettings(IndexMetaData.builder(index).settings(settings).build(), Settings.EMPTY);
+    }
+
+    /**
+     * Empty synonym file whose first load waits until it is told to proceed
+     */
+    private static final class BlockingFile implements SynonymFile {
+
+        private final CountDownLatch loading;
+
+        private final CountDownLatch proceed;
+
+        private final AtomicInteger loads;
+
+        BlockingFile(CountDownLatch loading, CountDownLatch proceed, AtomicInteger loads) {
+            this.loading = loading;
+            this.proceed = proceed;
+            this.loads = loads;
+        }
+
+        @Override
+        public SynonymMap reloadSynonymMap() {
+            loads.incrementAndGet();
+            if (loading != null) {
+                loading.countDown();
+                try {
+                    proceed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                return new SynonymMap.Builder(true).build();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean isNeedReloadSynonymMap() {
+            return false;
+        }
+
+        @Override
+        public Reader getReader() {
+            return new StringReader("");
+        }
+
+        @Override
+        public SynonymLoadStats getLoadStats() {
+            return null;
+        }
+    }
+}